@@ -0,0 +1,53 @@
+package com.forsythe.benchmarks;
+
+import com.forsythe.pullstream.PullStream;
+import com.forsythe.pushstream.PushStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Expands every element of {@code fromRange(0, size)} into 4 elements, then counts them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class FlatMapBenchmark {
+    @Param({"1000", "1000000"})
+    int size;
+
+    @Benchmark
+    public int pushFlatMap() {
+        return PushStream.fromRange(0, size).flatMap(x -> PushStream.of(x, x + 1, x + 2, x + 3)).count();
+    }
+
+    @Benchmark
+    public int pushMapMulti() {
+        return PushStream.fromRange(0, size).mapMulti((x, emit) -> {
+            for (int i = 0; i < 4; i++) {
+                emit.accept(x + i);
+            }
+        }).count();
+    }
+
+    @Benchmark
+    public int pullFlatMap() {
+        return PullStream.fromRange(0, size).flatMap(x -> List.of(x, x + 1, x + 2, x + 3)).count();
+    }
+
+    @Benchmark
+    public int pullMapMulti() {
+        return PullStream.fromRange(0, size).mapMulti((x, emit) -> {
+            for (int i = 0; i < 4; i++) {
+                emit.accept(x + i);
+            }
+        }).count();
+    }
+
+    @Benchmark
+    public long intStream() {
+        return IntStream.range(0, size).flatMap(x -> IntStream.range(x, x + 4)).count();
+    }
+}
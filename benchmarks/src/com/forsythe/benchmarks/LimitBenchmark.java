@@ -0,0 +1,34 @@
+package com.forsythe.benchmarks;
+
+import com.forsythe.pullstream.PullStream;
+import com.forsythe.pushstream.PushStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Takes the first {@code limit} matches from a practically endless range, which should cost O(limit)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class LimitBenchmark {
+    @Param({"10", "100000"})
+    int limit;
+
+    @Benchmark
+    public long pushStream() {
+        return PushStream.fromRange(0, Integer.MAX_VALUE).filter(x -> x % 3 == 0).limit(limit).sum();
+    }
+
+    @Benchmark
+    public int pullStream() {
+        return PullStream.fromRange(0, Integer.MAX_VALUE).filter(x -> x % 3 == 0).limit(limit).fold(0, Integer::sum);
+    }
+
+    @Benchmark
+    public int intStream() {
+        return IntStream.range(0, Integer.MAX_VALUE).filter(x -> x % 3 == 0).limit(limit).sum();
+    }
+}
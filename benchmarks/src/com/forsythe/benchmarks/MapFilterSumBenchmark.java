@@ -0,0 +1,49 @@
+package com.forsythe.benchmarks;
+
+import com.forsythe.pullstream.PullStream;
+import com.forsythe.pushstream.PushStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * {@code fromRange(0, size)}, then {@code depth} rounds of map + filter, then sum
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class MapFilterSumBenchmark {
+    @Param({"1000", "1000000"})
+    int size;
+
+    @Param({"1", "4", "8"})
+    int depth;
+
+    @Benchmark
+    public long pushStream() {
+        PushStream stream = PushStream.fromRange(0, size);
+        for (int i = 0; i < depth; i++) {
+            stream = stream.map(x -> x * 3 + 1).filter(x -> (x & 15) != 0);
+        }
+        return stream.sum();
+    }
+
+    @Benchmark
+    public int pullStream() {
+        PullStream stream = PullStream.fromRange(0, size);
+        for (int i = 0; i < depth; i++) {
+            stream = stream.map(x -> x * 3 + 1).filter(x -> (x & 15) != 0);
+        }
+        return stream.fold(0, Integer::sum);
+    }
+
+    @Benchmark
+    public int intStream() {
+        IntStream stream = IntStream.range(0, size);
+        for (int i = 0; i < depth; i++) {
+            stream = stream.map(x -> x * 3 + 1).filter(x -> (x & 15) != 0);
+        }
+        return stream.sum();
+    }
+}
@@ -0,0 +1,47 @@
+package com.forsythe.benchmarks;
+
+import com.forsythe.pullstream.PullStream;
+import com.forsythe.pushstream.PushStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts {@code size} random ints, then sums them so the whole output is consumed
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SortedBenchmark {
+    @Param({"1000", "1000000"})
+    int size;
+
+    int[] input;
+
+    @Setup
+    public void setup() {
+        input = new Random(42).ints(size).toArray();
+    }
+
+    @Benchmark
+    public long pushStream() {
+        return PushStream.of(input).sorted().sum();
+    }
+
+    @Benchmark
+    public long pushStreamComparator() {
+        return PushStream.of(input).sorted((a, b) -> Integer.compare(b, a)).sum();
+    }
+
+    @Benchmark
+    public int pullStream() {
+        return PullStream.fromRange(0, size).map(i -> input[i]).sorted().fold(0, Integer::sum);
+    }
+
+    @Benchmark
+    public int intStream() {
+        return IntStream.of(input).sorted().sum();
+    }
+}
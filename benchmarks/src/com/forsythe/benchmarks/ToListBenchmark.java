@@ -0,0 +1,51 @@
+package com.forsythe.benchmarks;
+
+import com.forsythe.pullstream.PullStream;
+import com.forsythe.pushstream.PushStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Collects {@code map(fromRange(0, size))} into a list, and into an int[]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ToListBenchmark {
+    @Param({"1000", "1000000"})
+    int size;
+
+    @Benchmark
+    public List<Integer> pushToList() {
+        return PushStream.fromRange(0, size).map(x -> x ^ 0x5f5f).toList();
+    }
+
+    @Benchmark
+    public int[] pushToArray() {
+        return PushStream.fromRange(0, size).map(x -> x ^ 0x5f5f).toArray();
+    }
+
+    @Benchmark
+    public List<Integer> pullToList() {
+        return PullStream.fromRange(0, size).map(x -> x ^ 0x5f5f).toList();
+    }
+
+    @Benchmark
+    public int[] pullToArray() {
+        return PullStream.fromRange(0, size).map(x -> x ^ 0x5f5f).toArray();
+    }
+
+    @Benchmark
+    public List<Integer> intStreamBoxed() {
+        return IntStream.range(0, size).map(x -> x ^ 0x5f5f).boxed().collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public int[] intStreamToArray() {
+        return IntStream.range(0, size).map(x -> x ^ 0x5f5f).toArray();
+    }
+}
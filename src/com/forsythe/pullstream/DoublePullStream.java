@@ -0,0 +1,103 @@
+package com.forsythe.pullstream;
+
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A single use lazy stream of {@code double}s, built from the same kind of stages as {@link PullStream}, so values
+ * never get boxed
+ */
+public interface DoublePullStream extends DoubleSource, Iterable<Double> {
+    static DoublePullStream of(double... nums) {
+        return new DoubleStage.HeadStage(new DoubleSource() {
+            int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < nums.length;
+            }
+
+            @Override
+            public double getNext() {
+                return nums[pos++];
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                int n = Math.min(length, nums.length - pos);
+                System.arraycopy(nums, pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
+        });
+    }
+
+    static DoublePullStream generator(double base, DoubleUnaryOperator generator) {
+        return new DoubleStage.HeadStage(new DoubleSource() {
+            double val = base;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public double getNext() {
+                double retVal = val;
+                val = generator.applyAsDouble(val);
+                return retVal;
+            }
+        });
+    }
+
+    DoublePullStream map(DoubleUnaryOperator mapper);
+
+    DoublePullStream filter(DoublePredicate pred);
+
+    /**
+     * Sorts in {@link Double#compare(double, double)} order, so -0.0 comes before 0.0 and NaNs come last
+     */
+    /**
+     * Sorts in {@link Double#compare(double, double)} order, so -0.0 comes before 0.0 and NaNs come last
+     */
+    DoublePullStream sorted();
+
+    DoublePullStream limit(long limit);
+
+    DoublePullStream takeWhile(DoublePredicate pred);
+
+    DoublePullStream skip(long skip);
+
+    long count();
+
+    double fold(double identity, DoubleBinaryOperator reducer);
+
+    OptionalDouble reduce(DoubleBinaryOperator binaryOperator);
+
+    default OptionalDouble min() {
+        return reduce(Math::min);
+    }
+
+    default OptionalDouble max() {
+        return reduce(Math::max);
+    }
+
+    /**
+     * Adds up the elements with compensated summation, so the rounding error doesn't grow with the number of elements
+     * the way it does for a plain running total
+     */
+    double sum();
+
+    /**
+     * Uses the same compensated summation as {@link #sum()}
+     */
+    OptionalDouble average();
+
+    double[] toArray();
+
+    @Override
+    PrimitiveIterator.OfDouble iterator();
+}
@@ -0,0 +1,23 @@
+package com.forsythe.pullstream;
+
+/**
+ * The {@code double} counterpart of {@link Source}
+ */
+public interface DoubleSource {
+    boolean hasNext();
+
+    double getNext();
+
+    /**
+     * Bulk version of {@link #getNext()}, see {@link Source#getNextBatch(int[], int, int)}
+     *
+     * @return The number of elements written
+     */
+    default int getNextBatch(double[] buffer, int offset, int length) {
+        int n = 0;
+        while (n < length && hasNext()) {
+            buffer[offset + n++] = getNext();
+        }
+        return n;
+    }
+}
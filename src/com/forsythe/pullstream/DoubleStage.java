@@ -0,0 +1,445 @@
+package com.forsythe.pullstream;
+
+import com.forsythe.util.CompensatedDoubleSum;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.function.*;
+
+/**
+ * The {@code double} counterpart of {@link Stage}, without profiling or the int-only operations
+ */
+public abstract class DoubleStage implements DoublePullStream {
+    static final int BATCH_SIZE = Stage.BATCH_SIZE;
+
+    protected DoubleSource upstream;
+
+    protected DoubleStage(DoubleSource upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code ints} produces
+     */
+    static DoublePullStream fromInts(Source ints, IntToDoubleFunction mapper) {
+        return new HeadStage(new DoubleSource() {
+            int[] chunk = new int[0];
+
+            @Override
+            public boolean hasNext() {
+                return ints.hasNext();
+            }
+
+            @Override
+            public double getNext() {
+                return mapper.applyAsDouble(ints.getNext());
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                if (chunk.length < length) {
+                    chunk = new int[Math.max(length, BATCH_SIZE)];
+                }
+                int n = ints.getNextBatch(chunk, 0, length);
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = mapper.applyAsDouble(chunk[i]);
+                }
+                return n;
+            }
+        });
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code longs} produces
+     */
+    static DoublePullStream fromLongs(LongSource longs, LongToDoubleFunction mapper) {
+        return new HeadStage(new DoubleSource() {
+            long[] chunk = new long[0];
+
+            @Override
+            public boolean hasNext() {
+                return longs.hasNext();
+            }
+
+            @Override
+            public double getNext() {
+                return mapper.applyAsDouble(longs.getNext());
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                if (chunk.length < length) {
+                    chunk = new long[Math.max(length, BATCH_SIZE)];
+                }
+                int n = longs.getNextBatch(chunk, 0, length);
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = mapper.applyAsDouble(chunk[i]);
+                }
+                return n;
+            }
+        });
+    }
+
+    @Override
+    public PrimitiveIterator.OfDouble iterator() {
+        return new PrimitiveIterator.OfDouble() {
+            @Override
+            public boolean hasNext() {
+                return DoubleStage.this.hasNext();
+            }
+
+            @Override
+            public double nextDouble() {
+                //some stages only produce a value once hasNext() has found it
+                if (!DoubleStage.this.hasNext())
+                    throw new NoSuchElementException();
+                return getNext();
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream map(DoubleUnaryOperator mapper) {
+        return new DoubleStage(this) {
+            @Override
+            public double getNext() {
+                return mapper.applyAsDouble(upstream.getNext());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, length);
+                for (int i = offset; i < offset + n; i++) {
+                    buffer[i] = mapper.applyAsDouble(buffer[i]);
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream filter(DoublePredicate pred) {
+        return new DoubleStage(this) {
+            boolean holdingValidValue = false;
+            double value = -1;
+
+            @Override
+            public double getNext() {
+                if (!holdingValidValue)
+                    throw new RuntimeException("filter has no valid values");
+                holdingValidValue = false; //consume the value
+                return value;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (holdingValidValue)
+                    return true;
+                while (upstream.hasNext()) {
+                    double upstreamVal = upstream.getNext();
+                    if (pred.test(upstreamVal)) {
+                        holdingValidValue = true;
+                        value = upstreamVal;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                //read straight into the output, then compact the passing values towards the front
+                while (n < length) {
+                    int wanted = length - n;
+                    int read = upstream.getNextBatch(buffer, offset + n, wanted);
+                    int end = offset + n + read;
+                    for (int i = offset + n; i < end; i++) {
+                        if (pred.test(buffer[i])) {
+                            buffer[offset + n++] = buffer[i];
+                        }
+                    }
+                    if (read < wanted)
+                        break;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream sorted() {
+        return new DoubleStage(this) {
+            double[] values;
+            int size = 0;
+            int pos = 0;
+
+            @Override
+            public double getNext() {
+                return values[pos++];
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (values == null) {
+                    //can't know the smallest element until we've seen all of them
+                    values = new double[BATCH_SIZE];
+                    int read;
+                    while ((read = upstream.getNextBatch(values, size, values.length - size)) > 0) {
+                        size += read;
+                        if (size == values.length) {
+                            values = Arrays.copyOf(values, 2 * size);
+                        }
+                    }
+                    Arrays.sort(values, 0, size);
+                }
+                return pos < size;
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                hasNext();
+                int n = Math.min(length, size - pos);
+                System.arraycopy(values, pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException(String.format("Cannot limit to %d elements", limit));
+
+        return new DoubleStage(this) {
+            long remaining = limit;
+
+            @Override
+            public double getNext() {
+                remaining--;
+                return upstream.getNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0 && upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, (int) Math.min(length, remaining));
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream takeWhile(DoublePredicate pred) {
+        return new DoubleStage(this) {
+            boolean dead = false;
+            boolean holdingValidValue = false;
+            double value = -1;
+
+            @Override
+            public double getNext() {
+                if (!holdingValidValue || dead)
+                    throw new RuntimeException("takeWhile not holding a valid value");
+                holdingValidValue = false;
+                return value;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (dead)
+                    return false;
+                if (holdingValidValue)
+                    return true;
+                if (!upstream.hasNext())
+                    return false;
+                double upstreamVal = upstream.getNext();
+                if (pred.test(upstreamVal)) {
+                    holdingValidValue = true;
+                    value = upstreamVal;
+                    return true;
+                } else {
+                    dead = true;
+                    return false;
+                }
+            }
+
+            /**
+             * Note that this reads upstream a batch at a time, so it may consume up to {@code length} elements past
+             * the first one that fails the predicate
+             */
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                if (dead)
+                    return 0;
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                int read = upstream.getNextBatch(buffer, offset + n, length - n);
+                for (int i = 0; i < read; i++) {
+                    if (!pred.test(buffer[offset + n])) {
+                        dead = true;
+                        break;
+                    }
+                    n++;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream skip(long skip) {
+        if (skip < 0)
+            throw new IllegalArgumentException(String.format("Cannot skip %d elements", skip));
+
+        return new DoubleStage(this) {
+            long toSkip = skip;
+
+            {
+                //anonymous initializer
+                double[] discarded = new double[(int) Math.min(toSkip, BATCH_SIZE)];
+                while (toSkip > 0) {
+                    int read = upstream.getNextBatch(discarded, 0, (int) Math.min(toSkip, discarded.length));
+                    if (read == 0)
+                        break;
+                    toSkip -= read;
+                }
+            }
+
+            @Override
+            public double getNext() {
+                return upstream.getNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(double[] buffer, int offset, int length) {
+                return upstream.getNextBatch(buffer, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public long count() {
+        double[] buffer = new double[BATCH_SIZE];
+        long total = 0;
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public double fold(double identity, DoubleBinaryOperator reducer) {
+        double val = identity;
+        double[] buffer = new double[BATCH_SIZE];
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = reducer.applyAsDouble(val, buffer[i]);
+            }
+        }
+        return val;
+    }
+
+    @Override
+    public OptionalDouble reduce(DoubleBinaryOperator binaryOperator) {
+        double[] buffer = new double[BATCH_SIZE];
+        int read = getNextBatch(buffer, 0, buffer.length);
+        if (read == 0)
+            return OptionalDouble.empty();
+        double val = buffer[0];
+        for (int i = 1; i < read; i++) {
+            val = binaryOperator.applyAsDouble(val, buffer[i]);
+        }
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = binaryOperator.applyAsDouble(val, buffer[i]);
+            }
+        }
+        return OptionalDouble.of(val);
+    }
+
+    @Override
+    public double sum() {
+        return total().sum();
+    }
+
+    @Override
+    public OptionalDouble average() {
+        CompensatedDoubleSum total = total();
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    private CompensatedDoubleSum total() {
+        CompensatedDoubleSum total = new CompensatedDoubleSum();
+        double[] buffer = new double[BATCH_SIZE];
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total.addAll(buffer, 0, read);
+        }
+        return total;
+    }
+
+    @Override
+    public double[] toArray() {
+        double[] values = new double[BATCH_SIZE];
+        int size = 0;
+        int read;
+        while ((read = getNextBatch(values, size, values.length - size)) > 0) {
+            size += read;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Where a {@link DoublePullStream} starts, reading from a plain {@link DoubleSource}
+     */
+    static class HeadStage extends DoubleStage {
+        HeadStage(DoubleSource upstream) {
+            super(upstream);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return upstream.hasNext();
+        }
+
+        @Override
+        public double getNext() {
+            return upstream.getNext();
+        }
+
+        @Override
+        public int getNextBatch(double[] buffer, int offset, int length) {
+            return upstream.getNextBatch(buffer, offset, length);
+        }
+    }
+}
@@ -3,7 +3,27 @@ package com.forsythe.pullstream;
 public class HeadStage extends Stage {
 
     public HeadStage(Source upstream) {
-        super(upstream);
+        this("source", upstream);
+    }
+
+    public HeadStage(String name, Source upstream) {
+        super(name, upstream);
+    }
+
+    @Override
+    public int characteristics() {
+        return upstream.characteristics();
+    }
+
+    @Override
+    public long exactSize() {
+        return upstream.exactSize();
+    }
+
+    @Override
+    String describe() {
+        long size = exactSize();
+        return size < 0 ? name : String.format("%s[%d]", name, size);
     }
 
     @Override
@@ -15,4 +35,9 @@ public class HeadStage extends Stage {
     public int getNext() {
         return upstream.getNext();
     }
+
+    @Override
+    public int getNextBatch(int[] buffer, int offset, int length) {
+        return upstream.getNextBatch(buffer, offset, length);
+    }
 }
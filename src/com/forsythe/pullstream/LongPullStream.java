@@ -0,0 +1,133 @@
+package com.forsythe.pullstream;
+
+import com.forsythe.util.LongRanges;
+
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongPredicate;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A single use lazy stream of {@code long}s, built from the same kind of stages as {@link PullStream}, so 64-bit
+ * values never get boxed
+ */
+public interface LongPullStream extends LongSource, Iterable<Long> {
+    static LongPullStream of(long... nums) {
+        return new LongStage.HeadStage(new LongSource() {
+            int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < nums.length;
+            }
+
+            @Override
+            public long getNext() {
+                return nums[pos++];
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                int n = Math.min(length, nums.length - pos);
+                System.arraycopy(nums, pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
+        });
+    }
+
+    static LongPullStream fromRange(long startIncl, long endExcl) {
+        return new LongStage.HeadStage(new LongSource() {
+            long cur = startIncl;
+
+            @Override
+            public boolean hasNext() {
+                return cur < endExcl;
+            }
+
+            @Override
+            public long getNext() {
+                return cur++;
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                int n = LongRanges.step(cur, endExcl, length);
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = cur + i;
+                }
+                cur += n;
+                return n;
+            }
+        });
+    }
+
+    static LongPullStream generator(long base, LongUnaryOperator generator) {
+        return new LongStage.HeadStage(new LongSource() {
+            long val = base;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public long getNext() {
+                long retVal = val;
+                val = generator.applyAsLong(val);
+                return retVal;
+            }
+        });
+    }
+
+    LongPullStream map(LongUnaryOperator mapper);
+
+    LongPullStream filter(LongPredicate pred);
+
+    LongPullStream sorted();
+
+    LongPullStream limit(long limit);
+
+    LongPullStream takeWhile(LongPredicate pred);
+
+    LongPullStream skip(long skip);
+
+    DoublePullStream mapToDouble(LongToDoubleFunction mapper);
+
+    default DoublePullStream asDoubleStream() {
+        return mapToDouble(l -> l);
+    }
+
+    long count();
+
+    long fold(long identity, LongBinaryOperator reducer);
+
+    OptionalLong reduce(LongBinaryOperator binaryOperator);
+
+    default OptionalLong min() {
+        return reduce(Math::min);
+    }
+
+    default OptionalLong max() {
+        return reduce(Math::max);
+    }
+
+    /**
+     * @throws ArithmeticException If the total doesn't fit in a long. It's only checked at the end, so the total can
+     *                             go out of range and come back along the way
+     */
+    long sum();
+
+    /**
+     * Can't overflow, even when the sum of the elements doesn't fit in a long
+     */
+    OptionalDouble average();
+
+    long[] toArray();
+
+    @Override
+    PrimitiveIterator.OfLong iterator();
+}
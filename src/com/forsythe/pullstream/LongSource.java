@@ -0,0 +1,23 @@
+package com.forsythe.pullstream;
+
+/**
+ * The {@code long} counterpart of {@link Source}
+ */
+public interface LongSource {
+    boolean hasNext();
+
+    long getNext();
+
+    /**
+     * Bulk version of {@link #getNext()}, see {@link Source#getNextBatch(int[], int, int)}
+     *
+     * @return The number of elements written
+     */
+    default int getNextBatch(long[] buffer, int offset, int length) {
+        int n = 0;
+        while (n < length && hasNext()) {
+            buffer[offset + n++] = getNext();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,420 @@
+package com.forsythe.pullstream;
+
+import com.forsythe.util.ExactLongSum;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.function.*;
+
+/**
+ * The {@code long} counterpart of {@link Stage}, without profiling or the int-only operations
+ */
+public abstract class LongStage implements LongPullStream {
+    static final int BATCH_SIZE = Stage.BATCH_SIZE;
+
+    protected LongSource upstream;
+
+    protected LongStage(LongSource upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code ints} produces
+     */
+    static LongPullStream fromInts(Source ints, IntToLongFunction mapper) {
+        return new HeadStage(new LongSource() {
+            int[] chunk = new int[0];
+
+            @Override
+            public boolean hasNext() {
+                return ints.hasNext();
+            }
+
+            @Override
+            public long getNext() {
+                return mapper.applyAsLong(ints.getNext());
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                if (chunk.length < length) {
+                    chunk = new int[Math.max(length, BATCH_SIZE)];
+                }
+                int n = ints.getNextBatch(chunk, 0, length);
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = mapper.applyAsLong(chunk[i]);
+                }
+                return n;
+            }
+        });
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return LongStage.this.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                //some stages only produce a value once hasNext() has found it
+                if (!LongStage.this.hasNext())
+                    throw new NoSuchElementException();
+                return getNext();
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream map(LongUnaryOperator mapper) {
+        return new LongStage(this) {
+            @Override
+            public long getNext() {
+                return mapper.applyAsLong(upstream.getNext());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, length);
+                for (int i = offset; i < offset + n; i++) {
+                    buffer[i] = mapper.applyAsLong(buffer[i]);
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream filter(LongPredicate pred) {
+        return new LongStage(this) {
+            boolean holdingValidValue = false;
+            long value = -1;
+
+            @Override
+            public long getNext() {
+                if (!holdingValidValue)
+                    throw new RuntimeException("filter has no valid values");
+                holdingValidValue = false; //consume the value
+                return value;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (holdingValidValue)
+                    return true;
+                while (upstream.hasNext()) {
+                    long upstreamVal = upstream.getNext();
+                    if (pred.test(upstreamVal)) {
+                        holdingValidValue = true;
+                        value = upstreamVal;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                //read straight into the output, then compact the passing values towards the front
+                while (n < length) {
+                    int wanted = length - n;
+                    int read = upstream.getNextBatch(buffer, offset + n, wanted);
+                    int end = offset + n + read;
+                    for (int i = offset + n; i < end; i++) {
+                        if (pred.test(buffer[i])) {
+                            buffer[offset + n++] = buffer[i];
+                        }
+                    }
+                    if (read < wanted)
+                        break;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream sorted() {
+        return new LongStage(this) {
+            long[] values;
+            int size = 0;
+            int pos = 0;
+
+            @Override
+            public long getNext() {
+                return values[pos++];
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (values == null) {
+                    //can't know the smallest element until we've seen all of them
+                    values = new long[BATCH_SIZE];
+                    int read;
+                    while ((read = upstream.getNextBatch(values, size, values.length - size)) > 0) {
+                        size += read;
+                        if (size == values.length) {
+                            values = Arrays.copyOf(values, 2 * size);
+                        }
+                    }
+                    Arrays.sort(values, 0, size);
+                }
+                return pos < size;
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                hasNext();
+                int n = Math.min(length, size - pos);
+                System.arraycopy(values, pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException(String.format("Cannot limit to %d elements", limit));
+
+        return new LongStage(this) {
+            long remaining = limit;
+
+            @Override
+            public long getNext() {
+                remaining--;
+                return upstream.getNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0 && upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, (int) Math.min(length, remaining));
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream takeWhile(LongPredicate pred) {
+        return new LongStage(this) {
+            boolean dead = false;
+            boolean holdingValidValue = false;
+            long value = -1;
+
+            @Override
+            public long getNext() {
+                if (!holdingValidValue || dead)
+                    throw new RuntimeException("takeWhile not holding a valid value");
+                holdingValidValue = false;
+                return value;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (dead)
+                    return false;
+                if (holdingValidValue)
+                    return true;
+                if (!upstream.hasNext())
+                    return false;
+                long upstreamVal = upstream.getNext();
+                if (pred.test(upstreamVal)) {
+                    holdingValidValue = true;
+                    value = upstreamVal;
+                    return true;
+                } else {
+                    dead = true;
+                    return false;
+                }
+            }
+
+            /**
+             * Note that this reads upstream a batch at a time, so it may consume up to {@code length} elements past
+             * the first one that fails the predicate
+             */
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                if (dead)
+                    return 0;
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                int read = upstream.getNextBatch(buffer, offset + n, length - n);
+                for (int i = 0; i < read; i++) {
+                    if (!pred.test(buffer[offset + n])) {
+                        dead = true;
+                        break;
+                    }
+                    n++;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public LongPullStream skip(long skip) {
+        if (skip < 0)
+            throw new IllegalArgumentException(String.format("Cannot skip %d elements", skip));
+
+        return new LongStage(this) {
+            long toSkip = skip;
+
+            {
+                //anonymous initializer
+                long[] discarded = new long[(int) Math.min(toSkip, BATCH_SIZE)];
+                while (toSkip > 0) {
+                    int read = upstream.getNextBatch(discarded, 0, (int) Math.min(toSkip, discarded.length));
+                    if (read == 0)
+                        break;
+                    toSkip -= read;
+                }
+            }
+
+            @Override
+            public long getNext() {
+                return upstream.getNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return upstream.hasNext();
+            }
+
+            @Override
+            public int getNextBatch(long[] buffer, int offset, int length) {
+                return upstream.getNextBatch(buffer, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public DoublePullStream mapToDouble(LongToDoubleFunction mapper) {
+        return DoubleStage.fromLongs(this, mapper);
+    }
+
+    @Override
+    public long count() {
+        long[] buffer = new long[BATCH_SIZE];
+        long total = 0;
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public long fold(long identity, LongBinaryOperator reducer) {
+        long val = identity;
+        long[] buffer = new long[BATCH_SIZE];
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = reducer.applyAsLong(val, buffer[i]);
+            }
+        }
+        return val;
+    }
+
+    @Override
+    public OptionalLong reduce(LongBinaryOperator binaryOperator) {
+        long[] buffer = new long[BATCH_SIZE];
+        int read = getNextBatch(buffer, 0, buffer.length);
+        if (read == 0)
+            return OptionalLong.empty();
+        long val = buffer[0];
+        for (int i = 1; i < read; i++) {
+            val = binaryOperator.applyAsLong(val, buffer[i]);
+        }
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = binaryOperator.applyAsLong(val, buffer[i]);
+            }
+        }
+        return OptionalLong.of(val);
+    }
+
+    @Override
+    public long sum() {
+        return total().longValueExact();
+    }
+
+    @Override
+    public OptionalDouble average() {
+        ExactLongSum total = total();
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    private ExactLongSum total() {
+        ExactLongSum total = new ExactLongSum();
+        long[] buffer = new long[BATCH_SIZE];
+        int read;
+        while ((read = getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total.addAll(buffer, 0, read);
+        }
+        return total;
+    }
+
+    @Override
+    public long[] toArray() {
+        long[] values = new long[BATCH_SIZE];
+        int size = 0;
+        int read;
+        while ((read = getNextBatch(values, size, values.length - size)) > 0) {
+            size += read;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Where a {@link LongPullStream} starts, reading from a plain {@link LongSource}
+     */
+    static class HeadStage extends LongStage {
+        HeadStage(LongSource upstream) {
+            super(upstream);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return upstream.hasNext();
+        }
+
+        @Override
+        public long getNext() {
+            return upstream.getNext();
+        }
+
+        @Override
+        public int getNextBatch(long[] buffer, int offset, int length) {
+            return upstream.getNextBatch(buffer, offset, length);
+        }
+    }
+}
@@ -1,51 +1,169 @@
 package com.forsythe.pullstream;
 
+import com.forsythe.util.Characteristics;
+import com.forsythe.util.IntChannelWriter;
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntList;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.MappedIntFile;
+import com.forsythe.util.PipelineProfile;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
 import java.util.OptionalInt;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.*;
 
 /**
- * Interface representing a single use lazy stream of integers
+ * Interface representing a single use lazy stream of integers.
+ * <p>
+ * Streams that stop being read before the end should be closed, like a {@link java.util.stream.Stream}, so that
+ * stages holding resources, e.g. a sort that has spilled to disk, can let go of them straight away
  */
-public interface PullStream extends Source, Iterable<Integer> {
+public interface PullStream extends Source, Iterable<Integer>, AutoCloseable {
     static PullStream fromList(List<Integer> input) {
-        return new HeadStage(new Source() {
-            Iterator<Integer> inputIter = input.iterator();
+        return new HeadStage("fromList", listSource(input, 0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return A source for the elements of {@code input} from index {@code from} up to {@code to}, or as far as the
+     * list goes
+     */
+    private static SliceableSource listSource(List<Integer> input, int from, int to) {
+        return new SliceableSource() {
+            //a random access list is read by index, so it can be skipped into without walking it
+            final boolean indexed = input instanceof RandomAccess;
+            Iterator<Integer> inputIter = indexed ? null : input.iterator();
+            int consumed = from;
+            final int end = to;
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED;
+            }
+
+            @Override
+            public long exactSize() {
+                return Math.max(0, Math.min(end, input.size()) - consumed);
+            }
+
+            @Override
+            public SliceableSource skipped(int n) {
+                if (!indexed)
+                    return null;
+                return listSource(input, (int) Math.min((long) consumed + n, end), end);
+            }
+
+            @Override
+            public SliceableSource limited(int n) {
+                //an iterator that has started can't be copied
+                if (!indexed && consumed > 0)
+                    return null;
+                return listSource(input, consumed, (int) Math.min(end, (long) consumed + n));
+            }
 
             @Override
             public boolean hasNext() {
-                return inputIter.hasNext();
+                return consumed < end && (indexed ? consumed < input.size() : inputIter.hasNext());
             }
 
             @Override
             public int getNext() {
-                return inputIter.next();
+                int value = indexed ? input.get(consumed) : inputIter.next();
+                consumed++;
+                return value;
             }
-        });
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                if (indexed) {
+                    int n = Math.max(0, Math.min(length, Math.min(end, input.size()) - consumed));
+                    for (int i = 0; i < n; i++) {
+                        buffer[offset + i] = input.get(consumed + i);
+                    }
+                    consumed += n;
+                    return n;
+                }
+                int n = 0;
+                while (n < length && consumed < end && inputIter.hasNext()) {
+                    buffer[offset + n++] = inputIter.next();
+                    consumed++;
+                }
+                return n;
+            }
+        };
     }
 
     static PullStream fromRange(int startIncl, int endExcl) {
-        return new HeadStage(new Source() {
+        return new HeadStage("fromRange", rangeSource(startIncl, endExcl));
+    }
+
+    private static SliceableSource rangeSource(int startIncl, int endExcl) {
+        return new SliceableSource() {
             int cur = startIncl;
+            final int end = endExcl;
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED | Characteristics.SORTED | Characteristics.DISTINCT;
+            }
+
+            @Override
+            public long exactSize() {
+                return Math.max(0, (long) end - cur);
+            }
+
+            @Override
+            public SliceableSource skipped(int n) {
+                return rangeSource((int) Math.max(cur, Math.min((long) cur + n, end)), end);
+            }
+
+            @Override
+            public SliceableSource limited(int n) {
+                return rangeSource(cur, (int) Math.min(end, (long) cur + n));
+            }
 
             @Override
             public boolean hasNext() {
-                return cur < endExcl;
+                return cur < end;
             }
 
             @Override
             public int getNext() {
                 return cur++;
             }
-        });
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = (int) Math.max(0, Math.min(length, (long) end - cur));
+                for (int i = 0; i < n; i++) {
+                    buffer[offset + i] = cur + i;
+                }
+                cur += n;
+                return n;
+            }
+        };
     }
 
     static PullStream generator(int base, IntUnaryOperator generator) {
-        return new HeadStage(new Source() {
+        return new HeadStage("generator", new Source() {
             int val = base;
 
+            @Override
+            public int characteristics() {
+                return Characteristics.INFINITE;
+            }
+
             @Override
             public boolean hasNext() {
                 return true;
@@ -57,31 +175,253 @@ public interface PullStream extends Source, Iterable<Integer> {
                 val = generator.applyAsInt(val);
                 return retVal;
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    buffer[offset + i] = val;
+                    val = generator.applyAsInt(val);
+                }
+                return length;
+            }
         });
     }
 
+    /**
+     * Streams a binary file of int32 values stored in the given byte order. The file is opened on the first read and
+     * mapped into memory a segment at a time, so the OS pages it in as it's read and it's never loaded onto the heap.
+     * It's closed once the last value has been read, or when the stream is {@link #close()}d
+     *
+     * @throws IllegalArgumentException If the file's length isn't a whole number of ints
+     * @throws UncheckedIOException     If the file can't be read
+     */
+    static PullStream fromMappedFile(Path path, ByteOrder order) {
+        return new HeadStage("fromMappedFile", mappedFileSource(path, order, 0, MappedIntFile.length(path)));
+    }
+
+    /**
+     * @return A source for the ints from index {@code from} up to {@code to} in the file
+     */
+    private static SliceableSource mappedFileSource(Path path, ByteOrder order, long from, long to) {
+        return new SliceableSource() {
+            MappedIntFile file;
+            boolean finished = false;
+            final int[] chunk = new int[(int) Math.min(Stage.BATCH_SIZE, to - from)];
+            int pos = 0;
+            int size = 0;
+            long readFromFile = 0;
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED;
+            }
+
+            @Override
+            public long exactSize() {
+                return to - from - readFromFile + (size - pos);
+            }
+
+            @Override
+            public SliceableSource skipped(int n) {
+                //the part of the file to read can only be narrowed down before it's opened
+                if (file != null || finished)
+                    return null;
+                return mappedFileSource(path, order, Math.min(to, from + n), to);
+            }
+
+            @Override
+            public SliceableSource limited(int n) {
+                if (file != null || finished)
+                    return null;
+                return mappedFileSource(path, order, from, Math.min(to, from + n));
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (pos < size)
+                    return true;
+                pos = 0;
+                size = read(chunk, 0, chunk.length);
+                return size > 0;
+            }
+
+            @Override
+            public int getNext() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return chunk[pos++];
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = Math.min(length, size - pos);
+                System.arraycopy(chunk, pos, buffer, offset, n);
+                pos += n;
+                return n + read(buffer, offset + n, length - n);
+            }
+
+            @Override
+            public void close() {
+                finished = true;
+                if (file != null) {
+                    file.close();
+                }
+            }
+
+            /**
+             * Reads straight from the file, closing it once it runs out
+             */
+            private int read(int[] buffer, int offset, int length) {
+                if (finished || length == 0)
+                    return 0;
+                if (file == null) {
+                    file = MappedIntFile.open(path, order, from, to);
+                }
+                int n = file.read(buffer, offset, length);
+                readFromFile += n;
+                //e.g. a limit pushed down into the file stops here, and may never ask for more
+                if (n < length || readFromFile == to - from) {
+                    close();
+                }
+                return n;
+            }
+        };
+    }
+
     PullStream flatMap(IntFunction<Iterable<Integer>> mapper);
 
+    /**
+     * Like {@link #flatMap(IntFunction)}, but the mapper hands its outputs to a callback, so there's no per-element
+     * allocation. Outputs for one upstream element are buffered until they've all been pulled
+     */
+    PullStream mapMulti(IntMapMultiConsumer mapper);
+
     PullStream map(IntUnaryOperator mapper);
 
     PullStream filter(IntPredicate pred);
 
-    PullStream sorted(Comparator<Integer> comparator);
+    PullStream sorted(IntComparator comparator);
+
+    /**
+     * Like {@link #sorted(IntComparator)}, but holds roughly at most {@code memoryBudgetBytes} of elements in memory.
+     * Beyond that, sorted runs are spilled to temp files, and merged back together lazily as the output is pulled,
+     * so the first element is available as soon as the input has been read
+     */
+    PullStream sorted(IntComparator comparator, long memoryBudgetBytes);
+
+    default PullStream sorted(Comparator<Integer> comparator) {
+        return sorted(IntComparator.from(comparator));
+    }
 
     default PullStream sorted() {
-        return sorted(Integer::compare);
+        return sorted(IntComparator.NATURAL_ORDER);
     }
 
     PullStream limit(int limit);
 
+    /**
+     * Same output as {@code sorted(comparator).limit(k)}, but only ever holds {@code k} elements, in a bounded heap.
+     * Calling {@link #limit(int)} straight after {@link #sorted(IntComparator)} does this automatically
+     */
+    PullStream topK(int k, IntComparator comparator);
+
+    default PullStream topK(int k, Comparator<Integer> comparator) {
+        return topK(k, IntComparator.from(comparator));
+    }
+
     PullStream takeWhile(IntPredicate pred);
 
     PullStream skip(int skip);
 
-    default int count() {
-        return fold(0, (id, el) -> id + 1);
+    /**
+     * Windows of {@code size} consecutive elements, starting every {@code slide} elements, to be aggregated with e.g.
+     * {@link WindowedPullStream#max()}. Each aggregate is produced as soon as the last element of its window is
+     * pulled, and an incomplete window at the end is dropped. A slide bigger than the size leaves gaps between the
+     * windows
+     */
+    WindowedPullStream window(int size, int slide);
+
+    /**
+     * Tumbling windows, i.e. {@code window(size, size)}
+     */
+    default WindowedPullStream window(int size) {
+        return window(size, size);
+    }
+
+    /**
+     * Passes on each element the first time it's seen, and drops any repeats. The elements seen so far are kept in a
+     * primitive hash set, unless this comes straight after {@link #sorted()} (in natural or reverse order), in which
+     * case only the last element is
+     *
+     * @param offHeap Whether to keep the hash set in a direct buffer, off the Java heap
+     */
+    PullStream distinct(boolean offHeap);
+
+    default PullStream distinct() {
+        return distinct(false);
+    }
+
+    LongPullStream mapToLong(IntToLongFunction mapper);
+
+    default LongPullStream asLongStream() {
+        return mapToLong(i -> i);
+    }
+
+    DoublePullStream mapToDouble(IntToDoubleFunction mapper);
+
+    default DoublePullStream asDoubleStream() {
+        return mapToDouble(i -> i);
     }
 
+    /**
+     * Runs everything upstream of this stage on a background daemon thread, which works ahead of the consumer by up
+     * to {@code bufferSize} elements. The thread only starts once the first element is pulled. Exceptions thrown
+     * upstream are rethrown to the consumer once it reaches them
+     */
+    PullStream async(int bufferSize);
+
+    /**
+     * Like {@link #async(int)}, but the background thread comes from the given factory
+     */
+    PullStream async(int bufferSize, ThreadFactory threadFactory);
+
+    /**
+     * Switches on per-stage instrumentation for this stage, everything upstream of it, and any stages added after it.
+     * The terminal operations and {@link #iterator()} then count the elements going in and out of each stage, sample
+     * the time spent in each one, and track how many elements stages like {@link #sorted()} hold on to. A limit added
+     * after a profiled sort isn't turned into a {@link #topK(int, IntComparator)}, so the sort shows up as written
+     */
+    PullStream profiled();
+
+    /**
+     * @return What the stages from the source up to this one have recorded since {@link #profiled()} was switched
+     * on. {@link PipelineProfile#explain()} gives a readable summary
+     */
+    PipelineProfile profile();
+
+    /**
+     * Lets go of whatever this stage and everything upstream of it still hold, e.g. a sort's spilled runs. Reading
+     * the stream afterwards isn't supported
+     */
+    @Override
+    void close();
+
+    /**
+     * @return The stages from the source up to this one, e.g. {@code "fromRange[10] -> map -> sorted"} for
+     * {@code fromRange(0, 100).map(f).skip(90).sorted()}: the range did the skip itself. Stages are rewritten as
+     * they're added, by the same rules {@link com.forsythe.pushstream.PushStream#plan()} applies, except while
+     * profiling, so each stage shows up as it was written
+     */
+    String plan();
+
+    /**
+     * On a {@link Characteristics#SIZED} stream, the answer is known without pulling anything, so nothing upstream
+     * runs (unless it's being profiled)
+     *
+     * @throws ArithmeticException If there are more than {@link Integer#MAX_VALUE} elements
+     */
+    int count();
+
     int fold(int identity, IntBinaryOperator reducer);
 
     <T> void fold(T identity, ObjIntConsumer<T> objIntConsumer);
@@ -104,5 +444,66 @@ public interface PullStream extends Source, Iterable<Integer> {
         return reduce((a, b) -> comparator.compare(a, b) <= 0 ? b : a);
     }
 
-    List<Integer> toList();
+    /**
+     * Adds up the elements as longs, so the total doesn't wrap around when it's bigger than an int
+     */
+    long sum();
+
+    OptionalDouble average();
+
+    /**
+     * Counts the elements with each key, in a primitive hash map
+     */
+    IntIntMap countBy(IntUnaryOperator key);
+
+    /**
+     * Counts the elements with each key, where every key is known to be in {@code [fromKey, toKey)}, in an array with
+     * a slot per key. See {@link IntIntMap#dense(int, int)}
+     *
+     * @throws IllegalArgumentException If an element's key falls outside the range
+     */
+    IntIntMap countBy(IntUnaryOperator key, int fromKey, int toKey);
+
+    /**
+     * Folds the elements with each key separately, starting from {@code identity}, in a primitive hash map.
+     */
+    IntIntMap groupingFold(IntUnaryOperator key, int identity, IntBinaryOperator op);
+
+    /**
+     * Same as {@link #groupingFold(IntUnaryOperator, int, IntBinaryOperator)}, where every key is known to be in
+     * {@code [fromKey, toKey)}, in an array with a slot per key
+     *
+     * @throws IllegalArgumentException If an element's key falls outside the range
+     */
+    IntIntMap groupingFold(IntUnaryOperator key, int fromKey, int toKey, int identity, IntBinaryOperator op);
+
+    IntList toList();
+
+    int[] toArray();
+
+    /**
+     * Writes every element to the channel as a binary int32 in the given byte order, so
+     * {@link #fromMappedFile(Path, ByteOrder)} can read it back. Elements are written in large blocks through one
+     * reusable direct buffer, so memory use stays constant. The channel is left open
+     *
+     * @return How many elements were written
+     * @throws UncheckedIOException If writing fails
+     */
+    long writeTo(WritableByteChannel channel, ByteOrder order);
+
+    default long writeTo(Path path, ByteOrder order) {
+        return writeTo(path, order, false);
+    }
+
+    /**
+     * Like {@link #writeTo(WritableByteChannel, ByteOrder)}, into a file that's created or truncated first
+     *
+     * @param fsync Whether to force the file's contents to the storage device before returning
+     */
+    default long writeTo(Path path, ByteOrder order, boolean fsync) {
+        return IntChannelWriter.writeFile(path, fsync, channel -> writeTo(channel, order));
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator();
 }
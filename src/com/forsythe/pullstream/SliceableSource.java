@@ -0,0 +1,21 @@
+package com.forsythe.pullstream;
+
+/**
+ * A source that can give a slice of what it has left without reading it, e.g. a range or a random access list. A
+ * {@link PullStream#skip(int)} or {@link PullStream#limit(int)} with nothing but maps between it and such a source is
+ * done by a sliced copy of the source, instead of by a stage of its own. The source itself is left as it is, so a
+ * stream that's already been handed out doesn't change under its holder
+ */
+interface SliceableSource extends Source {
+    /**
+     * @return A new source over what this one has left, minus the next {@code n} elements, or null if this source
+     * can't be sliced any more, e.g. because it has started reading
+     */
+    SliceableSource skipped(int n);
+
+    /**
+     * @return A new source over the next {@code n} elements this one has left, or null if this source can't be
+     * sliced any more
+     */
+    SliceableSource limited(int n);
+}
@@ -1,5 +1,7 @@
 package com.forsythe.pullstream;
 
+import com.forsythe.util.Characteristics;
+
 /**
  * Represents a source that can provide inputs
  */
@@ -7,4 +9,43 @@ public interface Source {
     boolean hasNext();
 
     int getNext();
+
+    /**
+     * @return What's known about the remaining elements, as a bitset of {@link Characteristics} flags. Stages pass on
+     * the ones their operation keeps, and use them to skip work or to fail fast, e.g. sorting an
+     * {@link Characteristics#INFINITE} stream throws instead of never returning
+     */
+    default int characteristics() {
+        return 0;
+    }
+
+    /**
+     * @return How many elements are left, if this is {@link Characteristics#SIZED}. Otherwise -1
+     */
+    default long exactSize() {
+        return -1;
+    }
+
+    /**
+     * Bulk version of {@link #getNext()}. Writes up to {@code length} elements into {@code buffer}, starting at
+     * {@code offset}. Fewer than {@code length} elements are only written if the source has run out.
+     * <p>
+     * Override this to avoid paying for a {@link #hasNext()}/{@link #getNext()} pair per element
+     *
+     * @return The number of elements written
+     */
+    default int getNextBatch(int[] buffer, int offset, int length) {
+        int n = 0;
+        while (n < length && hasNext()) {
+            buffer[offset + n++] = getNext();
+        }
+        return n;
+    }
+
+    /**
+     * Lets go of anything held outside the heap, e.g. temp files or an open file mapping, before the source has been
+     * read to the end
+     */
+    default void close() {
+    }
 }
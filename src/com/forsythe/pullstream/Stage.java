@@ -1,30 +1,190 @@
 package com.forsythe.pullstream;
 
+import com.forsythe.util.Characteristics;
+import com.forsythe.util.EdgeMeter;
+import com.forsythe.util.ExactLongSum;
+import com.forsythe.util.ExternalIntSorter;
+import com.forsythe.util.IntChannelWriter;
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntHashSet;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntList;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.IntRingBuffer;
+import com.forsythe.util.IntSortBuffer;
+import com.forsythe.util.IntTopK;
+import com.forsythe.util.PipelineProfile;
+import com.forsythe.util.StageMetrics;
+import com.forsythe.util.StageProfile;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.*;
 
+import static com.forsythe.util.Characteristics.*;
+
 public abstract class Stage implements PullStream {
+    /**
+     * How many elements the terminal operations pull from upstream at a time
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Stops the background thread behind an {@link #async(int)} stage that was dropped before being read to the end
+     */
+    private static final Cleaner ABANDONED_PRODUCERS = Cleaner.create();
+
     protected Source upstream;
 
+    /**
+     * What this stage does, e.g. "filter", for {@link #profile()}
+     */
+    final String name;
+
+    private final StageMetrics metrics = new StageMetrics();
+
+    /**
+     * Whether the link from upstream into this stage is metered, see {@link #profiled()}
+     */
+    private boolean profiled = false;
+
     protected Stage(Source upstream) {
+        this("stage", upstream);
+    }
+
+    protected Stage(String name, Source upstream) {
+        this.name = name;
+        if (upstream instanceof MeteredSource) {
+            //e.g. a map fused into the one before it takes over that map's upstream, but needs its own meter
+            upstream = ((MeteredSource) upstream).stage;
+        }
         this.upstream = upstream;
+        if (upstream instanceof Stage && ((Stage) upstream).profiled) {
+            //stages added onto a profiled pipeline are profiled too, including anything they read up front
+            meterUpstream();
+        }
     }
 
     @Override
-    public Iterator<Integer> iterator() {
-        return new Iterator<Integer>() {
+    public PrimitiveIterator.OfInt iterator() {
+        Source source = output();
+        return new PrimitiveIterator.OfInt() {
             @Override
             public boolean hasNext() {
-                return Stage.this.hasNext();
+                return source.hasNext();
             }
 
             @Override
-            public Integer next() {
-                return Stage.this.getNext();
+            public int nextInt() {
+                //some stages only produce a value once hasNext() has found it
+                if (!source.hasNext())
+                    throw new NoSuchElementException();
+                return source.getNext();
             }
         };
     }
 
+    /**
+     * Closes every stage, back to the source
+     */
+    @Override
+    public void close() {
+        upstream.close();
+    }
+
+    @Override
+    public PullStream profiled() {
+        for (Stage stage = this; stage != null; stage = stage.upstreamStage()) {
+            if (!stage.profiled && stage.upstreamStage() != null) {
+                stage.meterUpstream();
+            }
+            stage.profiled = true;
+        }
+        return this;
+    }
+
+    @Override
+    public PipelineProfile profile() {
+        List<StageProfile> stages = new ArrayList<>();
+        for (Stage stage = this; stage != null; stage = stage.upstreamStage()) {
+            stages.add(stage.metrics.snapshot(stage.name));
+        }
+        Collections.reverse(stages);
+        return new PipelineProfile(stages);
+    }
+
+    @Override
+    public String plan() {
+        List<String> stages = new ArrayList<>();
+        for (Stage stage = this; stage != null; stage = stage.upstreamStage()) {
+            stages.add(stage.describe());
+        }
+        Collections.reverse(stages);
+        return String.join(" -> ", stages);
+    }
+
+    /**
+     * @return The stage feeding this one, or null if it's fed by a plain {@link Source}
+     */
+    private Stage upstreamStage() {
+        if (upstream instanceof MeteredSource)
+            return ((MeteredSource) upstream).stage;
+        return upstream instanceof Stage ? (Stage) upstream : null;
+    }
+
+    private void meterUpstream() {
+        Stage stage = (Stage) upstream;
+        this.profiled = true;
+        this.upstream = new MeteredSource(stage, EdgeMeter.pulled(stage.metrics, metrics));
+    }
+
+    /**
+     * @return What the terminal operations should read from: this stage, metered if it's being profiled
+     */
+    private Source output() {
+        return profiled ? new MeteredSource(this, EdgeMeter.pulled(metrics, null)) : this;
+    }
+
+    /**
+     * Same as {@link #output()}, for a terminal operation that has to read everything
+     *
+     * @throws IllegalStateException If this stream is {@link Characteristics#INFINITE}, since it would never finish
+     */
+    private Source finiteOutput(String operation) {
+        rejectInfinite(this, operation);
+        return output();
+    }
+
+    private static void rejectInfinite(Source source, String operation) {
+        if (Characteristics.has(source.characteristics(), INFINITE))
+            throw new IllegalStateException(String.format("Cannot %s an infinite stream, limit it first", operation));
+    }
+
+    /**
+     * @return Whether this stage's output is already in {@code comparator}'s order, so sorting it would change nothing
+     */
+    private boolean alreadySorted(IntComparator comparator) {
+        return comparator == IntComparator.NATURAL_ORDER && Characteristics.has(characteristics(), SORTED);
+    }
+
+    /**
+     * @return The characteristics of everything from {@code upstream} sorted by {@code comparator}
+     */
+    private static int sortedCharacteristics(Source upstream, IntComparator comparator) {
+        int sorted = comparator == IntComparator.NATURAL_ORDER ? SORTED : 0;
+        return upstream.characteristics() & DISTINCT | sorted;
+    }
+
+    /**
+     * @return How many elements this stage is currently holding on to, for {@link #profile()}
+     */
+    int buffered() {
+        return 0;
+    }
+
     @Override
     public PullStream flatMap(IntFunction<Iterable<Integer>> mapper) {
         //an iterator of iterators :)
@@ -32,9 +192,14 @@ public abstract class Stage implements PullStream {
         Either my current generatedStream has content, or I must try to refresh it with another generatedStream
         based on upstream's output. If both exhausted, no more elements left
          */
-        return new Stage(this) {
+        return new Stage("flatMap", this) {
             Iterator<Integer> generatedStreamIterator;
 
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & INFINITE;
+            }
+
             @Override
             public int getNext() {
                 return generatedStreamIterator.next();
@@ -53,13 +218,99 @@ public abstract class Stage implements PullStream {
                 generatedStreamIterator = mapper.apply(upstream.getNext()).iterator();
                 return generatedStreamIterator.hasNext();
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = 0;
+                while (n < length) {
+                    if (generatedStreamIterator != null && generatedStreamIterator.hasNext()) {
+                        buffer[offset + n++] = generatedStreamIterator.next();
+                    } else if (upstream.hasNext()) {
+                        generatedStreamIterator = mapper.apply(upstream.getNext()).iterator();
+                    } else {
+                        break;
+                    }
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public PullStream mapMulti(IntMapMultiConsumer mapper) {
+        return new Stage("mapMulti", this) {
+            final IntList pending = new IntList();
+            final IntConsumer emit = pending::addInt;
+            int pos = 0;
+
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & INFINITE;
+            }
+
+            @Override
+            int buffered() {
+                return pending.size() - pos;
+            }
+
+            @Override
+            public int getNext() {
+                return pending.getInt(pos++);
+            }
+
+            @Override
+            public boolean hasNext() {
+                //keep expanding upstream elements until one of them produces something
+                while (pos == pending.size()) {
+                    if (!upstream.hasNext())
+                        return false;
+                    pending.clear();
+                    pos = 0;
+                    mapper.accept(upstream.getNext(), emit);
+                }
+                return true;
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = 0;
+                while (n < length && hasNext()) {
+                    int available = Math.min(length - n, pending.size() - pos);
+                    for (int i = 0; i < available; i++) {
+                        buffer[offset + n++] = pending.getInt(pos++);
+                    }
+                }
+                return n;
+            }
         };
     }
 
     @Override
     public PullStream map(IntUnaryOperator mapper) {
-        return new Stage(this) {
+        IntUnaryOperator previous = fusibleMapper();
+        if (previous != null) {
+            //a map has no state of its own, so compose with it rather than stacking another stage on top
+            return mapStage(upstream, previous.andThen(mapper));
+        }
+        return mapStage(this, mapper);
+    }
+
+    private static Stage mapStage(Source upstream, IntUnaryOperator mapper) {
+        return new Stage("map", upstream) {
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & (SIZED | INFINITE);
+            }
+
+            @Override
+            public long exactSize() {
+                return upstream.exactSize();
+            }
 
+            @Override
+            IntUnaryOperator fusibleMapper() {
+                return mapper;
+            }
 
             @Override
             public int getNext() {
@@ -70,20 +321,73 @@ public abstract class Stage implements PullStream {
             public boolean hasNext() {
                 return upstream.hasNext();
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, length);
+                for (int i = offset; i < offset + n; i++) {
+                    buffer[i] = mapper.applyAsInt(buffer[i]);
+                }
+                return n;
+            }
         };
     }
 
 
     @Override
     public PullStream filter(IntPredicate pred) {
-        return new Stage(this) {
+        return filterStage("filter", pred, () -> 0, 0);
+    }
+
+    @Override
+    public PullStream distinct(boolean offHeap) {
+        if (Characteristics.has(characteristics(), DISTINCT))
+            return this;
+        IntComparator sortedBy = sortComparator();
+        if (sortedBy == IntComparator.NATURAL_ORDER || sortedBy == IntComparator.REVERSE_ORDER) {
+            //equal values come out of the sort next to each other, so there's no need to remember them all
+            IntPredicate changed = new IntPredicate() {
+                boolean sawValue = false;
+                int last;
+
+                @Override
+                public boolean test(int value) {
+                    if (sawValue && value == last)
+                        return false;
+                    sawValue = true;
+                    last = value;
+                    return true;
+                }
+            };
+            return filterStage("distinct", changed, () -> 0, DISTINCT);
+        }
+        IntHashSet seen = new IntHashSet(0, offHeap);
+        return filterStage("distinct", seen::add, seen::size, DISTINCT);
+    }
+
+    /**
+     * @param buffered How many elements {@code pred} is holding on to, see {@link #buffered()}
+     * @param added    The {@link Characteristics} the filter guarantees, on top of the ones it keeps
+     */
+    private Stage filterStage(String name, IntPredicate pred, IntSupplier buffered, int added) {
+        return new Stage(name, this) {
             boolean holdingValidValue = false;
             int value = -1;
 
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & (SORTED | DISTINCT | INFINITE) | added;
+            }
+
+            @Override
+            int buffered() {
+                return buffered.getAsInt();
+            }
+
             @Override
             public int getNext() {
                 if (!holdingValidValue)
-                    throw new RuntimeException("filter has no valid values");
+                    throw new RuntimeException(name + " has no valid values");
                 holdingValidValue = false; //consume the value
                 return value;
             }
@@ -108,25 +412,185 @@ public abstract class Stage implements PullStream {
                 }
                 return false;
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                //read straight into the output, then compact the passing values towards the front
+                while (n < length) {
+                    int wanted = length - n;
+                    int read = upstream.getNextBatch(buffer, offset + n, wanted);
+                    int end = offset + n + read;
+                    for (int i = offset + n; i < end; i++) {
+                        if (pred.test(buffer[i])) {
+                            buffer[offset + n++] = buffer[i];
+                        }
+                    }
+                    if (read < wanted)
+                        break;
+                }
+                return n;
+            }
         };
     }
 
     @Override
-    public PullStream sorted(Comparator<Integer> comparator) {
-        return new Stage(this) {
-            PriorityQueue<Integer> pq = new PriorityQueue<>(comparator);
+    public PullStream sorted(IntComparator comparator) {
+        if (alreadySorted(comparator))
+            return this;
+        if (replacesSort(comparator))
+            return ((Stage) upstream).sorted(comparator);
+        rejectInfinite(this, "sort");
+        return new Stage("sorted", this) {
+            IntSortBuffer values;
+            int pos = 0;
+
+            @Override
+            public int characteristics() {
+                return sortedCharacteristics(upstream, comparator);
+            }
+
+            @Override
+            IntComparator sortComparator() {
+                return values == null ? comparator : null;
+            }
+
+            @Override
+            String describe() {
+                return describeSort(name, comparator);
+            }
+
+            @Override
+            int buffered() {
+                //the whole sorted array is held on to until the stage is dropped
+                return values == null ? 0 : values.size();
+            }
 
             @Override
             public int getNext() {
-                return pq.remove();
+                return values.get(pos++);
             }
 
             @Override
             public boolean hasNext() {
-                while (upstream.hasNext()) {
-                    pq.add(upstream.getNext());
+                if (values == null) {
+                    //can't know the smallest element until we've seen all of them
+                    values = new IntSortBuffer(comparator);
+                    int[] chunk = new int[BATCH_SIZE];
+                    int read;
+                    while ((read = upstream.getNextBatch(chunk, 0, chunk.length)) > 0) {
+                        values.addAll(chunk, 0, read);
+                    }
+                    values.sort();
+                }
+                return pos < values.size();
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                hasNext();
+                int n = Math.min(length, values.size() - pos);
+                System.arraycopy(values.array(), pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public PullStream sorted(IntComparator comparator, long memoryBudgetBytes) {
+        if (alreadySorted(comparator))
+            return this;
+        if (replacesSort(comparator))
+            return ((Stage) upstream).sorted(comparator, memoryBudgetBytes);
+        rejectInfinite(this, "sort");
+        ExternalIntSorter sorter = new ExternalIntSorter(comparator, memoryBudgetBytes);
+        return new Stage("sorted", this) {
+            ExternalIntSorter.Output sorted;
+            final int[] chunk = new int[BATCH_SIZE];
+            int pos = 0;
+            int size = 0;
+
+            @Override
+            public int characteristics() {
+                return sortedCharacteristics(upstream, comparator);
+            }
+
+            @Override
+            IntComparator sortComparator() {
+                return sorted == null ? comparator : null;
+            }
+
+            @Override
+            long sortMemoryBudget() {
+                return memoryBudgetBytes;
+            }
+
+            @Override
+            String describe() {
+                return describeSort(name, comparator);
+            }
+
+            @Override
+            int buffered() {
+                return sorter.buffered() + size - pos;
+            }
+
+            @Override
+            public void close() {
+                if (sorted != null) {
+                    sorted.close();
                 }
-                return !pq.isEmpty();
+                sorter.close();
+                super.close();
+            }
+
+            @Override
+            public int getNext() {
+                return chunk[pos++];
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (pos < size)
+                    return true;
+                pos = 0;
+                size = read(chunk, 0, chunk.length);
+                return size > 0;
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = Math.min(length, size - pos);
+                System.arraycopy(chunk, pos, buffer, offset, n);
+                pos += n;
+                return n + read(buffer, offset + n, length - n);
+            }
+
+            private int read(int[] buffer, int offset, int length) {
+                if (sorted == null) {
+                    int[] input = new int[BATCH_SIZE];
+                    int read;
+                    try {
+                        while ((read = upstream.getNextBatch(input, 0, input.length)) > 0) {
+                            sorter.addAll(input, 0, read);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        //nothing will read the runs spilled so far
+                        sorter.close();
+                        throw e;
+                    }
+                    sorted = sorter.finish();
+                }
+                int n = sorted.read(buffer, offset, length);
+                if (n < length) {
+                    sorted.close();
+                }
+                return n;
             }
         };
     }
@@ -135,10 +599,54 @@ public abstract class Stage implements PullStream {
     public PullStream limit(int limit) {
         if (limit < 0)
             throw new IllegalArgumentException(String.format("Cannot limit to %d elements", limit));
+        IntComparator sortedBy = sortComparator();
+        long budget = sortMemoryBudget();
+        if (sortedBy != null && !profiled && (budget < 0 || IntTopK.fitsIn(limit, budget))) {
+            //only the first few of the sorted elements are wanted, so there's no need to sort all of them.
+            //The heap that keeps them can't spill, so a sort with a budget is only replaced if it fits
+            return topKStage(upstream, limit, sortedBy);
+        }
+        if (!profiled) {
+            int pending = pendingLimit();
+            if (pending >= 0)
+                return ((Stage) upstream).limit(Math.min(pending, limit));
+            if (passesThrough())
+                return ((Stage) upstream).limit(limit);
+            SliceableSource source = sliceableSource();
+            SliceableSource sliced = source == null ? null : source.limited(limit);
+            if (sliced != null)
+                return overSlice(sliced);
+        }
 
-        return new Stage(this) {
+        return new Stage("limit", this) {
             int remaining = limit;
 
+            @Override
+            int pendingLimit() {
+                return remaining;
+            }
+
+            @Override
+            String describe() {
+                return String.format("limit(%d)", remaining);
+            }
+
+            @Override
+            public int characteristics() {
+                int kept = upstream.characteristics();
+                //however many elements there are, at most the limit get through
+                boolean sized = Characteristics.has(kept, SIZED) || Characteristics.has(kept, INFINITE);
+                return kept & (SORTED | DISTINCT) | (sized ? SIZED : 0);
+            }
+
+            @Override
+            public long exactSize() {
+                if (Characteristics.has(upstream.characteristics(), INFINITE))
+                    return remaining;
+                long size = upstream.exactSize();
+                return size < 0 ? -1 : Math.min(remaining, size);
+            }
+
             @Override
             public int getNext() {
                 remaining--;
@@ -150,12 +658,77 @@ public abstract class Stage implements PullStream {
             public boolean hasNext() {
                 return remaining > 0 && upstream.hasNext();
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = upstream.getNextBatch(buffer, offset, Math.min(length, remaining));
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public PullStream topK(int k, IntComparator comparator) {
+        if (alreadySorted(comparator))
+            return limit(k);
+        return topKStage(this, k, comparator);
+    }
+
+    private static Stage topKStage(Source upstream, int k, IntComparator comparator) {
+        rejectInfinite(upstream, "sort");
+        IntTopK top = new IntTopK(k, comparator);
+        return new Stage("topK", upstream) {
+            int[] sorted;
+            int pos = 0;
+
+            @Override
+            public int characteristics() {
+                return sortedCharacteristics(upstream, comparator);
+            }
+
+            @Override
+            int buffered() {
+                return sorted == null ? top.size() : sorted.length - pos;
+            }
+
+            @Override
+            public int getNext() {
+                return sorted[pos++];
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (sorted == null) {
+                    int[] chunk = new int[BATCH_SIZE];
+                    int read;
+                    while ((read = upstream.getNextBatch(chunk, 0, chunk.length)) > 0) {
+                        top.offerAll(chunk, 0, read);
+                    }
+                    sorted = top.drainSorted();
+                }
+                return pos < sorted.length;
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                hasNext();
+                int n = Math.min(length, sorted.length - pos);
+                System.arraycopy(sorted, pos, buffer, offset, n);
+                pos += n;
+                return n;
+            }
         };
     }
 
     @Override
     public PullStream takeWhile(IntPredicate pred) {
-        return new Stage(this) {
+        return new Stage("takeWhile", this) {
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & (SORTED | DISTINCT);
+            }
+
             boolean dead = false;
             boolean holdingValidValue = false;
             int value = -1;
@@ -187,6 +760,30 @@ public abstract class Stage implements PullStream {
                     return false;
                 }
             }
+
+            /**
+             * Note that this reads upstream a batch at a time, so it may consume up to {@code length} elements past
+             * the first one that fails the predicate
+             */
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                if (dead)
+                    return 0;
+                int n = 0;
+                if (holdingValidValue && length > 0) {
+                    holdingValidValue = false;
+                    buffer[offset + n++] = value;
+                }
+                int read = upstream.getNextBatch(buffer, offset + n, length - n);
+                for (int i = 0; i < read; i++) {
+                    if (!pred.test(buffer[offset + n])) {
+                        dead = true;
+                        break;
+                    }
+                    n++;
+                }
+                return n;
+            }
         };
     }
 
@@ -194,15 +791,48 @@ public abstract class Stage implements PullStream {
     public PullStream skip(int skip) {
         if (skip < 0)
             throw new IllegalArgumentException(String.format("Cannot skip %d elements", skip));
+        if (!profiled) {
+            if (passesThrough())
+                return ((Stage) upstream).skip(skip);
+            SliceableSource source = sliceableSource();
+            SliceableSource sliced = source == null ? null : source.skipped(skip);
+            if (sliced != null)
+                return overSlice(sliced);
+        }
 
-        return new Stage(this) {
+        return new Stage("skip", this) {
             int toSkip = skip;
 
+            @Override
+            boolean passesThrough() {
+                //everything's been skipped by the time anything else can be built on this
+                return true;
+            }
+
+            @Override
+            String describe() {
+                return String.format("skip(%d)", skip);
+            }
+
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & (SIZED | SORTED | DISTINCT | INFINITE);
+            }
+
+            @Override
+            public long exactSize() {
+                //whatever's skipped has already been read, in the initializer below
+                return upstream.exactSize();
+            }
+
             {
                 //anonymous initializer
-                while (toSkip > 0 && upstream.hasNext()) {
-                    toSkip--;
-                    upstream.getNext();
+                int[] discarded = new int[Math.min(toSkip, BATCH_SIZE)];
+                while (toSkip > 0) {
+                    int read = upstream.getNextBatch(discarded, 0, Math.min(toSkip, discarded.length));
+                    if (read == 0)
+                        break;
+                    toSkip -= read;
                 }
             }
 
@@ -216,44 +846,439 @@ public abstract class Stage implements PullStream {
             public boolean hasNext() {
                 return upstream.hasNext();
             }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                return upstream.getNextBatch(buffer, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public WindowedPullStream window(int size, int slide) {
+        if (size <= 0 || slide <= 0)
+            throw new IllegalArgumentException(String.format("Invalid window size %d and slide %d", size, slide));
+        return new WindowedPullStream(output(), size, slide);
+    }
+
+    @Override
+    public LongPullStream mapToLong(IntToLongFunction mapper) {
+        return LongStage.fromInts(output(), mapper);
+    }
+
+    @Override
+    public DoublePullStream mapToDouble(IntToDoubleFunction mapper) {
+        return DoubleStage.fromInts(output(), mapper);
+    }
+
+    @Override
+    public PullStream async(int bufferSize) {
+        return async(bufferSize, runnable -> {
+            Thread thread = new Thread(runnable, "PullStream-async");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public PullStream async(int bufferSize, ThreadFactory threadFactory) {
+        IntRingBuffer ring = new IntRingBuffer(bufferSize);
+        Stage op = new Stage("async", this) {
+            @Override
+            public int characteristics() {
+                return upstream.characteristics() & (SORTED | DISTINCT | INFINITE);
+            }
+
+            final int[] chunk = new int[Math.min(ring.capacity(), BATCH_SIZE)];
+            boolean started = false;
+            int pos = 0;
+            int size = 0;
+
+            @Override
+            int buffered() {
+                return size - pos;
+            }
+
+            @Override
+            public int getNext() {
+                return chunk[pos++];
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (pos < size)
+                    return true;
+                if (!started) {
+                    started = true;
+                    startProducer();
+                }
+                pos = 0;
+                size = ring.takeBatch(chunk, 0, chunk.length);
+                return size > 0;
+            }
+
+            @Override
+            public int getNextBatch(int[] buffer, int offset, int length) {
+                int n = 0;
+                while (n < length && hasNext()) {
+                    int available = Math.min(length - n, size - pos);
+                    System.arraycopy(chunk, pos, buffer, offset + n, available);
+                    pos += available;
+                    n += available;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+                ring.cancel();
+                if (!started) {
+                    super.close();
+                }
+                //otherwise the producer closes upstream once it notices, since it may be mid-read
+            }
+
+            private void startProducer() {
+                Source source = upstream;
+                //hand over small batches, so a slow source still reaches the consumer promptly
+                int[] produced = new int[Math.max(1, Math.min(BATCH_SIZE, ring.capacity() / 4))];
+                threadFactory.newThread(() -> {
+                    try {
+                        int read;
+                        while (!ring.isCancelled() && (read = source.getNextBatch(produced, 0, produced.length)) > 0) {
+                            ring.putBatch(produced, 0, read);
+                        }
+                        ring.close();
+                    } catch (Throwable t) {
+                        ring.fail(t);
+                    } finally {
+                        source.close();
+                    }
+                }).start();
+            }
         };
+        ABANDONED_PRODUCERS.register(op, ring::cancel);
+        return op;
+    }
+
+    /**
+     * Sits on a link between two stages of a {@link #profiled()} pipeline, passing everything through while
+     * recording it
+     */
+    private static final class MeteredSource implements Source {
+        private final Stage stage;
+        private final EdgeMeter meter;
+
+        private MeteredSource(Stage stage, EdgeMeter meter) {
+            this.stage = stage;
+            this.meter = meter;
+        }
+
+        @Override
+        public int characteristics() {
+            return stage.characteristics();
+        }
+
+        @Override
+        public long exactSize() {
+            return stage.exactSize();
+        }
+
+        @Override
+        public boolean hasNext() {
+            long started = meter.begin();
+            boolean hasNext = stage.hasNext();
+            meter.end(started, 0, stage.buffered());
+            return hasNext;
+        }
+
+        @Override
+        public int getNext() {
+            long started = meter.begin();
+            int next = stage.getNext();
+            meter.end(started, 1, stage.buffered());
+            return next;
+        }
+
+        @Override
+        public int getNextBatch(int[] buffer, int offset, int length) {
+            long started = meter.begin();
+            int n = stage.getNextBatch(buffer, offset, length);
+            meter.end(started, n, stage.buffered());
+            return n;
+        }
+
+        @Override
+        public void close() {
+            stage.close();
+        }
+    }
+
+    /**
+     * @return The order this stage sorts into, if it's a sorted stage that hasn't started reading yet, so a following
+     * {@link #limit(int)} can turn it into a {@link #topK(int, IntComparator)}. That's skipped while profiling, so
+     * the sort shows up as it was written
+     */
+    IntComparator sortComparator() {
+        return null;
+    }
+
+    /**
+     * @return The memory budget of a sort that spills, see {@link #sorted(IntComparator, long)}. Otherwise -1
+     */
+    long sortMemoryBudget() {
+        return -1;
+    }
+
+    /**
+     * @return The mapper, if this is a map stage that a following {@link #map(IntUnaryOperator)} can be fused into
+     */
+    IntUnaryOperator fusibleMapper() {
+        return null;
+    }
+
+    /**
+     * @return How many more elements this stage lets through, if it's a limit that a following
+     * {@link #limit(int)} can be merged into. Otherwise -1
+     */
+    int pendingLimit() {
+        return -1;
+    }
+
+    /**
+     * @return Whether this stage hands on whatever it reads unchanged, e.g. a skip that's done skipping, so a following
+     * skip or limit can be built on its upstream instead
+     */
+    boolean passesThrough() {
+        return false;
+    }
+
+    /**
+     * @return The source under this stage, if there's nothing but maps in between and it can be sliced, see
+     * {@link SliceableSource}. Otherwise null
+     */
+    private SliceableSource sliceableSource() {
+        Source source = this;
+        //a map doesn't change which elements there are, just what they are, so a slice can go under it
+        while (source instanceof Stage && (((Stage) source).fusibleMapper() != null || source instanceof HeadStage)) {
+            source = ((Stage) source).upstream;
+        }
+        return source instanceof SliceableSource ? (SliceableSource) source : null;
+    }
+
+    /**
+     * @return A copy of this stage and the maps under it, reading from {@code sliced} instead of the source
+     * {@link #sliceableSource()} found, which is left as it is
+     */
+    private Stage overSlice(SliceableSource sliced) {
+        if (this instanceof HeadStage)
+            return new HeadStage(name, sliced);
+        return mapStage(((Stage) upstream).overSlice(sliced), fusibleMapper());
+    }
+
+    /**
+     * @return Whether sorting by {@code comparator} makes this stage, a sort that hasn't started, redundant. That's
+     * the case if equal values are tied, since they come out in the same order whichever order they went in
+     */
+    private boolean replacesSort(IntComparator comparator) {
+        return !profiled && sortComparator() != null
+                && (comparator == IntComparator.NATURAL_ORDER || comparator == IntComparator.REVERSE_ORDER);
+    }
+
+    /**
+     * @return What this stage does, including any arguments that matter to the plan, e.g. "limit(10)"
+     */
+    String describe() {
+        return name;
+    }
+
+    private static String describeSort(String name, IntComparator comparator) {
+        if (comparator == IntComparator.REVERSE_ORDER)
+            return name + "(reverse order)";
+        return comparator == IntComparator.NATURAL_ORDER ? name : name + "(custom order)";
     }
 
     @Override
     public int fold(int identity, IntBinaryOperator reducer) {
         int val = identity;
-        while (hasNext()) {
-            val = reducer.applyAsInt(val, getNext());
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("fold");
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = reducer.applyAsInt(val, buffer[i]);
+            }
         }
         return val;
     }
 
     @Override
     public <T> void fold(T identity, ObjIntConsumer<T> consumer) {
-        while (hasNext()) {
-            consumer.accept(identity, getNext());
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("fold");
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                consumer.accept(identity, buffer[i]);
+            }
         }
     }
 
     @Override
     public OptionalInt reduce(IntBinaryOperator binaryOperator) {
-        if (!hasNext())
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("reduce");
+        int read = source.getNextBatch(buffer, 0, buffer.length);
+        if (read == 0)
             return OptionalInt.empty();
-        int val = getNext();
-        while (hasNext()) {
-            val = binaryOperator.applyAsInt(val, getNext());
+        int val = buffer[0];
+        for (int i = 1; i < read; i++) {
+            val = binaryOperator.applyAsInt(val, buffer[i]);
+        }
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                val = binaryOperator.applyAsInt(val, buffer[i]);
+            }
         }
         return OptionalInt.of(val);
     }
 
+    @Override
+    public int count() {
+        if (Characteristics.has(characteristics(), SIZED)) {
+            long size = exactSize();
+            if (size > Integer.MAX_VALUE)
+                throw new ArithmeticException(String.format("%d elements is too many to count in an int", size));
+            if (!profiled)
+                return (int) size; //no need to pull anything, unless it's being profiled
+        }
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("count");
+        long total = 0;
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total += read;
+        }
+        return Math.toIntExact(total);
+    }
 
     @Override
-    public List<Integer> toList() {
-        List<Integer> ans = new ArrayList<>();
-        while (hasNext()) {
-            ans.add(getNext());
+    public long sum() {
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("sum");
+        long total = 0;
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                total += buffer[i];
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public OptionalDouble average() {
+        ExactLongSum total = new ExactLongSum();
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("average");
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            total.addAll(buffer, 0, read);
+        }
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key) {
+        return group(new IntIntMap(), (groups, i) -> groups.add(key.applyAsInt(i), 1));
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key, int fromKey, int toKey) {
+        return group(IntIntMap.dense(fromKey, toKey), (groups, i) -> groups.add(key.applyAsInt(i), 1));
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int identity, IntBinaryOperator op) {
+        return group(new IntIntMap(), (groups, i) -> groups.fold(key.applyAsInt(i), identity, i, op));
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int fromKey, int toKey, int identity, IntBinaryOperator op) {
+        return group(IntIntMap.dense(fromKey, toKey), (groups, i) -> groups.fold(key.applyAsInt(i), identity, i, op));
+    }
+
+    private IntIntMap group(IntIntMap groups, ObjIntConsumer<IntIntMap> accumulator) {
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("group");
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < read; i++) {
+                accumulator.accept(groups, buffer[i]);
+            }
+        }
+        return groups;
+    }
+
+    @Override
+    public IntList toList() {
+        Source source = finiteOutput("toList");
+        int size = knownSize();
+        IntList ans = size < 0 ? new IntList() : new IntList(size);
+        int[] buffer = new int[BATCH_SIZE];
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            ans.addAll(buffer, 0, read);
         }
         return ans;
     }
 
+    @Override
+    public int[] toArray() {
+        Source source = finiteOutput("toArray");
+        int size = knownSize();
+        if (size < 0)
+            return toList().toIntArray();
+        //the exact size is known, so pull straight into the array rather than copying out of a list
+        int[] ans = new int[size];
+        int n = 0;
+        int read;
+        while (n < size && (read = source.getNextBatch(ans, n, size - n)) > 0) {
+            n += read;
+        }
+        if (n < size)
+            return Arrays.copyOf(ans, n); //the source came up short, e.g. a list that was removed from
+        //or it has more than it said, e.g. a list that was added to
+        int[] buffer = new int[BATCH_SIZE];
+        if ((read = source.getNextBatch(buffer, 0, buffer.length)) == 0)
+            return ans;
+        IntList all = new IntList(size + read);
+        all.addAll(ans, 0, size);
+        do {
+            all.addAll(buffer, 0, read);
+        } while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0);
+        return all.toIntArray();
+    }
+
+    /**
+     * @return The exact number of elements left, if it's known and fits in an array. Otherwise -1
+     */
+    private int knownSize() {
+        long size = exactSize();
+        return size > Integer.MAX_VALUE - 8 ? -1 : (int) size;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel, ByteOrder order) {
+        IntChannelWriter writer = new IntChannelWriter(channel, order);
+        int[] buffer = new int[BATCH_SIZE];
+        Source source = finiteOutput("writeTo");
+        int read;
+        while ((read = source.getNextBatch(buffer, 0, buffer.length)) > 0) {
+            writer.write(buffer, 0, read);
+        }
+        writer.flush();
+        return writer.count();
+    }
+
 }
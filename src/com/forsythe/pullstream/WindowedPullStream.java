@@ -0,0 +1,121 @@
+package com.forsythe.pullstream;
+
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntWindowMin;
+import com.forsythe.util.IntWindowSum;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The windows over a stream, see {@link PullStream#window(int, int)}. Each of these turns them into a stream with one
+ * aggregate per window, updated incrementally as elements are pulled. Like the stream it came from, only one of them
+ * can be read
+ */
+public final class WindowedPullStream {
+    private final Source upstream;
+    private final int size;
+    private final int slide;
+
+    WindowedPullStream(Source upstream, int size, int slide) {
+        this.upstream = upstream;
+        this.size = size;
+        this.slide = slide;
+    }
+
+    public LongPullStream sum() {
+        IntWindowSum window = new IntWindowSum(size);
+        Cursor cursor = new Cursor() {
+            @Override
+            void addAll(int[] values, int offset, int length) {
+                window.addAll(values, offset, length);
+            }
+        };
+        return new LongStage.HeadStage(new LongSource() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public long getNext() {
+                cursor.next();
+                return window.sum();
+            }
+        });
+    }
+
+    public DoublePullStream average() {
+        return sum().mapToDouble(sum -> sum / (double) size);
+    }
+
+    public PullStream min() {
+        return extreme("window min", IntComparator.NATURAL_ORDER);
+    }
+
+    public PullStream max() {
+        return extreme("window max", IntComparator.REVERSE_ORDER);
+    }
+
+    private PullStream extreme(String name, IntComparator comparator) {
+        IntWindowMin window = new IntWindowMin(size, comparator);
+        Cursor cursor = new Cursor() {
+            @Override
+            void addAll(int[] values, int offset, int length) {
+                window.addAll(values, offset, length);
+            }
+        };
+        return new HeadStage(name, new Source() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public int getNext() {
+                cursor.next();
+                return window.get();
+            }
+        });
+    }
+
+    /**
+     * Feeds the elements into a window aggregate, reading exactly as far as the end of the next window, so nothing
+     * past it is pulled from upstream early
+     */
+    private abstract class Cursor {
+        final int[] chunk = new int[Math.min(Stage.BATCH_SIZE, Math.max(size, slide))];
+        long position = 0; //how many elements have been read
+        long nextEnd = size; //the position the next window is complete at
+        boolean ready = false;
+
+        abstract void addAll(int[] values, int offset, int length);
+
+        /**
+         * @return Whether another window is complete
+         */
+        boolean hasNext() {
+            while (!ready) {
+                int wanted = (int) Math.min(chunk.length, nextEnd - position);
+                int read = upstream.getNextBatch(chunk, 0, wanted);
+                addAll(chunk, 0, read);
+                position += read;
+                if (position == nextEnd) {
+                    ready = true;
+                    nextEnd += slide;
+                } else if (read < wanted) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves past the window that's complete, once its aggregate has been read
+         */
+        void next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            ready = false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.forsythe.pushstream;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+
+/**
+ * Collects what a {@link Flow.Publisher} sends for one run of {@link PushStream#fromPublisher(Flow.Publisher, int)}.
+ * It never requests more than there's room for in its buffer, and asks for more as the run takes items out, so the
+ * publisher can't get more than {@code bufferSize} items ahead however slow the stream is. The publisher's threads
+ * never block on it
+ *
+ * @param <T> What each {@code onNext} carries
+ */
+final class BoundedSubscriber<T> implements Flow.Subscriber<T> {
+    //marks the end of the items, after which failure says whether the publisher failed
+    private static final Object END = new Object();
+
+    private final int bufferSize;
+    //one spare slot, so END always fits
+    private final BlockingQueue<Object> queue;
+    private volatile Flow.Subscription subscription;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private int taken = 0; //since the last request, only touched by the run
+
+    BoundedSubscriber(int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException(String.format("Invalid buffer size %d", bufferSize));
+        this.bufferSize = bufferSize;
+        this.queue = new ArrayBlockingQueue<>(bufferSize + 1);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+        if (this.subscription != null || cancelled) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(bufferSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+        Objects.requireNonNull(item);
+        if (queue.remainingCapacity() <= 1 || !queue.offer(item)) {
+            failure = new IllegalStateException("The publisher sent more items than were requested");
+            cancel();
+            queue.offer(END);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        failure = Objects.requireNonNull(t);
+        queue.offer(END);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.offer(END);
+    }
+
+    /**
+     * Blocks until the next item arrives
+     *
+     * @return The next item, or null once the publisher has completed
+     * @throws RuntimeException If the publisher failed, once every item before the failure has been taken
+     */
+    T take() {
+        try {
+            return unwrap(queue.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new CancellationException("Interrupted while waiting for the publisher");
+        }
+    }
+
+    /**
+     * Like {@link #take()}, but returns null straight away if the next item hasn't arrived yet
+     */
+    T poll() {
+        Object next = queue.poll();
+        return next == null ? null : unwrap(next);
+    }
+
+    /**
+     * Stops the publisher sending anything else
+     */
+    void cancel() {
+        cancelled = true;
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T unwrap(Object next) {
+        if (next == END) {
+            queue.offer(END); //stay finished for anyone who asks again
+            Throwable t = failure;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new RuntimeException(t);
+            return null;
+        }
+        //ask for more in bulk rather than one at a time, once half the buffer has been freed up
+        if (++taken >= Math.max(1, bufferSize / 2)) {
+            int n = taken;
+            taken = 0;
+            subscription.request(n);
+        }
+        return (T) next;
+    }
+}
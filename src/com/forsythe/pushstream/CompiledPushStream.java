@@ -0,0 +1,276 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntList;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.PipelineProfile;
+
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * An immutable snapshot of a pipeline, see {@link PushStream#compile()}. Nothing ever changes the template stages:
+ * terminal operations run through a fresh copy of them, and everything else builds on a copy
+ */
+final class CompiledPushStream implements PushStream {
+    final Stage template;
+
+    CompiledPushStream(Stage template) {
+        this.template = template;
+    }
+
+    /**
+     * @return A new snapshot of whatever {@code op} builds on top of a copy of this pipeline
+     */
+    private PushStream extend(Function<Stage, PushStream> op) {
+        return new CompiledPushStream((Stage) op.apply(template.instantiate()));
+    }
+
+    @Override
+    public PushStream parallel() {
+        return extend(Stage::parallel);
+    }
+
+    @Override
+    public PushStream sequential() {
+        return extend(Stage::sequential);
+    }
+
+    @Override
+    public int characteristics() {
+        return template.characteristics();
+    }
+
+    @Override
+    public PushStream profiled() {
+        return extend(Stage::profiled);
+    }
+
+    @Override
+    public PipelineProfile profile() {
+        return template.profile();
+    }
+
+    @Override
+    public String plan() {
+        return template.plan();
+    }
+
+    @Override
+    public PushStream compile() {
+        return this;
+    }
+
+    @Override
+    public PushStream map(IntUnaryOperator mapper) {
+        return extend(s -> s.map(mapper));
+    }
+
+    @Override
+    public PushStream flatMap(Function<Integer, Iterable<Integer>> mapper) {
+        return extend(s -> s.flatMap(mapper));
+    }
+
+    @Override
+    public PushStream mapMulti(IntMapMultiConsumer mapper) {
+        return extend(s -> s.mapMulti(mapper));
+    }
+
+    @Override
+    public PushStream peek() {
+        return extend(Stage::peek);
+    }
+
+    @Override
+    public PushStream peek(IntConsumer action) {
+        return extend(s -> s.peek(action));
+    }
+
+    @Override
+    public PushStream peekSampled(int interval, IntConsumer action) {
+        return extend(s -> s.peekSampled(interval, action));
+    }
+
+    @Override
+    public PushStream peekRateLimited(int permitsPerSecond, IntConsumer action) {
+        return extend(s -> s.peekRateLimited(permitsPerSecond, action));
+    }
+
+    @Override
+    public PushStream filter(IntPredicate predicate) {
+        return extend(s -> s.filter(predicate));
+    }
+
+    @Override
+    public PushStream sorted(IntComparator comparator) {
+        return extend(s -> s.sorted(comparator));
+    }
+
+    @Override
+    public PushStream sorted(IntComparator comparator, long memoryBudgetBytes) {
+        return extend(s -> s.sorted(comparator, memoryBudgetBytes));
+    }
+
+    @Override
+    public PushStream limit(int limit) {
+        return extend(s -> s.limit(limit));
+    }
+
+    @Override
+    public PushStream topK(int k, IntComparator comparator) {
+        return extend(s -> s.topK(k, comparator));
+    }
+
+    @Override
+    public PushStream skip(int skip) {
+        return extend(s -> s.skip(skip));
+    }
+
+    @Override
+    public PushStream distinct(boolean offHeap) {
+        return extend(s -> s.distinct(offHeap));
+    }
+
+    @Override
+    public LongPushStream mapToLong(IntToLongFunction mapper) {
+        return template.mapToLong(mapper);
+    }
+
+    @Override
+    public DoublePushStream mapToDouble(IntToDoubleFunction mapper) {
+        return template.mapToDouble(mapper);
+    }
+
+    @Override
+    public int fold(int identity, ToIntBiFunction<Integer, Integer> combiner) {
+        return template.fold(identity, combiner);
+    }
+
+    @Override
+    public int fold(int identity, ToIntBiFunction<Integer, Integer> accumulator,
+                    ToIntBiFunction<Integer, Integer> combiner) {
+        return template.fold(identity, accumulator, combiner);
+    }
+
+    @Override
+    public Optional<Integer> fold(ToIntBiFunction<Integer, Integer> combiner) {
+        return template.fold(combiner);
+    }
+
+    @Override
+    public int count() {
+        return template.count();
+    }
+
+    @Override
+    public boolean anyMatch(IntPredicate predicate) {
+        return template.anyMatch(predicate);
+    }
+
+    @Override
+    public boolean allMatch(IntPredicate predicate) {
+        return template.allMatch(predicate);
+    }
+
+    @Override
+    public Optional<Integer> findFirst() {
+        return template.findFirst();
+    }
+
+    @Override
+    public long sum() {
+        return template.sum();
+    }
+
+    @Override
+    public OptionalDouble average() {
+        return template.average();
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key) {
+        return template.countBy(key);
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key, int fromKey, int toKey) {
+        return template.countBy(key, fromKey, toKey);
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int identity, IntBinaryOperator op) {
+        return template.groupingFold(key, identity, op);
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int fromKey, int toKey, int identity, IntBinaryOperator op) {
+        return template.groupingFold(key, fromKey, toKey, identity, op);
+    }
+
+    @Override
+    public IntList toList() {
+        return template.toList();
+    }
+
+    @Override
+    public int[] toArray() {
+        return template.toArray();
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel, ByteOrder order) {
+        return template.writeTo(channel, order);
+    }
+
+    @Override
+    public void forEach(Consumer<? super Integer> consumer) {
+        template.forEach(consumer);
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return template.iterator();
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator(int bufferSize) {
+        return template.iterator(bufferSize);
+    }
+
+    @Override
+    public Flow.Publisher<Integer> toPublisher() {
+        return template.toPublisher();
+    }
+
+    @Override
+    public Flow.Publisher<int[]> toBatchPublisher(int batchSize) {
+        return template.toBatchPublisher(batchSize);
+    }
+
+    /**
+     * A snapshot only produces elements, nothing can be pushed into it
+     */
+    @Override
+    public void accept(int i) {
+        throw new UnsupportedOperationException("Can't push into a compiled stream");
+    }
+
+    @Override
+    public void onReadyForNextStage() {
+        throw new UnsupportedOperationException("Can't push into a compiled stream");
+    }
+}
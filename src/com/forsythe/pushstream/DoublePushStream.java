@@ -0,0 +1,102 @@
+package com.forsythe.pushstream;
+
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A {@link PushStream} of {@code double}s, built from the same kind of stages, so values never get boxed. Like
+ * {@link PushStream}, every terminal operation runs through a fresh copy of the stages, so it can be run again
+ */
+public interface DoublePushStream extends DoubleSink, Iterable<Double> {
+
+
+    /**
+     * Static factory methods
+     **/
+    static DoublePushStream of(double... nums) {
+        return DoubleStage.ofRange(nums, 0, nums.length);
+    }
+
+    /**
+     * Nonterminal operations
+     **/
+    DoublePushStream map(DoubleUnaryOperator mapper);
+
+    DoublePushStream filter(DoublePredicate predicate);
+
+    /**
+     * Hands every element to {@code action} as it passes through, without holding on to anything
+     */
+    DoublePushStream peek(DoubleConsumer action);
+
+    /**
+     * Sorts in {@link Double#compare(double, double)} order, so -0.0 comes before 0.0 and NaNs come last
+     */
+    DoublePushStream sorted();
+
+    DoublePushStream limit(long limit);
+
+    DoublePushStream skip(long skip);
+
+    /**
+     * Terminal operations
+     **/
+
+    double fold(double identity, DoubleBinaryOperator combiner);
+
+    OptionalDouble fold(DoubleBinaryOperator combiner);
+
+    default OptionalDouble max() {
+        return fold(Math::max);
+    }
+
+    default OptionalDouble min() {
+        return fold(Math::min);
+    }
+
+    long count();
+
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a match is found
+     */
+    boolean anyMatch(DoublePredicate predicate);
+
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a mismatch is found
+     */
+    boolean allMatch(DoublePredicate predicate);
+
+    default boolean noneMatch(DoublePredicate predicate) {
+        return !anyMatch(predicate);
+    }
+
+    /**
+     * Short-circuiting: stops pulling from the source after the first element
+     */
+    OptionalDouble findFirst();
+
+    /**
+     * Adds up the elements with compensated summation, so the rounding error doesn't grow with the number of elements
+     * the way it does for a plain running total
+     */
+    double sum();
+
+    /**
+     * Uses the same compensated summation as {@link #sum()}
+     */
+    OptionalDouble average();
+
+    double[] toArray();
+
+    /**
+     * Like {@link #forEach(java.util.function.Consumer)}, without boxing each element
+     */
+    void forEachDouble(DoubleConsumer action);
+
+    @Override
+    PrimitiveIterator.OfDouble iterator();
+}
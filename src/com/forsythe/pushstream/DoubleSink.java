@@ -0,0 +1,29 @@
+package com.forsythe.pushstream;
+
+/**
+ * The {@code double} counterpart of {@link Sink}
+ */
+public interface DoubleSink {
+    void accept(double l);
+
+    /**
+     * Bulk version of {@link #accept(double)}, see {@link Sink#acceptBatch(int[], int, int)}
+     */
+    default void acceptBatch(double[] values, int offset, int length) {
+        for (int i = offset; i < offset + length && !isDone(); i++) {
+            accept(values[i]);
+        }
+    }
+
+    /**
+     * See {@link Sink#onReadyForNextStage()}
+     */
+    void onReadyForNextStage();
+
+    /**
+     * See {@link Sink#isDone()}
+     */
+    default boolean isDone() {
+        return false;
+    }
+}
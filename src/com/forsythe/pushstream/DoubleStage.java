@@ -0,0 +1,609 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.CompensatedDoubleSum;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.Spliterators;
+import java.util.function.*;
+
+/**
+ * The {@code double} counterpart of {@link Stage}. Stages are built the same way, and every run goes through a fresh
+ * copy of them, but there's no parallel mode, fusion or profiling
+ */
+public abstract class DoubleStage implements DoublePushStream {
+    static final int BATCH_SIZE = Stage.BATCH_SIZE;
+
+    protected DoubleSink downstream;
+
+    /**
+     * The stage feeding this one, or null for a {@link HeadStage}
+     */
+    final DoubleStage upstream;
+
+    /**
+     * Re-creates this stage's operation, with fresh state, on top of some other stage, see {@link #instantiate()}
+     */
+    private Function<DoubleStage, DoublePushStream> replay;
+
+    private DoubleStage(DoubleStage upstream) {
+        //no-overriding this class outside of here
+        this.upstream = upstream;
+    }
+
+    static HeadStage ofRange(double[] nums, int fromIncl, int toExcl) {
+        return new HeadStage() {
+            @Override
+            protected void loadData() {
+                for (int i = fromIncl; i < toExcl && !isDone(); i += BATCH_SIZE) {
+                    acceptBatch(nums, i, Math.min(BATCH_SIZE, toExcl - i));
+                }
+            }
+
+            @Override
+            protected HeadStage copy() {
+                return ofRange(nums, fromIncl, toExcl);
+            }
+        };
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code ints} produces
+     */
+    static DoublePushStream fromInts(Stage ints, IntToDoubleFunction mapper) {
+        return new HeadStage() {
+            @Override
+            protected void loadData() {
+                HeadStage head = this;
+                ints.pushInto(new Sink() {
+                    final double[] block = new double[BATCH_SIZE];
+
+                    @Override
+                    public void accept(int i) {
+                        head.accept(mapper.applyAsDouble(i));
+                    }
+
+                    @Override
+                    public void acceptBatch(int[] values, int offset, int length) {
+                        for (int done = 0; done < length; done += block.length) {
+                            int n = Math.min(block.length, length - done);
+                            for (int i = 0; i < n; i++) {
+                                block[i] = mapper.applyAsDouble(values[offset + done + i]);
+                            }
+                            head.acceptBatch(block, 0, n);
+                        }
+                    }
+
+                    @Override
+                    public void onReadyForNextStage() {
+                        //the head tells its own downstream once loadData() returns
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return head.isDone();
+                    }
+                });
+            }
+
+            @Override
+            protected HeadStage copy() {
+                return (HeadStage) fromInts(ints, mapper);
+            }
+        };
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code longs} produces
+     */
+    static DoublePushStream fromLongs(LongStage longs, LongToDoubleFunction mapper) {
+        return new HeadStage() {
+            @Override
+            protected void loadData() {
+                HeadStage head = this;
+                longs.evaluateInto(new LongSink() {
+                    final double[] block = new double[BATCH_SIZE];
+
+                    @Override
+                    public void accept(long l) {
+                        head.accept(mapper.applyAsDouble(l));
+                    }
+
+                    @Override
+                    public void acceptBatch(long[] values, int offset, int length) {
+                        for (int done = 0; done < length; done += block.length) {
+                            int n = Math.min(block.length, length - done);
+                            for (int i = 0; i < n; i++) {
+                                block[i] = mapper.applyAsDouble(values[offset + done + i]);
+                            }
+                            head.acceptBatch(block, 0, n);
+                        }
+                    }
+
+                    @Override
+                    public void onReadyForNextStage() {
+                        //the head tells its own downstream once loadData() returns
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return head.isDone();
+                    }
+                });
+            }
+
+            @Override
+            protected HeadStage copy() {
+                return (HeadStage) fromLongs(longs, mapper);
+            }
+        };
+    }
+
+    @Override
+    public DoublePushStream map(DoubleUnaryOperator mapper) {
+        DoubleStage op = new StatelessStage(this) {
+            @Override
+            public void accept(double value) {
+                this.downstream.accept(mapper.applyAsDouble(value));
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                double[] out = buffer(length);
+                for (int i = 0; i < length; i++) {
+                    out[i] = mapper.applyAsDouble(values[offset + i]);
+                }
+                this.downstream.acceptBatch(out, 0, length);
+            }
+        };
+        return attach(op, s -> s.map(mapper));
+    }
+
+    @Override
+    public DoublePushStream filter(DoublePredicate predicate) {
+        DoubleStage op = new StatelessStage(this) {
+            @Override
+            public void accept(double l) {
+                if (predicate.test(l)) {
+                    this.downstream.accept(l);
+                }
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                double[] out = buffer(length);
+                int n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    if (predicate.test(values[i])) {
+                        out[n++] = values[i];
+                    }
+                }
+                if (n > 0) {
+                    this.downstream.acceptBatch(out, 0, n);
+                }
+            }
+        };
+        return attach(op, s -> s.filter(predicate));
+    }
+
+    @Override
+    public DoublePushStream peek(DoubleConsumer action) {
+        DoubleStage op = new StatelessStage(this) {
+            @Override
+            public void accept(double value) {
+                action.accept(value);
+                this.downstream.accept(value);
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    action.accept(values[i]);
+                }
+                this.downstream.acceptBatch(values, offset, length);
+            }
+        };
+        return attach(op, s -> s.peek(action));
+    }
+
+    @Override
+    public DoublePushStream sorted() {
+        DoubleStage op = new StatefulStage(this) {
+            double[] values = new double[16];
+            int size = 0;
+
+            @Override
+            public void accept(double l) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                values[size++] = l;
+            }
+
+            @Override
+            public void acceptBatch(double[] src, int offset, int length) {
+                if (size + length > values.length) {
+                    values = Arrays.copyOf(values, Math.max(size + length, 2 * values.length));
+                }
+                System.arraycopy(src, offset, values, size, length);
+                size += length;
+            }
+
+            @Override
+            public void onReadyForNextStage() {
+                Arrays.sort(values, 0, size);
+                for (int i = 0; i < size && !downstream.isDone(); i += BATCH_SIZE) {
+                    this.downstream.acceptBatch(values, i, Math.min(BATCH_SIZE, size - i));
+                }
+                values = new double[0]; //let go of the sorted values
+                downstream.onReadyForNextStage();
+            }
+        };
+        return attach(op, DoubleStage::sorted);
+    }
+
+    @Override
+    public DoublePushStream limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException(String.format("Cannot limit to %d elements", limit));
+
+        DoubleStage op = new StatelessStage(this) {
+            long remaining = limit;
+
+            @Override
+            public void accept(double l) {
+                if (remaining > 0) {
+                    this.downstream.accept(l);
+                    remaining--;
+                }
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                int n = (int) Math.min(length, remaining);
+                if (n > 0) {
+                    remaining -= n;
+                    this.downstream.acceptBatch(values, offset, n);
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return remaining <= 0 || this.downstream.isDone();
+            }
+        };
+        return attach(op, s -> s.limit(limit));
+    }
+
+    @Override
+    public DoublePushStream skip(long skip) {
+        if (skip < 0)
+            throw new IllegalArgumentException(String.format("Cannot skip %d elements", skip));
+
+        DoubleStage op = new StatelessStage(this) {
+            long toSkip = skip;
+
+            @Override
+            public void accept(double l) {
+                if (toSkip > 0) {
+                    toSkip--;
+                } else {
+                    this.downstream.accept(l);
+                }
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                int skipped = (int) Math.min(toSkip, length);
+                toSkip -= skipped;
+                if (length > skipped) {
+                    this.downstream.acceptBatch(values, offset + skipped, length - skipped);
+                }
+            }
+        };
+        return attach(op, s -> s.skip(skip));
+    }
+
+    /**
+     * Adds a stage after this one. Nothing is wired up until a terminal operation runs
+     *
+     * @param replay Re-creates the same operation on top of another stage
+     */
+    private DoublePushStream attach(DoubleStage op, Function<DoubleStage, DoublePushStream> replay) {
+        op.replay = replay;
+        return op;
+    }
+
+    /**
+     * @return A fresh copy of the pipeline from the source up to this stage, wired up and with its own state
+     */
+    private DoubleStage instantiate() {
+        if (upstream == null)
+            return ((HeadStage) this).copy();
+        DoubleStage chain = upstream.instantiate();
+        DoubleStage next = (DoubleStage) replay.apply(chain);
+        chain.downstream = next;
+        return next;
+    }
+
+    /**
+     * Runs a fresh copy of this pipeline into {@code terminal}
+     */
+    void evaluateInto(DoubleSink terminal) {
+        DoubleStage chain = instantiate();
+        chain.downstream = terminal;
+        chain.evaluate();
+    }
+
+    @Override
+    public double fold(double identity, DoubleBinaryOperator combiner) {
+        double[] value = {identity};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                value[0] = combiner.applyAsDouble(value[0], l);
+            }
+        });
+        return value[0];
+    }
+
+    @Override
+    public OptionalDouble fold(DoubleBinaryOperator combiner) {
+        double[] value = {0};
+        boolean[] sawValue = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                value[0] = sawValue[0] ? combiner.applyAsDouble(value[0], l) : l;
+                sawValue[0] = true;
+            }
+        });
+        return sawValue[0] ? OptionalDouble.of(value[0]) : OptionalDouble.empty();
+    }
+
+    @Override
+    public long count() {
+        long[] total = {0};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                total[0]++;
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                total[0] += length;
+            }
+        });
+        return total[0];
+    }
+
+    @Override
+    public boolean anyMatch(DoublePredicate predicate) {
+        boolean[] matched = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                if (!matched[0] && predicate.test(l)) {
+                    matched[0] = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return matched[0];
+            }
+        });
+        return matched[0];
+    }
+
+    @Override
+    public boolean allMatch(DoublePredicate predicate) {
+        return !anyMatch(predicate.negate());
+    }
+
+    @Override
+    public OptionalDouble findFirst() {
+        double[] first = {0};
+        boolean[] found = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                if (!found[0]) {
+                    first[0] = l;
+                    found[0] = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return found[0];
+            }
+        });
+        return found[0] ? OptionalDouble.of(first[0]) : OptionalDouble.empty();
+    }
+
+    @Override
+    public double sum() {
+        return total().sum();
+    }
+
+    @Override
+    public OptionalDouble average() {
+        CompensatedDoubleSum total = total();
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    private CompensatedDoubleSum total() {
+        CompensatedDoubleSum total = new CompensatedDoubleSum();
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                total.add(l);
+            }
+
+            @Override
+            public void acceptBatch(double[] values, int offset, int length) {
+                total.addAll(values, offset, length);
+            }
+        });
+        return total;
+    }
+
+    @Override
+    public double[] toArray() {
+        double[][] values = {new double[16]};
+        int[] size = {0};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                if (size[0] == values[0].length) {
+                    values[0] = Arrays.copyOf(values[0], 2 * size[0]);
+                }
+                values[0][size[0]++] = l;
+            }
+
+            @Override
+            public void acceptBatch(double[] src, int offset, int length) {
+                if (size[0] + length > values[0].length) {
+                    values[0] = Arrays.copyOf(values[0], Math.max(size[0] + length, 2 * values[0].length));
+                }
+                System.arraycopy(src, offset, values[0], size[0], length);
+                size[0] += length;
+            }
+        });
+        return Arrays.copyOf(values[0], size[0]);
+    }
+
+    @Override
+    public void forEachDouble(DoubleConsumer action) {
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(double l) {
+                action.accept(l);
+            }
+        });
+    }
+
+    /**
+     * Runs the whole stream up front and iterates over the result
+     */
+    @Override
+    public PrimitiveIterator.OfDouble iterator() {
+        return Spliterators.iterator(Arrays.spliterator(toArray()));
+    }
+
+    /**
+     * Used to trigger the upstream stage's evaluate. Eventually calls the {@link HeadStage}'s
+     * {@link HeadStage#loadData()}, which triggers the whole pipeline of execution
+     */
+    protected abstract void evaluate();
+
+    @Override
+    public boolean isDone() {
+        return downstream.isDone();
+    }
+
+
+    /**
+     * An intermediate stage that handles each element on its own
+     */
+    private abstract static class StatelessStage extends DoubleStage {
+        private double[] buffer = new double[0];
+
+        protected StatelessStage(DoubleStage upstream) {
+            super(upstream);
+        }
+
+        /**
+         * @return A scratch array of at least the given length that this stage can write its block output into
+         */
+        protected double[] buffer(int length) {
+            if (buffer.length < length) {
+                buffer = new double[Math.max(length, BATCH_SIZE)];
+            }
+            return buffer;
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+
+        @Override
+        public final void onReadyForNextStage() {
+            downstream.onReadyForNextStage();
+        }
+    }
+
+    /**
+     * An intermediate stage that holds on to its input, and only produces its output once
+     * {@link #onReadyForNextStage()} says there's no more coming
+     */
+    private abstract static class StatefulStage extends DoubleStage {
+        protected StatefulStage(DoubleStage upstream) {
+            super(upstream);
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+    }
+
+    /**
+     * Where the terminal operations collect their results
+     */
+    private abstract static class TerminalStage implements DoubleSink {
+        @Override
+        public final void onReadyForNextStage() {
+            //no-op
+        }
+    }
+
+    /**
+     * Produces the stream's elements, see {@link Stage.HeadStage}
+     */
+    abstract static class HeadStage extends DoubleStage {
+        protected HeadStage() {
+            super(null);
+        }
+
+        @Override
+        public final void accept(double l) {
+            downstream.accept(l);
+        }
+
+        @Override
+        public final void acceptBatch(double[] values, int offset, int length) {
+            downstream.acceptBatch(values, offset, length);
+        }
+
+        @Override
+        public final void onReadyForNextStage() {
+            //no-op, since nobody can tell us we're ready
+        }
+
+        @Override
+        public final boolean isDone() {
+            return downstream.isDone();
+        }
+
+        @Override
+        public final void evaluate() {
+            this.loadData();
+            downstream.onReadyForNextStage();
+        }
+
+        /**
+         * Loads the input, checking {@link #isDone()} between elements and returning early once it's true
+         */
+        protected abstract void loadData();
+
+        /**
+         * @return A new source producing the same elements as this one, for a run to push from
+         */
+        protected abstract HeadStage copy();
+    }
+}
@@ -0,0 +1,131 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.LongRanges;
+
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A {@link PushStream} of {@code long}s, built from the same kind of stages, so 64-bit values never get boxed. Like
+ * {@link PushStream}, every terminal operation runs through a fresh copy of the stages, so it can be run again
+ */
+public interface LongPushStream extends LongSink, Iterable<Long> {
+
+
+    /**
+     * Static factory methods
+     **/
+    static LongPushStream of(long... nums) {
+        return LongStage.ofRange(nums, 0, nums.length);
+    }
+
+    static LongPushStream fromRange(long fromIncl, long toExcl) {
+        return new LongStage.HeadStage() {
+            @Override
+            protected void loadData() {
+                long[] block = new long[LongRanges.step(fromIncl, toExcl, LongStage.BATCH_SIZE)];
+                for (long start = fromIncl; start < toExcl && !isDone(); ) {
+                    int n = LongRanges.step(start, toExcl, block.length);
+                    for (int i = 0; i < n; i++) {
+                        block[i] = start + i;
+                    }
+                    acceptBatch(block, 0, n);
+                    start += n;
+                }
+            }
+
+            @Override
+            protected LongStage.HeadStage copy() {
+                return (LongStage.HeadStage) fromRange(fromIncl, toExcl);
+            }
+        };
+    }
+
+    /**
+     * Nonterminal operations
+     **/
+    LongPushStream map(LongUnaryOperator mapper);
+
+    LongPushStream filter(LongPredicate predicate);
+
+    /**
+     * Hands every element to {@code action} as it passes through, without holding on to anything
+     */
+    LongPushStream peek(LongConsumer action);
+
+    LongPushStream sorted();
+
+    LongPushStream limit(long limit);
+
+    LongPushStream skip(long skip);
+
+    DoublePushStream mapToDouble(LongToDoubleFunction mapper);
+
+    default DoublePushStream asDoubleStream() {
+        return mapToDouble(l -> l);
+    }
+
+    /**
+     * Terminal operations
+     **/
+
+    long fold(long identity, LongBinaryOperator combiner);
+
+    OptionalLong fold(LongBinaryOperator combiner);
+
+    default OptionalLong max() {
+        return fold(Math::max);
+    }
+
+    default OptionalLong min() {
+        return fold(Math::min);
+    }
+
+    long count();
+
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a match is found
+     */
+    boolean anyMatch(LongPredicate predicate);
+
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a mismatch is found
+     */
+    boolean allMatch(LongPredicate predicate);
+
+    default boolean noneMatch(LongPredicate predicate) {
+        return !anyMatch(predicate);
+    }
+
+    /**
+     * Short-circuiting: stops pulling from the source after the first element
+     */
+    OptionalLong findFirst();
+
+    /**
+     * @throws ArithmeticException If the total doesn't fit in a long. It's only checked at the end, so the total can
+     *                             go out of range and come back along the way
+     */
+    long sum();
+
+    /**
+     * Can't overflow, even when the sum of the elements doesn't fit in a long
+     */
+    OptionalDouble average();
+
+    long[] toArray();
+
+    /**
+     * Like {@link #forEach(java.util.function.Consumer)}, without boxing each element
+     */
+    void forEachLong(LongConsumer action);
+
+    @Override
+    PrimitiveIterator.OfLong iterator();
+}
@@ -0,0 +1,29 @@
+package com.forsythe.pushstream;
+
+/**
+ * The {@code long} counterpart of {@link Sink}
+ */
+public interface LongSink {
+    void accept(long l);
+
+    /**
+     * Bulk version of {@link #accept(long)}, see {@link Sink#acceptBatch(int[], int, int)}
+     */
+    default void acceptBatch(long[] values, int offset, int length) {
+        for (int i = offset; i < offset + length && !isDone(); i++) {
+            accept(values[i]);
+        }
+    }
+
+    /**
+     * See {@link Sink#onReadyForNextStage()}
+     */
+    void onReadyForNextStage();
+
+    /**
+     * See {@link Sink#isDone()}
+     */
+    default boolean isDone() {
+        return false;
+    }
+}
@@ -0,0 +1,569 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.ExactLongSum;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.Spliterators;
+import java.util.function.*;
+
+/**
+ * The {@code long} counterpart of {@link Stage}. Stages are built the same way, and every run goes through a fresh
+ * copy of them, but there's no parallel mode, fusion or profiling
+ */
+public abstract class LongStage implements LongPushStream {
+    static final int BATCH_SIZE = Stage.BATCH_SIZE;
+
+    protected LongSink downstream;
+
+    /**
+     * The stage feeding this one, or null for a {@link HeadStage}
+     */
+    final LongStage upstream;
+
+    /**
+     * Re-creates this stage's operation, with fresh state, on top of some other stage, see {@link #instantiate()}
+     */
+    private Function<LongStage, LongPushStream> replay;
+
+    private LongStage(LongStage upstream) {
+        //no-overriding this class outside of here
+        this.upstream = upstream;
+    }
+
+    static HeadStage ofRange(long[] nums, int fromIncl, int toExcl) {
+        return new HeadStage() {
+            @Override
+            protected void loadData() {
+                for (int i = fromIncl; i < toExcl && !isDone(); i += BATCH_SIZE) {
+                    acceptBatch(nums, i, Math.min(BATCH_SIZE, toExcl - i));
+                }
+            }
+
+            @Override
+            protected HeadStage copy() {
+                return ofRange(nums, fromIncl, toExcl);
+            }
+        };
+    }
+
+    /**
+     * @return A stream of {@code mapper} applied to each of the elements {@code ints} produces
+     */
+    static LongPushStream fromInts(Stage ints, IntToLongFunction mapper) {
+        return new HeadStage() {
+            @Override
+            protected void loadData() {
+                HeadStage head = this;
+                ints.pushInto(new Sink() {
+                    final long[] block = new long[BATCH_SIZE];
+
+                    @Override
+                    public void accept(int i) {
+                        head.accept(mapper.applyAsLong(i));
+                    }
+
+                    @Override
+                    public void acceptBatch(int[] values, int offset, int length) {
+                        for (int done = 0; done < length; done += block.length) {
+                            int n = Math.min(block.length, length - done);
+                            for (int i = 0; i < n; i++) {
+                                block[i] = mapper.applyAsLong(values[offset + done + i]);
+                            }
+                            head.acceptBatch(block, 0, n);
+                        }
+                    }
+
+                    @Override
+                    public void onReadyForNextStage() {
+                        //the head tells its own downstream once loadData() returns
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return head.isDone();
+                    }
+                });
+            }
+
+            @Override
+            protected HeadStage copy() {
+                return (HeadStage) fromInts(ints, mapper);
+            }
+        };
+    }
+
+    @Override
+    public LongPushStream map(LongUnaryOperator mapper) {
+        LongStage op = new StatelessStage(this) {
+            @Override
+            public void accept(long value) {
+                this.downstream.accept(mapper.applyAsLong(value));
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                long[] out = buffer(length);
+                for (int i = 0; i < length; i++) {
+                    out[i] = mapper.applyAsLong(values[offset + i]);
+                }
+                this.downstream.acceptBatch(out, 0, length);
+            }
+        };
+        return attach(op, s -> s.map(mapper));
+    }
+
+    @Override
+    public LongPushStream filter(LongPredicate predicate) {
+        LongStage op = new StatelessStage(this) {
+            @Override
+            public void accept(long l) {
+                if (predicate.test(l)) {
+                    this.downstream.accept(l);
+                }
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                long[] out = buffer(length);
+                int n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    if (predicate.test(values[i])) {
+                        out[n++] = values[i];
+                    }
+                }
+                if (n > 0) {
+                    this.downstream.acceptBatch(out, 0, n);
+                }
+            }
+        };
+        return attach(op, s -> s.filter(predicate));
+    }
+
+    @Override
+    public LongPushStream peek(LongConsumer action) {
+        LongStage op = new StatelessStage(this) {
+            @Override
+            public void accept(long value) {
+                action.accept(value);
+                this.downstream.accept(value);
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    action.accept(values[i]);
+                }
+                this.downstream.acceptBatch(values, offset, length);
+            }
+        };
+        return attach(op, s -> s.peek(action));
+    }
+
+    @Override
+    public LongPushStream sorted() {
+        LongStage op = new StatefulStage(this) {
+            long[] values = new long[16];
+            int size = 0;
+
+            @Override
+            public void accept(long l) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                values[size++] = l;
+            }
+
+            @Override
+            public void acceptBatch(long[] src, int offset, int length) {
+                if (size + length > values.length) {
+                    values = Arrays.copyOf(values, Math.max(size + length, 2 * values.length));
+                }
+                System.arraycopy(src, offset, values, size, length);
+                size += length;
+            }
+
+            @Override
+            public void onReadyForNextStage() {
+                Arrays.sort(values, 0, size);
+                for (int i = 0; i < size && !downstream.isDone(); i += BATCH_SIZE) {
+                    this.downstream.acceptBatch(values, i, Math.min(BATCH_SIZE, size - i));
+                }
+                values = new long[0]; //let go of the sorted values
+                downstream.onReadyForNextStage();
+            }
+        };
+        return attach(op, LongStage::sorted);
+    }
+
+    @Override
+    public LongPushStream limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException(String.format("Cannot limit to %d elements", limit));
+
+        LongStage op = new StatelessStage(this) {
+            long remaining = limit;
+
+            @Override
+            public void accept(long l) {
+                if (remaining > 0) {
+                    this.downstream.accept(l);
+                    remaining--;
+                }
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                int n = (int) Math.min(length, remaining);
+                if (n > 0) {
+                    remaining -= n;
+                    this.downstream.acceptBatch(values, offset, n);
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return remaining <= 0 || this.downstream.isDone();
+            }
+        };
+        return attach(op, s -> s.limit(limit));
+    }
+
+    @Override
+    public LongPushStream skip(long skip) {
+        if (skip < 0)
+            throw new IllegalArgumentException(String.format("Cannot skip %d elements", skip));
+
+        LongStage op = new StatelessStage(this) {
+            long toSkip = skip;
+
+            @Override
+            public void accept(long l) {
+                if (toSkip > 0) {
+                    toSkip--;
+                } else {
+                    this.downstream.accept(l);
+                }
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                int skipped = (int) Math.min(toSkip, length);
+                toSkip -= skipped;
+                if (length > skipped) {
+                    this.downstream.acceptBatch(values, offset + skipped, length - skipped);
+                }
+            }
+        };
+        return attach(op, s -> s.skip(skip));
+    }
+
+    @Override
+    public DoublePushStream mapToDouble(LongToDoubleFunction mapper) {
+        return DoubleStage.fromLongs(this, mapper);
+    }
+
+    /**
+     * Adds a stage after this one. Nothing is wired up until a terminal operation runs
+     *
+     * @param replay Re-creates the same operation on top of another stage
+     */
+    private LongPushStream attach(LongStage op, Function<LongStage, LongPushStream> replay) {
+        op.replay = replay;
+        return op;
+    }
+
+    /**
+     * @return A fresh copy of the pipeline from the source up to this stage, wired up and with its own state
+     */
+    private LongStage instantiate() {
+        if (upstream == null)
+            return ((HeadStage) this).copy();
+        LongStage chain = upstream.instantiate();
+        LongStage next = (LongStage) replay.apply(chain);
+        chain.downstream = next;
+        return next;
+    }
+
+    /**
+     * Runs a fresh copy of this pipeline into {@code terminal}
+     */
+    void evaluateInto(LongSink terminal) {
+        LongStage chain = instantiate();
+        chain.downstream = terminal;
+        chain.evaluate();
+    }
+
+    @Override
+    public long fold(long identity, LongBinaryOperator combiner) {
+        long[] value = {identity};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                value[0] = combiner.applyAsLong(value[0], l);
+            }
+        });
+        return value[0];
+    }
+
+    @Override
+    public OptionalLong fold(LongBinaryOperator combiner) {
+        long[] value = {0};
+        boolean[] sawValue = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                value[0] = sawValue[0] ? combiner.applyAsLong(value[0], l) : l;
+                sawValue[0] = true;
+            }
+        });
+        return sawValue[0] ? OptionalLong.of(value[0]) : OptionalLong.empty();
+    }
+
+    @Override
+    public long count() {
+        long[] total = {0};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                total[0]++;
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                total[0] += length;
+            }
+        });
+        return total[0];
+    }
+
+    @Override
+    public boolean anyMatch(LongPredicate predicate) {
+        boolean[] matched = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                if (!matched[0] && predicate.test(l)) {
+                    matched[0] = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return matched[0];
+            }
+        });
+        return matched[0];
+    }
+
+    @Override
+    public boolean allMatch(LongPredicate predicate) {
+        return !anyMatch(predicate.negate());
+    }
+
+    @Override
+    public OptionalLong findFirst() {
+        long[] first = {0};
+        boolean[] found = {false};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                if (!found[0]) {
+                    first[0] = l;
+                    found[0] = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return found[0];
+            }
+        });
+        return found[0] ? OptionalLong.of(first[0]) : OptionalLong.empty();
+    }
+
+    @Override
+    public long sum() {
+        return total().longValueExact();
+    }
+
+    @Override
+    public OptionalDouble average() {
+        ExactLongSum total = total();
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    private ExactLongSum total() {
+        ExactLongSum total = new ExactLongSum();
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                total.add(l);
+            }
+
+            @Override
+            public void acceptBatch(long[] values, int offset, int length) {
+                total.addAll(values, offset, length);
+            }
+        });
+        return total;
+    }
+
+    @Override
+    public long[] toArray() {
+        long[][] values = {new long[16]};
+        int[] size = {0};
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                if (size[0] == values[0].length) {
+                    values[0] = Arrays.copyOf(values[0], 2 * size[0]);
+                }
+                values[0][size[0]++] = l;
+            }
+
+            @Override
+            public void acceptBatch(long[] src, int offset, int length) {
+                if (size[0] + length > values[0].length) {
+                    values[0] = Arrays.copyOf(values[0], Math.max(size[0] + length, 2 * values[0].length));
+                }
+                System.arraycopy(src, offset, values[0], size[0], length);
+                size[0] += length;
+            }
+        });
+        return Arrays.copyOf(values[0], size[0]);
+    }
+
+    @Override
+    public void forEachLong(LongConsumer action) {
+        evaluateInto(new TerminalStage() {
+            @Override
+            public void accept(long l) {
+                action.accept(l);
+            }
+        });
+    }
+
+    /**
+     * Runs the whole stream up front and iterates over the result
+     */
+    @Override
+    public PrimitiveIterator.OfLong iterator() {
+        return Spliterators.iterator(Arrays.spliterator(toArray()));
+    }
+
+    /**
+     * Used to trigger the upstream stage's evaluate. Eventually calls the {@link HeadStage}'s
+     * {@link HeadStage#loadData()}, which triggers the whole pipeline of execution
+     */
+    protected abstract void evaluate();
+
+    @Override
+    public boolean isDone() {
+        return downstream.isDone();
+    }
+
+
+    /**
+     * An intermediate stage that handles each element on its own
+     */
+    private abstract static class StatelessStage extends LongStage {
+        private long[] buffer = new long[0];
+
+        protected StatelessStage(LongStage upstream) {
+            super(upstream);
+        }
+
+        /**
+         * @return A scratch array of at least the given length that this stage can write its block output into
+         */
+        protected long[] buffer(int length) {
+            if (buffer.length < length) {
+                buffer = new long[Math.max(length, BATCH_SIZE)];
+            }
+            return buffer;
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+
+        @Override
+        public final void onReadyForNextStage() {
+            downstream.onReadyForNextStage();
+        }
+    }
+
+    /**
+     * An intermediate stage that holds on to its input, and only produces its output once
+     * {@link #onReadyForNextStage()} says there's no more coming
+     */
+    private abstract static class StatefulStage extends LongStage {
+        protected StatefulStage(LongStage upstream) {
+            super(upstream);
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+    }
+
+    /**
+     * Where the terminal operations collect their results
+     */
+    private abstract static class TerminalStage implements LongSink {
+        @Override
+        public final void onReadyForNextStage() {
+            //no-op
+        }
+    }
+
+    /**
+     * Produces the stream's elements, see {@link Stage.HeadStage}
+     */
+    abstract static class HeadStage extends LongStage {
+        protected HeadStage() {
+            super(null);
+        }
+
+        @Override
+        public final void accept(long l) {
+            downstream.accept(l);
+        }
+
+        @Override
+        public final void acceptBatch(long[] values, int offset, int length) {
+            downstream.acceptBatch(values, offset, length);
+        }
+
+        @Override
+        public final void onReadyForNextStage() {
+            //no-op, since nobody can tell us we're ready
+        }
+
+        @Override
+        public final boolean isDone() {
+            return downstream.isDone();
+        }
+
+        @Override
+        public final void evaluate() {
+            this.loadData();
+            downstream.onReadyForNextStage();
+        }
+
+        /**
+         * Loads the input, checking {@link #isDone()} between elements and returning early once it's true
+         */
+        protected abstract void loadData();
+
+        /**
+         * @return A new source producing the same elements as this one, for a run to push from
+         */
+        protected abstract HeadStage copy();
+    }
+}
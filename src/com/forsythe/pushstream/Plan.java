@@ -0,0 +1,58 @@
+package com.forsythe.pushstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A pipeline before it's wired up to run: a source, and the template stages whose operations are replayed on top of
+ * it, in order. {@link PlanRules} rewrite it, and every run is built from the result, see {@link Stage#instantiate()}.
+ * Only the stages' operations matter here, not what they happened to be built on, so a rule can drop, reorder or
+ * replace them freely
+ */
+final class Plan {
+    final Stage.HeadStage source;
+    final List<Stage> stages;
+
+    Plan(Stage.HeadStage source, List<Stage> stages) {
+        this.source = source;
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return The pipeline from the source up to and including {@code last}, as it was written
+     */
+    static Plan of(Stage last) {
+        List<Stage> stages = last.pipeline();
+        return new Plan((Stage.HeadStage) stages.get(0), new ArrayList<>(stages.subList(1, stages.size())));
+    }
+
+    /**
+     * @return The stage that the one at {@code i} would be built on
+     */
+    Stage before(int i) {
+        return i == 0 ? source : stages.get(i - 1);
+    }
+
+    /**
+     * @return A copy of this plan, with {@code count} stages starting at {@code from} replaced by {@code replacements}
+     */
+    Plan replace(int from, int count, Stage... replacements) {
+        List<Stage> rewritten = new ArrayList<>(stages.subList(0, from));
+        Collections.addAll(rewritten, replacements);
+        rewritten.addAll(stages.subList(from + count, stages.size()));
+        return new Plan(source, rewritten);
+    }
+
+    /**
+     * @return e.g. "fromRange[100] -> map -> limit(10)"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(source.describe());
+        for (Stage stage : stages) {
+            sb.append(" -> ").append(stage.describe());
+        }
+        return sb.toString();
+    }
+}
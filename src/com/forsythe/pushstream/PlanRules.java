@@ -0,0 +1,118 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.IntComparator;
+
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The rewrites applied to a {@link Plan} before it runs. Each rule makes at most one change, and returns the plan it
+ * was given if there's nothing for it to do. {@link #optimize(Plan)} keeps applying them until none of them can
+ */
+final class PlanRules {
+    /**
+     * {@code limit(a).limit(b)} becomes {@code limit(min(a, b))}, and {@code skip(a).skip(b)} becomes
+     * {@code skip(a + b)}. A {@code limit(a).skip(b)} is swapped around into {@code skip(b).limit(a - b)}, so the skip
+     * can reach the source, or be merged with another skip before it
+     */
+    static final UnaryOperator<Plan> MERGE_LIMITS_AND_SKIPS = PlanRules::mergeLimitsAndSkips;
+
+    /**
+     * A skip or limit with nothing but maps between it and a source that can be sliced, i.e.
+     * {@link Stage.HeadStage#splittableSize()} isn't -1, becomes a slice of the source. So
+     * {@code fromRange(0, n).skip(k)} starts at k in O(1) rather than dropping k elements one batch at a time
+     */
+    static final UnaryOperator<Plan> PUSH_DOWN_SLICES = PlanRules::pushDownSlices;
+
+    /**
+     * A sort followed by another sort in natural or reverse order, with nothing but maps and filters in between, is
+     * dropped. The second sort puts equal values next to each other whatever order they arrive in, so the first one
+     * makes no difference
+     */
+    static final UnaryOperator<Plan> REMOVE_REDUNDANT_SORTS = PlanRules::removeRedundantSorts;
+
+    static final List<UnaryOperator<Plan>> ALL = List.of(
+            MERGE_LIMITS_AND_SKIPS, REMOVE_REDUNDANT_SORTS, PUSH_DOWN_SLICES);
+
+    private PlanRules() {
+    }
+
+    static Plan optimize(Plan plan) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (UnaryOperator<Plan> rule : ALL) {
+                Plan rewritten = rule.apply(plan);
+                if (rewritten != plan) {
+                    plan = rewritten;
+                    changed = true;
+                }
+            }
+        }
+        return plan;
+    }
+
+    private static Plan mergeLimitsAndSkips(Plan plan) {
+        for (int i = 0; i + 1 < plan.stages.size(); i++) {
+            Stage first = plan.stages.get(i);
+            Stage second = plan.stages.get(i + 1);
+            Stage before = plan.before(i);
+            if (first.limitCount >= 0 && second.limitCount >= 0)
+                return plan.replace(i, 2, (Stage) before.limit(Math.min(first.limitCount, second.limitCount)));
+            if (first.skipCount >= 0 && second.skipCount >= 0
+                    && (long) first.skipCount + second.skipCount <= Integer.MAX_VALUE)
+                return plan.replace(i, 2, (Stage) before.skip(first.skipCount + second.skipCount));
+            if (first.limitCount >= 0 && second.skipCount >= 0) {
+                Stage skip = (Stage) before.skip(second.skipCount);
+                Stage limit = (Stage) skip.limit(Math.max(0, first.limitCount - second.skipCount));
+                return plan.replace(i, 2, skip, limit);
+            }
+        }
+        return plan;
+    }
+
+    private static Plan pushDownSlices(Plan plan) {
+        int size = plan.source.splittableSize();
+        if (size < 0)
+            return plan;
+        //a map doesn't change which elements there are, just what they are, so a slice can go before it
+        int i = 0;
+        while (i < plan.stages.size() && plan.stages.get(i).fusibleMapper != null) {
+            i++;
+        }
+        if (i == plan.stages.size())
+            return plan;
+        Stage stage = plan.stages.get(i);
+        Stage.HeadStage sliced;
+        if (stage.skipCount >= 0) {
+            sliced = plan.source.slice(Math.min(stage.skipCount, size), size);
+        } else if (stage.limitCount >= 0) {
+            sliced = plan.source.slice(0, Math.min(stage.limitCount, size));
+        } else {
+            return plan;
+        }
+        return new Plan(sliced, plan.stages).replace(i, 1);
+    }
+
+    private static Plan removeRedundantSorts(Plan plan) {
+        for (int i = 0; i < plan.stages.size(); i++) {
+            if (plan.stages.get(i).sortComparator == null)
+                continue;
+            int j = i + 1;
+            while (j < plan.stages.size()
+                    && (plan.stages.get(j).fusibleMapper != null || plan.stages.get(j).fusiblePredicate != null)) {
+                j++;
+            }
+            if (j < plan.stages.size() && totalOrder(plan.stages.get(j).sortComparator))
+                return plan.replace(i, 1);
+        }
+        return plan;
+    }
+
+    /**
+     * @return Whether {@code comparator} only considers equal values to be tied
+     */
+    private static boolean totalOrder(IntComparator comparator) {
+        return comparator == IntComparator.NATURAL_ORDER || comparator == IntComparator.REVERSE_ORDER;
+    }
+}
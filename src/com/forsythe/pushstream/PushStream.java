@@ -1,10 +1,31 @@
 package com.forsythe.pushstream;
 
+import com.forsythe.util.Characteristics;
+import com.forsythe.util.IntChannelWriter;
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntList;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.MappedIntFile;
+import com.forsythe.util.PipelineProfile;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.concurrent.Flow;
 import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
 import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
 import java.util.function.IntUnaryOperator;
 import java.util.function.ToIntBiFunction;
 
@@ -18,51 +39,338 @@ public interface PushStream extends Sink, Iterable<Integer> {
      * Static factory methods
      **/
     static PushStream fromList(List<Integer> list) {
-        return new Stage.HeadStage() {
+        return new Stage.HeadStage("fromList") {
             @Override
             protected void loadData() {
+                int[] block = new int[Math.min(list.size(), BATCH_SIZE)];
+                int n = 0;
                 for (int i : list) {
-                    accept(i);
+                    block[n++] = i;
+                    if (n == block.length) {
+                        if (isDone())
+                            return;
+                        acceptBatch(block, 0, n);
+                        n = 0;
+                    }
+                }
+                if (n > 0 && !isDone()) {
+                    acceptBatch(block, 0, n);
                 }
             }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return (Stage.HeadStage) fromList(list);
+            }
+
+            @Override
+            protected int splittableSize() {
+                return list instanceof RandomAccess ? list.size() : -1;
+            }
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED;
+            }
+
+            @Override
+            long exactSize() {
+                return list.size();
+            }
+
+            @Override
+            protected Stage.HeadStage slice(int fromIncl, int toExcl) {
+                return (Stage.HeadStage) fromList(list.subList(fromIncl, toExcl));
+            }
         };
     }
 
     static PushStream of(int... nums) {
-        return new Stage.HeadStage() {
+        return ofRange(nums, 0, nums.length);
+    }
+
+    private static Stage.HeadStage ofRange(int[] nums, int fromIncl, int toExcl) {
+        return new Stage.HeadStage("of") {
             @Override
             protected void loadData() {
-                for (int i : nums) {
-                    accept(i);
+                for (int i = fromIncl; i < toExcl && !isDone(); i += BATCH_SIZE) {
+                    acceptBatch(nums, i, Math.min(BATCH_SIZE, toExcl - i));
                 }
             }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return ofRange(nums, fromIncl, toExcl);
+            }
+
+            @Override
+            protected int splittableSize() {
+                return toExcl - fromIncl;
+            }
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED;
+            }
+
+            @Override
+            long exactSize() {
+                return toExcl - fromIncl;
+            }
+
+            @Override
+            protected Stage.HeadStage slice(int sliceFromIncl, int sliceToExcl) {
+                return ofRange(nums, fromIncl + sliceFromIncl, fromIncl + sliceToExcl);
+            }
         };
     }
 
     static PushStream concat(PushStream... streams) {
-        return new Stage.HeadStage() {
+        return new Stage.HeadStage("concat") {
             @Override
             protected void loadData() {
                 for (PushStream stream : streams) {
+                    if (isDone())
+                        return;
+                    Stage pipeline = Stage.pipelineOf(stream);
+                    if (pipeline != null) {
+                        //wire the child's pipeline straight into ours, so it never gets materialized
+                        pipeline.pushInto(this);
+                        continue;
+                    }
                     for (int i : stream) {
+                        if (isDone())
+                            return;
                         accept(i);
                     }
                 }
             }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return (Stage.HeadStage) concat(streams);
+            }
         };
     }
 
     static PushStream fromRange(int fromIncl, int toExcl) {
-        return new Stage.HeadStage() {
+        return new Stage.HeadStage("fromRange") {
+            @Override
+            protected void loadData() {
+                int[] block = new int[(int) Math.max(0, Math.min(BATCH_SIZE, (long) toExcl - fromIncl))];
+                for (int start = fromIncl; start < toExcl && !isDone(); ) {
+                    int n = (int) Math.min(block.length, (long) toExcl - start);
+                    for (int i = 0; i < n; i++) {
+                        block[i] = start + i;
+                    }
+                    acceptBatch(block, 0, n);
+                    start += n;
+                }
+            }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return (Stage.HeadStage) fromRange(fromIncl, toExcl);
+            }
+
+            @Override
+            protected int splittableSize() {
+                long size = exactSize();
+                return size <= Integer.MAX_VALUE ? (int) size : -1;
+            }
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED | Characteristics.SORTED | Characteristics.DISTINCT;
+            }
+
+            @Override
+            long exactSize() {
+                return Math.max(0, (long) toExcl - fromIncl);
+            }
+
+            @Override
+            protected Stage.HeadStage slice(int sliceFromIncl, int sliceToExcl) {
+                return (Stage.HeadStage) fromRange(fromIncl + sliceFromIncl, fromIncl + sliceToExcl);
+            }
+        };
+    }
+
+    /**
+     * Streams a binary file of int32 values stored in the given byte order. Each run maps the file into memory a
+     * segment at a time, so the OS pages it in as it's read and it's never loaded onto the heap
+     *
+     * @throws IllegalArgumentException If the file's length isn't a whole number of ints
+     * @throws UncheckedIOException     If the file can't be read
+     */
+    static PushStream fromMappedFile(Path path, ByteOrder order) {
+        return mappedFile(path, order, 0, MappedIntFile.length(path));
+    }
+
+    private static Stage.HeadStage mappedFile(Path path, ByteOrder order, long fromIncl, long toExcl) {
+        return new Stage.HeadStage("fromMappedFile") {
             @Override
             protected void loadData() {
-                for (int i = fromIncl; i < toExcl; i++) {
-                    accept(i);
+                try (MappedIntFile file = MappedIntFile.open(path, order, fromIncl, toExcl)) {
+                    int[] block = new int[(int) Math.min(BATCH_SIZE, toExcl - fromIncl)];
+                    int n;
+                    while (!isDone() && (n = file.read(block, 0, block.length)) > 0) {
+                        acceptBatch(block, 0, n);
+                    }
                 }
             }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return mappedFile(path, order, fromIncl, toExcl);
+            }
+
+            @Override
+            protected int splittableSize() {
+                long size = exactSize();
+                return size <= Integer.MAX_VALUE ? (int) size : -1;
+            }
+
+            @Override
+            public int characteristics() {
+                return Characteristics.SIZED;
+            }
+
+            @Override
+            long exactSize() {
+                return toExcl - fromIncl;
+            }
+
+            @Override
+            protected Stage.HeadStage slice(int sliceFromIncl, int sliceToExcl) {
+                return mappedFile(path, order, fromIncl + sliceFromIncl, fromIncl + sliceToExcl);
+            }
         };
     }
 
+    /**
+     * Streams whatever {@code publisher} sends. Each run subscribes again, and never asks for more than
+     * {@code bufferSize} elements beyond what the stream has taken, so a slow pipeline holds the publisher back instead
+     * of buffering everything it sends. Short-circuiting stages like {@link #limit(int)} cancel the subscription once
+     * they've seen enough, and an {@code onError} is rethrown by the terminal operation
+     */
+    static PushStream fromPublisher(Flow.Publisher<Integer> publisher, int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException(String.format("Invalid buffer size %d", bufferSize));
+        return new Stage.HeadStage("fromPublisher") {
+            @Override
+            protected void loadData() {
+                BoundedSubscriber<Integer> subscriber = new BoundedSubscriber<>(bufferSize);
+                publisher.subscribe(subscriber);
+                int[] block = new int[Math.min(BATCH_SIZE, bufferSize)];
+                try {
+                    Integer next;
+                    while (!isDone() && (next = subscriber.take()) != null) {
+                        //push whatever else has already arrived along with it
+                        int n = 0;
+                        block[n++] = next;
+                        while (n < block.length && (next = subscriber.poll()) != null) {
+                            block[n++] = next;
+                        }
+                        acceptBatch(block, 0, n);
+                    }
+                } finally {
+                    subscriber.cancel();
+                }
+            }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return (Stage.HeadStage) fromPublisher(publisher, bufferSize);
+            }
+        };
+    }
+
+    /**
+     * Like {@link #fromPublisher(Flow.Publisher, int)}, for a publisher that sends blocks of elements, so none of them
+     * are boxed. The buffer size counts blocks
+     */
+    static PushStream fromBatchPublisher(Flow.Publisher<int[]> publisher, int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException(String.format("Invalid buffer size %d", bufferSize));
+        return new Stage.HeadStage("fromBatchPublisher") {
+            @Override
+            protected void loadData() {
+                BoundedSubscriber<int[]> subscriber = new BoundedSubscriber<>(bufferSize);
+                publisher.subscribe(subscriber);
+                try {
+                    int[] next;
+                    while (!isDone() && (next = subscriber.take()) != null) {
+                        acceptBatch(next, 0, next.length);
+                    }
+                } finally {
+                    subscriber.cancel();
+                }
+            }
+
+            @Override
+            protected Stage.HeadStage copy() {
+                return (Stage.HeadStage) fromBatchPublisher(publisher, bufferSize);
+            }
+        };
+    }
+
+    /**
+     * @return A copy of the whole pipeline in parallel mode, leaving this stream, and any other built from the same
+     * source, as it is. When a terminal operation runs, a splittable source
+     * ({@link #fromRange(int, int)}, {@link #of(int...)}, or {@link #fromList(List)} over a random-access list) is
+     * divided into slices that run on the common fork/join pool, each through its own copy of the stateless stages.
+     * Stages like {@link #sorted()}, {@link #limit(int)} and {@link #skip(int)} still see their input in order.
+     * <p>
+     * Functions passed to the stream must then be safe to call from several threads at once.
+     * {@link #fold(int, ToIntBiFunction)} still folds the elements one at a time, in order, but
+     * {@link #fold(int, ToIntBiFunction, ToIntBiFunction)} folds each slice separately
+     */
+    PushStream parallel();
+
+    /**
+     * @return A copy of the whole pipeline that runs on the calling thread, leaving this stream as it is
+     */
+    PushStream sequential();
+
+    /**
+     * Every terminal operation runs through its own fresh copy of the stages, so any stream can be run again, or
+     * branched off from. This goes further, and takes an immutable snapshot of the pipeline, that can be shared and run
+     * from any number of threads at once. Adding stages to it, or calling {@link #parallel()} or {@link #profiled()} on
+     * it, gives a new snapshot and leaves this one as it is
+     */
+    PushStream compile();
+
+    /**
+     * @return What's known about the elements, as a bitset of {@link Characteristics} flags. Sources set them, e.g.
+     * {@link #fromRange(int, int)} is sized, sorted and distinct, and each stage keeps the ones it can't break. Stages
+     * use them to skip work: {@link #sorted()} on sorted input and {@link #distinct()} on distinct input do nothing,
+     * and {@link #count()} on sized input doesn't need to run anything (peeks are never sized, so they always run)
+     */
+    int characteristics();
+
+    /**
+     * @return A copy of the whole pipeline with per-stage instrumentation switched on, starting from nothing
+     * recorded. Every run of it, or of anything built on it, counts the elements going in and out of each stage,
+     * samples the time spent in each one, and tracks how many elements stages like {@link #sorted()} hold on to.
+     * Map/filter chains aren't fused while this is on, so each shows up separately. This stream, and any other built
+     * from the same source, is left as it is
+     */
+    PushStream profiled();
+
+    /**
+     * @return What the stages from the source up to this one have recorded over every run, since the
+     * {@link #profiled()} copy they belong to was made. {@link PipelineProfile#explain()} gives a readable summary
+     */
+    PipelineProfile profile();
+
+    /**
+     * @return The plan a terminal operation would run, after it has been optimized, e.g.
+     * {@code "fromRange[10] -> map -> sorted"} for {@code fromRange(0, 100).map(f).skip(90).sorted()}: the skip became a
+     * slice of the range. Profiled pipelines aren't rewritten, so each stage shows up as it was written
+     */
+    String plan();
+
     /**
      * Nonterminal operations
      **/
@@ -70,26 +378,110 @@ public interface PushStream extends Sink, Iterable<Integer> {
 
     PushStream flatMap(Function<Integer, Iterable<Integer>> mapper);
 
+    /**
+     * Like {@link #flatMap(Function)}, but the mapper pushes its outputs straight downstream, so there's no
+     * per-element allocation
+     */
+    PushStream mapMulti(IntMapMultiConsumer mapper);
+
+    /**
+     * Prints everything that reaches this stage on one line, once the source has run out. Note that this holds on to
+     * every element and only passes them on at the end, see {@link #peek(IntConsumer)} for a tap that doesn't
+     */
     PushStream peek();
 
+    /**
+     * Hands every element to {@code action} as it passes through, without holding on to anything
+     */
+    PushStream peek(IntConsumer action);
+
+    /**
+     * Like {@link #peek(IntConsumer)}, but only the first element and every {@code interval}th one after it are
+     * handed to {@code action}
+     */
+    PushStream peekSampled(int interval, IntConsumer action);
+
+    /**
+     * Like {@link #peek(IntConsumer)}, but {@code action} is called at most {@code permitsPerSecond} times in any
+     * one-second window, and the other elements just pass straight through. Cheap enough to leave in place
+     */
+    PushStream peekRateLimited(int permitsPerSecond, IntConsumer action);
+
     PushStream filter(IntPredicate predicate);
 
-    PushStream sorted(Comparator<Integer> comparator);
+    PushStream sorted(IntComparator comparator);
+
+    /**
+     * Like {@link #sorted(IntComparator)}, but holds roughly at most {@code memoryBudgetBytes} of elements in memory.
+     * Beyond that, sorted runs are spilled to temp files and merged back together as the output is pushed on
+     */
+    PushStream sorted(IntComparator comparator, long memoryBudgetBytes);
 
     PushStream limit(int limit);
 
+    /**
+     * Same output as {@code sorted(comparator).limit(k)}, but only ever holds {@code k} elements, in a bounded heap.
+     * A {@link #sorted(IntComparator)} directly followed by a {@link #limit(int)} is run this way automatically
+     */
+    PushStream topK(int k, IntComparator comparator);
+
     PushStream skip(int skip);
 
+    /**
+     * Passes on each element the first time it's seen, and drops any repeats. The elements seen so far are kept in a
+     * primitive hash set, unless this comes straight after {@link #sorted()} (in natural or reverse order), in which
+     * case only the last element is
+     *
+     * @param offHeap Whether to keep the hash set in a direct buffer, off the Java heap
+     */
+    PushStream distinct(boolean offHeap);
+
+    default PushStream distinct() {
+        return distinct(false);
+    }
+
+    default PushStream sorted(Comparator<Integer> comparator) {
+        return sorted(IntComparator.from(comparator));
+    }
+
     default PushStream sorted() {
-        return sorted(Integer::compare);
+        return sorted(IntComparator.NATURAL_ORDER);
+    }
+
+    default PushStream topK(int k, Comparator<Integer> comparator) {
+        return topK(k, IntComparator.from(comparator));
+    }
+
+    LongPushStream mapToLong(IntToLongFunction mapper);
+
+    default LongPushStream asLongStream() {
+        return mapToLong(i -> i);
+    }
+
+    DoublePushStream mapToDouble(IntToDoubleFunction mapper);
+
+    default DoublePushStream asDoubleStream() {
+        return mapToDouble(i -> i);
     }
 
     /**
      * Terminal operations
      **/
 
+    /**
+     * Folds the elements into {@code identity} one at a time, in encounter order. In {@link #parallel()} mode, the
+     * stages before it still run in slices, but the fold itself doesn't, so {@code combiner} needn't be associative
+     */
     int fold(int identity, ToIntBiFunction<Integer, Integer> combiner);
 
+    /**
+     * Like {@link #fold(int, ToIntBiFunction)}, but in {@link #parallel()} mode, each slice is folded into its own
+     * copy of {@code identity}, and the slice results are merged in encounter order with {@code combiner}. That only
+     * gives the same answer as a sequential fold if {@code identity} is a true identity for {@code combiner}, and
+     * the two functions are associative and agree with each other, as with {@code fold(0, Integer::sum, Integer::sum)}
+     */
+    int fold(int identity, ToIntBiFunction<Integer, Integer> accumulator, ToIntBiFunction<Integer, Integer> combiner);
+
     Optional<Integer> fold(ToIntBiFunction<Integer, Integer> combiner);
 
     default Optional<Integer> max() {
@@ -100,9 +492,113 @@ public interface PushStream extends Sink, Iterable<Integer> {
         return fold(Math::min);
     }
 
+    /**
+     * @throws ArithmeticException If there are more than {@link Integer#MAX_VALUE} elements
+     */
     int count();
 
-    int sum();
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a match is found
+     */
+    boolean anyMatch(IntPredicate predicate);
+
+    /**
+     * Short-circuiting: stops pulling from the source as soon as a mismatch is found
+     */
+    boolean allMatch(IntPredicate predicate);
 
-    List<Integer> toList();
+    default boolean noneMatch(IntPredicate predicate) {
+        return !anyMatch(predicate);
+    }
+
+    /**
+     * Short-circuiting: stops pulling from the source after the first element
+     */
+    Optional<Integer> findFirst();
+
+    /**
+     * Adds up the elements as longs, so the total doesn't wrap around when it's bigger than an int
+     */
+    long sum();
+
+    OptionalDouble average();
+
+    /**
+     * Counts the elements with each key, in a primitive hash map
+     */
+    IntIntMap countBy(IntUnaryOperator key);
+
+    /**
+     * Counts the elements with each key, where every key is known to be in {@code [fromKey, toKey)}, in an array with
+     * a slot per key. See {@link IntIntMap#dense(int, int)}
+     *
+     * @throws IllegalArgumentException If an element's key falls outside the range
+     */
+    IntIntMap countBy(IntUnaryOperator key, int fromKey, int toKey);
+
+    /**
+     * Folds the elements with each key separately, starting from {@code identity}, in a primitive hash map.
+     * In parallel, each slice folds into its own map, and the maps are merged with {@code op}, so it needs
+     * to be associative with {@code identity} as its identity
+     */
+    IntIntMap groupingFold(IntUnaryOperator key, int identity, IntBinaryOperator op);
+
+    /**
+     * Same as {@link #groupingFold(IntUnaryOperator, int, IntBinaryOperator)}, where every key is known to be in
+     * {@code [fromKey, toKey)}, in an array with a slot per key
+     *
+     * @throws IllegalArgumentException If an element's key falls outside the range
+     */
+    IntIntMap groupingFold(IntUnaryOperator key, int fromKey, int toKey, int identity, IntBinaryOperator op);
+
+    IntList toList();
+
+    int[] toArray();
+
+    /**
+     * Writes every element to the channel as a binary int32 in the given byte order, so
+     * {@link #fromMappedFile(Path, ByteOrder)} can read it back. Elements are written in large blocks through one
+     * reusable direct buffer, so memory use stays constant. The channel is left open
+     *
+     * @return How many elements were written
+     * @throws UncheckedIOException If writing fails
+     */
+    long writeTo(WritableByteChannel channel, ByteOrder order);
+
+    default long writeTo(Path path, ByteOrder order) {
+        return writeTo(path, order, false);
+    }
+
+    /**
+     * Like {@link #writeTo(WritableByteChannel, ByteOrder)}, into a file that's created or truncated first
+     *
+     * @param fsync Whether to force the file's contents to the storage device before returning
+     */
+    default long writeTo(Path path, ByteOrder order, boolean fsync) {
+        return IntChannelWriter.writeFile(path, fsync, channel -> writeTo(channel, order));
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator();
+
+    /**
+     * Streams the output through a bounded buffer, with this stream running on a background thread that's at most
+     * {@code bufferSize} elements ahead of the caller. Dropping the iterator before the end eventually stops the
+     * background thread once the iterator is garbage collected
+     */
+    PrimitiveIterator.OfInt iterator(int bufferSize);
+
+    /**
+     * Publishes the output to any number of subscribers. Each one gets its own run of this stream, on a background
+     * thread that only hands over an element once it's been requested. Until then the whole pipeline waits, source
+     * included, so memory stays bounded however slow the subscriber is. Cancelling stops the run the way a
+     * {@link #limit(int)} would
+     */
+    Flow.Publisher<Integer> toPublisher();
+
+    /**
+     * Like {@link #toPublisher()}, with the output sent in blocks of up to {@code batchSize} elements, so none of them
+     * are boxed. Each request is for a number of blocks
+     */
+    Flow.Publisher<int[]> toBatchPublisher(int batchSize);
 }
@@ -11,6 +11,22 @@ public interface Sink {
      */
     void accept(int i);
 
+    /**
+     * Bulk version of {@link #accept(int)} that consumes {@code values[offset]} through
+     * {@code values[offset + length - 1]}. Implementations must not modify or hold on to {@code values}, since the
+     * caller is free to reuse it as soon as this returns.
+     * <p>
+     * Stages that override this may process a whole block before checking {@link #isDone()}. Ones that pass on every
+     * value they're given, like {@link PushStream#map(java.util.function.IntUnaryOperator)}, only process as much of
+     * the block as {@link #demand()} allows, but work upstream of a filter can still run ahead of a later
+     * short-circuiting stage by up to one block
+     */
+    default void acceptBatch(int[] values, int offset, int length) {
+        for (int i = offset; i < offset + length && !isDone(); i++) {
+            accept(values[i]);
+        }
+    }
+
     /**
      * For some stream operations, it cannot continue unless it knows it has
      * processed all inputs, e.g. {@link PushStream#sorted(Comparator)}.
@@ -18,4 +34,23 @@ public interface Sink {
      * In that case, the sort stage will wait until this function is called
      */
     void onReadyForNextStage();
+
+    /**
+     * Lets a stage tell everything upstream of it that it won't consume any more values, e.g. a
+     * {@link PushStream#limit(int)} that has used up its quota. Sources check this between elements and
+     * stop producing as soon as it returns true
+     *
+     * @return Whether this stage (or some stage after it) is done consuming values
+     */
+    default boolean isDone() {
+        return false;
+    }
+
+    /**
+     * @return An upper bound on how many more values this stage (and everything after it) will consume before it's
+     * {@link #isDone()}, e.g. what's left of a {@link PushStream#limit(int)}'s quota
+     */
+    default int demand() {
+        return Integer.MAX_VALUE;
+    }
 }
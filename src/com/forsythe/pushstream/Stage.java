@@ -2,51 +2,227 @@ package com.forsythe.pushstream;
 
 import com.forsythe.pushstream.TerminalStage.TerminalConsumerStage;
 import com.forsythe.pushstream.TerminalStage.TerminalOperatorStage;
+import com.forsythe.util.Characteristics;
+import com.forsythe.util.EdgeMeter;
+import com.forsythe.util.ExactLongSum;
+import com.forsythe.util.ExternalIntSorter;
+import com.forsythe.util.IntChannelWriter;
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntHashSet;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntList;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.IntRingBuffer;
+import com.forsythe.util.IntSortBuffer;
+import com.forsythe.util.IntTopK;
+import com.forsythe.util.PipelineProfile;
+import com.forsythe.util.StageMetrics;
+import com.forsythe.util.StageProfile;
 
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.*;
 import java.util.stream.Collectors;
 
+import static com.forsythe.util.Characteristics.*;
+
 /**
  * Represents a stage of the stream that takes some input and potentially produces some output
  */
 public abstract class Stage implements PushStream {
+    /**
+     * How many elements the sources push downstream at a time through {@link Sink#acceptBatch(int[], int, int)}
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Cancels the producer behind an {@link #iterator(int)} that was dropped before being read to the end
+     */
+    private static final Cleaner ABANDONED_ITERATORS = Cleaner.create();
+
+    /**
+     * In {@link #parallel()} mode, sources smaller than this aren't worth splitting up
+     */
+    static final int MIN_SLICE_SIZE = 1 << 13;
+
+    /**
+     * In {@link #parallel()} mode, sources are split into slices no bigger than this
+     */
+    static final int MAX_SLICE_SIZE = 1 << 20;
+
     protected Sink downstream;
 
-    private Stage() {
+    /**
+     * The stage feeding this one, or null for a {@link HeadStage}
+     */
+    final Stage upstream;
+
+    /**
+     * Re-creates this stage's operation, with fresh state, on top of some other stage. Every run goes through its own
+     * copy of the pipeline made this way, see {@link #instantiate()}
+     */
+    private Function<Stage, PushStream> replay;
+
+    /**
+     * The pipeline up to this stage after {@link PlanRules#optimize(Plan)}, worked out on the first run and reused
+     * by every run after it, e.g. each element's run of a compiled inner stream in a flatMap. The stages up to this
+     * one never change once they're built, so neither does the plan
+     */
+    private volatile Plan optimized;
+
+    /**
+     * Whether this stage needs to see its whole input in order (sorted, limit, etc.), rather than being able to run
+     * separately on each slice of the input in {@link #parallel()} mode
+     */
+    private boolean ordered = false;
+
+    /**
+     * The function applied by a map or filter stage, so {@link #evaluateFused()} can collapse runs of them into a
+     * single {@link FusedStage}. At most one is set, and neither is for any other kind of stage
+     */
+    IntUnaryOperator fusibleMapper;
+    IntPredicate fusiblePredicate;
+
+    /**
+     * The order a sorted stage sorts into, and how many elements a limit stage lets through, so
+     * {@link #evaluateFused()} can replace a sort that only feeds a limit with a {@link #topK(int, IntComparator)}.
+     * These and the number of elements a skip stage drops are also what {@link PlanRules} work from
+     */
+    IntComparator sortComparator;
+    long sortMemoryBudget = -1; //only set for a sort that spills, see sorted(IntComparator, long)
+    int limitCount = -1;
+    int skipCount = -1;
+
+    /**
+     * What's known about this stage's output, see {@link Characteristics}. If it's {@link Characteristics#SIZED}, the
+     * number of elements is worked out from the source's each time it's asked for, since the source can change from
+     * one run to the next, e.g. a list that's added to
+     */
+    private int characteristics = 0;
+    private LongUnaryOperator resize = LongUnaryOperator.identity();
+
+    /**
+     * What this stage does, e.g. "filter", for {@link #profile()}
+     */
+    final String name;
+
+    /**
+     * Only recorded into once {@link #profiled()} is switched on. Copies of this stage made for {@link #parallel()}
+     * slices share the original's metrics
+     */
+    StageMetrics metrics = new StageMetrics();
+
+    private Stage(String name, Stage upstream) {
         //no-overriding this class outside of here
+        this.name = name;
+        this.upstream = upstream;
     }
 
 
     @Override
     public PushStream map(IntUnaryOperator mapper) {
-        Stage op = new StatelessStage(this) {
+        Stage op = new StatelessStage("map", this) {
             @Override
             public void accept(int value) {
                 this.downstream.accept(mapper.applyAsInt(value));
             }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                //don't map anything a limit further down would only drop
+                int n = Math.min(length, this.downstream.demand());
+                int[] out = buffer(n);
+                for (int i = 0; i < n; i++) {
+                    out[i] = mapper.applyAsInt(values[offset + i]);
+                }
+                this.downstream.acceptBatch(out, 0, n);
+            }
+
+            @Override
+            public int demand() {
+                return this.downstream.demand();
+            }
         };
-        this.downstream = op;
-        return op;
+        op.fusibleMapper = mapper;
+        return attach(inherit(op, SIZED), s -> s.map(mapper));
     }
 
     @Override
     public PushStream flatMap(Function<Integer, Iterable<Integer>> mapper) {
-        Stage op = new StatelessStage(this) {
+        Stage op = new StatelessStage("flatMap", this) {
             @Override
             public void accept(int value) {
-                for (int i : mapper.apply(value)) {
+                Iterable<Integer> generated = mapper.apply(value);
+                Stage pipeline = pipelineOf(generated);
+                if (pipeline != null) {
+                    //push the generated stream straight through, rather than collecting it for its iterator
+                    pipeline.pushInto(this.downstream);
+                    return;
+                }
+                for (int i : generated) {
+                    if (this.downstream.isDone())
+                        return;
                     this.downstream.accept(i);
                 }
             }
         };
-        this.downstream = op;
-        return op;
+        return attach(op, s -> s.flatMap(mapper));
+    }
+
+    @Override
+    public PushStream mapMulti(IntMapMultiConsumer mapper) {
+        Stage op = new StatelessStage("mapMulti", this) {
+            int[] pending;
+            int pendingSize = 0;
+            //one element can expand without end, so anything emitted after downstream is done is dropped
+            boolean stopped = false;
+            final IntConsumer emit = i -> {
+                if (!this.downstream.isDone())
+                    this.downstream.accept(i);
+            };
+            //in block mode, outputs are gathered up and passed on a block at a time instead
+            final IntConsumer emitToBlock = i -> {
+                if (pendingSize == pending.length) {
+                    flush();
+                    stopped = this.downstream.isDone();
+                }
+                if (!stopped)
+                    pending[pendingSize++] = i;
+            };
+
+            @Override
+            public void accept(int value) {
+                mapper.accept(value, emit);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                pending = buffer(BATCH_SIZE);
+                for (int i = offset; i < offset + length && !stopped && !this.downstream.isDone(); i++) {
+                    mapper.accept(values[i], emitToBlock);
+                }
+                flush();
+            }
+
+            private void flush() {
+                if (pendingSize > 0) {
+                    this.downstream.acceptBatch(pending, 0, pendingSize);
+                    pendingSize = 0;
+                }
+            }
+        };
+        return attach(op, s -> s.mapMulti(mapper));
     }
 
     @Override
     public PushStream peek() {
-        Stage op = new StatefulStage(this) {
+        Stage op = new StatefulStage("peek", this) {
             List<Integer> values = new ArrayList<>();
 
             @Override
@@ -54,278 +230,1642 @@ public abstract class Stage implements PushStream {
                 values.add(value);
             }
 
+            @Override
+            int buffered() {
+                return values.size();
+            }
+
             @Override
             public void onReadyForNextStage() {
                 System.out.println(values.stream().map(String::valueOf).collect(Collectors.joining(" ")));
                 for (int i : values) {
+                    if (downstream.isDone())
+                        break;
                     downstream.accept(i);
                 }
                 downstream.onReadyForNextStage();
             }
         };
-        this.downstream = op;
-        return op;
+        return attachOrdered(inherit(op, SORTED | DISTINCT), s -> s.peek());
     }
 
     @Override
-    public PushStream filter(IntPredicate predicate) {
-        Stage op = new StatelessStage(this) {
+    public PushStream peek(IntConsumer action) {
+        Stage op = new StatelessStage("peek", this) {
+            @Override
+            public void accept(int value) {
+                action.accept(value);
+                this.downstream.accept(value);
+            }
 
             @Override
-            public void accept(int i) {
-                if (predicate.test(i)) {
-                    this.downstream.accept(i);
+            public void acceptBatch(int[] values, int offset, int length) {
+                int n = Math.min(length, this.downstream.demand());
+                for (int i = offset; i < offset + n; i++) {
+                    action.accept(values[i]);
                 }
+                this.downstream.acceptBatch(values, offset, n);
+            }
+
+            @Override
+            public int demand() {
+                return this.downstream.demand();
             }
         };
-        this.downstream = op;
-        return op;
+        return attach(inherit(op, SORTED | DISTINCT), s -> s.peek(action));
     }
 
     @Override
-    public PushStream sorted(Comparator<Integer> comparator) {
-        Stage op = new StatefulStage(this) {
-            PriorityQueue<Integer> heap = new PriorityQueue<>(comparator);
+    public PushStream peekSampled(int interval, IntConsumer action) {
+        if (interval < 1)
+            throw new IllegalArgumentException(String.format("Invalid sampling interval %d", interval));
+
+        Stage op = new StatelessStage("peekSampled", this) {
+            int untilNext = 0; //how many elements to let through before the next one is tapped
 
             @Override
-            public void accept(int i) {
-                heap.add(i);
+            public void accept(int value) {
+                if (untilNext == 0) {
+                    action.accept(value);
+                    untilNext = interval;
+                }
+                untilNext--;
+                this.downstream.accept(value);
             }
 
             @Override
-            public void onReadyForNextStage() {
-                while (!heap.isEmpty()) {
-                    this.downstream.accept(heap.remove());
+            public void acceptBatch(int[] values, int offset, int length) {
+                int n = Math.min(length, this.downstream.demand());
+                int end = offset + n;
+                int i = offset + untilNext;
+                for (; i < end; i += interval) {
+                    action.accept(values[i]);
                 }
-                downstream.onReadyForNextStage();
+                untilNext = i - end;
+                this.downstream.acceptBatch(values, offset, n);
+            }
+
+            @Override
+            public int demand() {
+                return this.downstream.demand();
             }
         };
-        this.downstream = op;
-        return op;
+        return attach(inherit(op, SORTED | DISTINCT), s -> s.peekSampled(interval, action));
     }
 
     @Override
-    public PushStream limit(int limit) {
-        Stage op = new StatelessStage(this) {
-            int remaining = limit;
+    public PushStream peekRateLimited(int permitsPerSecond, IntConsumer action) {
+        if (permitsPerSecond < 1)
+            throw new IllegalArgumentException(String.format("Invalid rate %d per second", permitsPerSecond));
+        return peekRateLimited(new RateLimiter(permitsPerSecond, System::nanoTime), action);
+    }
+
+    /**
+     * @param limiter Shared by every copy of the stage in {@link #parallel()} mode, so the rate applies overall
+     */
+    PushStream peekRateLimited(RateLimiter limiter, IntConsumer action) {
+        Stage op = new StatelessStage("peekRateLimited", this) {
+            @Override
+            public void accept(int value) {
+                if (limiter.tryAcquire(1) > 0) {
+                    action.accept(value);
+                }
+                this.downstream.accept(value);
+            }
 
             @Override
-            public void accept(int i) {
-                if (remaining > 0) {
-                    this.downstream.accept(i);
-                    remaining--;
+            public void acceptBatch(int[] values, int offset, int length) {
+                int n = Math.min(length, this.downstream.demand());
+                int granted = limiter.tryAcquire(n);
+                for (int i = offset; i < offset + granted; i++) {
+                    action.accept(values[i]);
                 }
+                this.downstream.acceptBatch(values, offset, n);
+            }
+
+            @Override
+            public int demand() {
+                return this.downstream.demand();
             }
         };
-        this.downstream = op;
-        return op;
+        return attach(inherit(op, SORTED | DISTINCT), s -> s.peekRateLimited(limiter, action));
     }
 
     @Override
-    public PushStream skip(int skip) {
-        Stage op = new StatelessStage(this) {
-            int toSkip = skip;
+    public PushStream filter(IntPredicate predicate) {
+        Stage op = new StatelessStage("filter", this) {
 
             @Override
             public void accept(int i) {
-                if (toSkip > 0) {
-                    toSkip--;
-                } else {
+                if (predicate.test(i)) {
                     this.downstream.accept(i);
                 }
             }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                int[] out = buffer(length);
+                int n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    if (predicate.test(values[i])) {
+                        out[n++] = values[i];
+                    }
+                }
+                if (n > 0) {
+                    this.downstream.acceptBatch(out, 0, n);
+                }
+            }
         };
-        this.downstream = op;
-        return op;
+        op.fusiblePredicate = predicate;
+        return attach(inherit(op, SORTED | DISTINCT), s -> s.filter(predicate));
     }
 
     @Override
-    public void forEach(Consumer<? super Integer> consumer) {
-        this.downstream = new TerminalConsumerStage() {
+    public PushStream sorted(IntComparator comparator) {
+        if (alreadySorted(comparator))
+            return this;
+        Stage op = new StatefulStage("sorted", this) {
+            IntSortBuffer values = new IntSortBuffer(comparator);
+
             @Override
             public void accept(int i) {
-                consumer.accept(i);
+                values.add(i);
             }
-        };
-        evaluate();
-    }
 
-    @Override
-    public int sum() {
-        TerminalOperatorStage<Integer> tes = new TerminalOperatorStage<>() {
-            int total = 0;
+            @Override
+            public void acceptBatch(int[] src, int offset, int length) {
+                values.addAll(src, offset, length);
+            }
 
             @Override
-            public Integer getResult() {
-                return total;
+            int buffered() {
+                return values.size();
             }
 
             @Override
-            public void accept(int i) {
-                total += i;
+            public void onReadyForNextStage() {
+                values.sort();
+                int size = values.size();
+                for (int i = 0; i < size && !downstream.isDone(); i += BATCH_SIZE) {
+                    this.downstream.acceptBatch(values.array(), i, Math.min(BATCH_SIZE, size - i));
+                }
+                values = new IntSortBuffer(comparator); //let go of the sorted values
+                downstream.onReadyForNextStage();
             }
         };
-        this.downstream = tes;
-        evaluate();
-        return tes.getResult();
+        op.sortComparator = comparator;
+        return attachOrdered(sortedBy(inherit(op, SIZED | DISTINCT), comparator), s -> s.sorted(comparator));
     }
 
     @Override
-    public int count() {
-        TerminalOperatorStage<Integer> tes = new TerminalOperatorStage<>() {
-            int total = 0;
+    public PushStream sorted(IntComparator comparator, long memoryBudgetBytes) {
+        if (alreadySorted(comparator))
+            return this;
+        Stage op = new StatefulStage("sorted", this) {
+            ExternalIntSorter sorter = new ExternalIntSorter(comparator, memoryBudgetBytes);
 
             @Override
-            public Integer getResult() {
-                return total;
+            public void accept(int i) {
+                sorter.add(i);
             }
 
             @Override
-            public void accept(int i) {
-                total++;
+            public void acceptBatch(int[] src, int offset, int length) {
+                sorter.addAll(src, offset, length);
             }
-        };
-        this.downstream = tes;
-        evaluate();
-        return tes.getResult();
-    }
 
-    @Override
-    public int fold(int identity, ToIntBiFunction<Integer, Integer> combiner) {
-        TerminalOperatorStage<Integer> tes = new TerminalOperatorStage<>() {
-            int value = identity;
+            @Override
+            int buffered() {
+                return sorter.buffered();
+            }
 
             @Override
-            public Integer getResult() {
-                return value;
+            void release() {
+                sorter.close();
             }
 
             @Override
-            public void accept(int i) {
-                value = combiner.applyAsInt(value, i);
+            public void onReadyForNextStage() {
+                try (ExternalIntSorter.Output sorted = sorter.finish()) {
+                    int[] block = new int[BATCH_SIZE];
+                    int n;
+                    while (!downstream.isDone() && (n = sorted.read(block, 0, block.length)) > 0) {
+                        this.downstream.acceptBatch(block, 0, n);
+                    }
+                }
+                downstream.onReadyForNextStage();
             }
         };
-        this.downstream = tes;
-        evaluate();
-        return tes.getResult();
+        op.sortComparator = comparator;
+        op.sortMemoryBudget = memoryBudgetBytes;
+        return attachOrdered(sortedBy(inherit(op, SIZED | DISTINCT), comparator),
+                s -> s.sorted(comparator, memoryBudgetBytes));
     }
 
     @Override
-    public List<Integer> toList() {
-        TerminalOperatorStage<List<Integer>> tes = new TerminalOperatorStage<>() {
-            List<Integer> output = new ArrayList<>();
+    public PushStream topK(int k, IntComparator comparator) {
+        if (alreadySorted(comparator))
+            return limit(k);
+        Stage op = sortedBy(inherit(topKStage(this, k, comparator), SIZED | DISTINCT), comparator);
+        op.resize = size -> Math.min(k, size);
+        return attachOrdered(op, s -> s.topK(k, comparator));
+    }
 
-            @Override
-            public List<Integer> getResult() {
-                return output;
-            }
+    /**
+     * @return Whether this stage's output is already in {@code comparator}'s order, so sorting it would change nothing
+     */
+    private boolean alreadySorted(IntComparator comparator) {
+        return comparator == IntComparator.NATURAL_ORDER && Characteristics.has(characteristics(), SORTED);
+    }
+
+    private static Stage sortedBy(Stage op, IntComparator comparator) {
+        if (comparator == IntComparator.NATURAL_ORDER) {
+            op.characteristics |= SORTED;
+        }
+        return op;
+    }
+
+    private static Stage topKStage(Stage upstream, int k, IntComparator comparator) {
+        return new StatefulStage("topK", upstream) {
+            final IntTopK top = new IntTopK(k, comparator);
 
             @Override
             public void accept(int i) {
-                output.add(i);
+                top.offer(i);
             }
-        };
-        this.downstream = tes;
-        evaluate();
-        return tes.getResult();
-    }
 
-    @Override
-    public Optional<Integer> fold(ToIntBiFunction<Integer, Integer> combiner) {
-        TerminalOperatorStage<Optional<Integer>> tes = new TerminalOperatorStage<>() {
-            boolean sawValue = false;
-            int baseVal = 0;
+            @Override
+            public void acceptBatch(int[] src, int offset, int length) {
+                top.offerAll(src, offset, length);
+            }
 
             @Override
-            Optional<Integer> getResult() {
-                return sawValue ? Optional.of(baseVal) : Optional.empty();
+            int buffered() {
+                return top.size();
             }
 
             @Override
-            public void accept(int i) {
-                if (!sawValue) {
-                    baseVal = i;
-                    sawValue = true;
-                } else {
-                    baseVal = combiner.applyAsInt(baseVal, i);
+            public void onReadyForNextStage() {
+                int[] sorted = top.drainSorted();
+                for (int i = 0; i < sorted.length && !downstream.isDone(); i += BATCH_SIZE) {
+                    this.downstream.acceptBatch(sorted, i, Math.min(BATCH_SIZE, sorted.length - i));
                 }
+                downstream.onReadyForNextStage();
             }
         };
-        this.downstream = tes;
-        evaluate();
-        return tes.getResult();
     }
 
     @Override
-    public Iterator<Integer> iterator() {
-        List<Integer> output = toList();
-        return output.iterator();
+    public LongPushStream mapToLong(IntToLongFunction mapper) {
+        return LongStage.fromInts(this, mapper);
     }
 
-    /**
-     * Used to trigger the upstream stage's evaluate. Eventually calls the {@link HeadStage}'s
-     * {@link HeadStage#accept(int)}, which triggers the whole pipeline of execution
-     */
-    protected abstract void evaluate();
+    @Override
+    public DoublePushStream mapToDouble(IntToDoubleFunction mapper) {
+        return DoubleStage.fromInts(this, mapper);
+    }
 
+    @Override
+    public PushStream distinct(boolean offHeap) {
+        if (Characteristics.has(characteristics(), DISTINCT))
+            return this;
+        if (sortComparator == IntComparator.NATURAL_ORDER || sortComparator == IntComparator.REVERSE_ORDER) {
+            //equal values come out of the sort next to each other, so there's no need to remember them all
+            Stage op = new StatelessStage("distinct", this) {
+                boolean sawValue = false;
+                int last;
 
-    /**
-     * An abstract class representing an intermediate stage that takes some input, and produces
-     * some output deterministically. should be pure function
-     */
-    private abstract static class StatelessStage extends Stage {
-        private final Stage upstream;
+                @Override
+                public void accept(int i) {
+                    if (!sawValue || i != last) {
+                        sawValue = true;
+                        last = i;
+                        this.downstream.accept(i);
+                    }
+                }
 
-        protected StatelessStage(Stage upstream) {
-            this.upstream = upstream;
+                @Override
+                public void acceptBatch(int[] values, int offset, int length) {
+                    int[] out = buffer(length);
+                    int n = 0;
+                    for (int i = offset; i < offset + length; i++) {
+                        if (!sawValue || values[i] != last) {
+                            sawValue = true;
+                            last = values[i];
+                            out[n++] = values[i];
+                        }
+                    }
+                    if (n > 0) {
+                        this.downstream.acceptBatch(out, 0, n);
+                    }
+                }
+            };
+            return attachOrdered(distinctFrom(op), s -> s.distinct(offHeap));
         }
 
-        @Override
-        public void evaluate() {
-            this.upstream.evaluate();
-        }
+        Stage op = new StatelessStage("distinct", this) {
+            final IntHashSet seen = new IntHashSet(0, offHeap);
 
-        @Override
-        public final void onReadyForNextStage() {
-            downstream.onReadyForNextStage();
-        }
-    }
+            @Override
+            public void accept(int i) {
+                if (seen.add(i)) {
+                    this.downstream.accept(i);
+                }
+            }
 
-    /**
-     * An abstract class representing an intermediate stage that takes some input, and produces
-     * some output, but maintains state. Therefore it awaits {@link #onReadyForNextStage()} before
-     * finalizing its output and triggering downstream's {@link #onReadyForNextStage()}
-     */
-    private abstract static class StatefulStage extends Stage {
-        private final Stage upstream;
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                int[] out = buffer(length);
+                int n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    if (seen.add(values[i])) {
+                        out[n++] = values[i];
+                    }
+                }
+                if (n > 0) {
+                    this.downstream.acceptBatch(out, 0, n);
+                }
+            }
 
-        protected StatefulStage(Stage upstream) {
-            this.upstream = upstream;
-        }
+            @Override
+            int buffered() {
+                return seen.size();
+            }
+        };
+        return attachOrdered(distinctFrom(op), s -> s.distinct(offHeap));
+    }
 
-        @Override
-        public void evaluate() {
-            this.upstream.evaluate();
-        }
+    private Stage distinctFrom(Stage op) {
+        inherit(op, SORTED).characteristics |= DISTINCT;
+        return op;
     }
 
+    @Override
+    public PushStream limit(int limit) {
+        Stage op = new StatelessStage("limit", this) {
+            int remaining = limit;
+
+            @Override
+            public void accept(int i) {
+                if (remaining > 0) {
+                    this.downstream.accept(i);
+                    remaining--;
+                }
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                int n = Math.min(length, remaining);
+                if (n > 0) {
+                    remaining -= n;
+                    this.downstream.acceptBatch(values, offset, n);
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return remaining <= 0 || this.downstream.isDone();
+            }
+
+            @Override
+            public int demand() {
+                return Math.min(remaining, this.downstream.demand());
+            }
+        };
+        op.limitCount = limit;
+        inherit(op, SIZED | SORTED | DISTINCT);
+        op.resize = size -> Math.min(limit, size);
+        return attachOrdered(op, s -> s.limit(limit));
+    }
+
+    @Override
+    public PushStream skip(int skip) {
+        Stage op = new StatelessStage("skip", this) {
+            int toSkip = skip;
+
+            @Override
+            public void accept(int i) {
+                if (toSkip > 0) {
+                    toSkip--;
+                } else {
+                    this.downstream.accept(i);
+                }
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                int skipped = Math.min(toSkip, length);
+                toSkip -= skipped;
+                if (length > skipped) {
+                    this.downstream.acceptBatch(values, offset + skipped, length - skipped);
+                }
+            }
+        };
+        op.skipCount = skip;
+        inherit(op, SIZED | SORTED | DISTINCT);
+        op.resize = size -> Math.max(0, size - skip);
+        return attachOrdered(op, s -> s.skip(skip));
+    }
+
+    /**
+     * Passes on the {@code kept} flags of this stage's characteristics to {@code op}
+     *
+     * @return {@code op}
+     */
+    private Stage inherit(Stage op, int kept) {
+        op.characteristics = characteristics() & kept;
+        return op;
+    }
+
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+
+    /**
+     * @return The exact number of elements, if this stage's output is {@link Characteristics#SIZED}. Otherwise -1
+     */
+    long exactSize() {
+        if (!Characteristics.has(characteristics(), SIZED))
+            return -1;
+        long size = upstream.exactSize();
+        return size < 0 ? -1 : resize.applyAsLong(size);
+    }
+
+    /**
+     * Adds a stage after this one, for an operation that can run separately on each slice of the input. Nothing is
+     * wired up until a terminal operation runs, so this stage can be built on any number of times
+     *
+     * @param replay Re-creates the same operation on top of another stage
+     */
+    private PushStream attach(Stage op, Function<Stage, PushStream> replay) {
+        op.replay = replay;
+        return op;
+    }
+
+    /**
+     * Like {@link #attach(Stage, Function)}, for an operation that needs to see the input in order
+     */
+    private PushStream attachOrdered(Stage op, Function<Stage, PushStream> replay) {
+        op.ordered = true;
+        return attach(op, replay);
+    }
+
+    @Override
+    public PushStream parallel() {
+        return withMode(true, head().profiled);
+    }
+
+    @Override
+    public PushStream sequential() {
+        return withMode(false, head().profiled);
+    }
+
+    /**
+     * @return A copy of this pipeline on a new copy of the source, that runs in the given mode. The source is shared
+     * by every stream built from it, so it's left as it is, along with this pipeline. The copy records into the same
+     * metrics as this one
+     */
+    private Stage withMode(boolean parallel, boolean profiled) {
+        List<Stage> stages = pipeline();
+        HeadStage template = (HeadStage) stages.get(0);
+        HeadStage head = template.copy();
+        head.parallel = parallel;
+        head.profiled = profiled;
+        return replay(head, template, stages.subList(1, stages.size()));
+    }
+
+    private HeadStage head() {
+        Stage stage = this;
+        while (stage.upstream != null) {
+            stage = stage.upstream;
+        }
+        return (HeadStage) stage;
+    }
+
+    /**
+     * @return Every stage from the source up to and including this one
+     */
+    List<Stage> pipeline() {
+        List<Stage> stages = new ArrayList<>();
+        for (Stage stage = this; stage != null; stage = stage.upstream) {
+            stages.add(stage);
+        }
+        Collections.reverse(stages);
+        return stages;
+    }
+
+    /**
+     * @return A fresh copy of the pipeline from the source up to this stage, wired up and with its own state, so a
+     * run never touches the stages the user built. It records into the same metrics as this one
+     */
+    Stage instantiate() {
+        HeadStage template = head();
+        Plan plan = plan(this);
+        HeadStage head = plan.source.copy();
+        head.parallel = template.parallel;
+        head.profiled = template.profiled;
+        return replay(head, plan.source, plan.stages);
+    }
+
+    /**
+     * @return The pipeline up to {@code last}, rewritten by {@link PlanRules#optimize(Plan)} unless it's being
+     * profiled, so that every stage shows up as it was written
+     */
+    static Plan plan(Stage last) {
+        if (last.head().profiled)
+            return Plan.of(last);
+        Plan plan = last.optimized;
+        if (plan == null) {
+            //two threads may both work it out, but they get the same answer
+            plan = PlanRules.optimize(Plan.of(last));
+            last.optimized = plan;
+        }
+        return plan;
+    }
+
+    @Override
+    public String plan() {
+        return plan(this).toString();
+    }
+
+    /**
+     * @return What this stage does, including any arguments that matter to the plan, e.g. "limit(10)"
+     */
+    String describe() {
+        if (limitCount >= 0)
+            return String.format("%s(%d)", name, limitCount);
+        if (skipCount >= 0)
+            return String.format("%s(%d)", name, skipCount);
+        if (sortComparator == IntComparator.REVERSE_ORDER)
+            return name + "(reverse order)";
+        if (sortComparator != null && sortComparator != IntComparator.NATURAL_ORDER)
+            return name + "(custom order)";
+        return name;
+    }
+
+    /**
+     * Re-creates {@code stages} on top of {@code head}, which produces (some of) {@code template}'s elements
+     *
+     * @return The last of the new stages
+     */
+    private static Stage replay(HeadStage head, HeadStage template, List<Stage> stages) {
+        head.metrics = template.metrics;
+        Stage chain = head;
+        for (Stage stage : stages) {
+            Stage next = (Stage) stage.replay.apply(chain);
+            if (next == chain)
+                continue; //e.g. a sort that's become redundant once the plan was optimized
+            next.metrics = stage.metrics;
+            chain.downstream = next;
+            chain = next;
+        }
+        return chain;
+    }
+
+    @Override
+    public PushStream compile() {
+        return new CompiledPushStream(instantiate());
+    }
+
+    /**
+     * @return The pipeline behind {@code stream}, if it's one that can be pushed straight into another with
+     * {@link #pushInto(Sink)}. Otherwise null
+     */
+    static Stage pipelineOf(Object stream) {
+        if (stream instanceof CompiledPushStream)
+            return ((CompiledPushStream) stream).template;
+        return stream instanceof Stage ? (Stage) stream : null;
+    }
+
+    @Override
+    public PushStream profiled() {
+        Stage profiled = withMode(head().parallel, true);
+        for (Stage stage : profiled.pipeline()) {
+            stage.metrics = new StageMetrics();
+        }
+        return profiled;
+    }
+
+    @Override
+    public PipelineProfile profile() {
+        List<StageProfile> stages = new ArrayList<>();
+        for (Stage stage : pipeline()) {
+            stages.add(stage.metrics.snapshot(stage.name));
+        }
+        return new PipelineProfile(stages);
+    }
+
+    @Override
+    public void forEach(Consumer<? super Integer> consumer) {
+        evaluateInto(new TerminalConsumerStage() {
+            @Override
+            public void accept(int i) {
+                consumer.accept(i);
+            }
+        });
+    }
+
+    @Override
+    public long sum() {
+        return run(() -> new TerminalOperatorStage<Long>() {
+            long total = 0;
+
+            @Override
+            public Long getResult() {
+                return total;
+            }
+
+            @Override
+            public void accept(int i) {
+                total += i;
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                long t = total;
+                for (int i = offset; i < offset + length; i++) {
+                    t += values[i];
+                }
+                total = t;
+            }
+        }, Long::sum);
+    }
+
+    @Override
+    public OptionalDouble average() {
+        ExactLongSum total = run(() -> new TerminalOperatorStage<ExactLongSum>() {
+            final ExactLongSum total = new ExactLongSum();
+
+            @Override
+            ExactLongSum getResult() {
+                return total;
+            }
+
+            @Override
+            public void accept(int i) {
+                total.add(i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                total.addAll(values, offset, length);
+            }
+        }, ExactLongSum::merge);
+        return total.count() == 0 ? OptionalDouble.empty() : OptionalDouble.of(total.average());
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key) {
+        return group(IntIntMap::new, (groups, i) -> groups.add(key.applyAsInt(i), 1), Integer::sum);
+    }
+
+    @Override
+    public IntIntMap countBy(IntUnaryOperator key, int fromKey, int toKey) {
+        return group(() -> IntIntMap.dense(fromKey, toKey), (groups, i) -> groups.add(key.applyAsInt(i), 1),
+                Integer::sum);
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int identity, IntBinaryOperator op) {
+        return group(IntIntMap::new, (groups, i) -> groups.fold(key.applyAsInt(i), identity, i, op), op);
+    }
+
+    @Override
+    public IntIntMap groupingFold(IntUnaryOperator key, int fromKey, int toKey, int identity, IntBinaryOperator op) {
+        return group(() -> IntIntMap.dense(fromKey, toKey),
+                (groups, i) -> groups.fold(key.applyAsInt(i), identity, i, op), op);
+    }
+
+    /**
+     * @param combiner Merges the values for a key that turned up in more than one parallel slice
+     */
+    private IntIntMap group(Supplier<IntIntMap> newMap, ObjIntConsumer<IntIntMap> accumulator,
+                            IntBinaryOperator combiner) {
+        return run(() -> new TerminalOperatorStage<IntIntMap>() {
+            final IntIntMap groups = newMap.get();
+
+            @Override
+            IntIntMap getResult() {
+                return groups;
+            }
+
+            @Override
+            public void accept(int i) {
+                accumulator.accept(groups, i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    accumulator.accept(groups, values[i]);
+                }
+            }
+        }, (a, b) -> a.merge(b, combiner));
+    }
+
+    @Override
+    public int count() {
+        if (Characteristics.has(characteristics(), SIZED)) {
+            long size = exactSize();
+            if (size > Integer.MAX_VALUE)
+                throw new ArithmeticException(String.format("%d elements is too many to count in an int", size));
+            if (!head().profiled)
+                return (int) size; //nothing needs to run, unless it's being profiled
+        }
+        return Math.toIntExact(run(() -> new TerminalOperatorStage<Long>() {
+            long total = 0;
+
+            @Override
+            public Long getResult() {
+                return total;
+            }
+
+            @Override
+            public void accept(int i) {
+                total++;
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                total += length;
+            }
+        }, Long::sum));
+    }
+
+    @Override
+    public int fold(int identity, ToIntBiFunction<Integer, Integer> combiner) {
+        return fold(identity, combiner, null);
+    }
+
+    @Override
+    public int fold(int identity, ToIntBiFunction<Integer, Integer> accumulator,
+                    ToIntBiFunction<Integer, Integer> combiner) {
+        Objects.requireNonNull(accumulator);
+        return run(() -> new TerminalOperatorStage<Integer>() {
+            int value = identity;
+
+            @Override
+            public Integer getResult() {
+                return value;
+            }
+
+            @Override
+            public void accept(int i) {
+                value = accumulator.applyAsInt(value, i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    value = accumulator.applyAsInt(value, values[i]);
+                }
+            }
+        }, combiner == null ? null : combiner::applyAsInt);
+    }
+
+    @Override
+    public IntList toList() {
+        int capacity = sequentialSize();
+        return run(() -> new TerminalOperatorStage<IntList>() {
+            IntList output = capacity < 0 ? new IntList() : new IntList(capacity);
+
+            @Override
+            public IntList getResult() {
+                return output;
+            }
+
+            @Override
+            public void accept(int i) {
+                output.addInt(i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                output.addAll(values, offset, length);
+            }
+        }, (a, b) -> {
+            a.addAll(b);
+            return a;
+        });
+    }
+
+    @Override
+    public int[] toArray() {
+        int size = sequentialSize();
+        if (size < 0)
+            return toList().toIntArray();
+        //the exact size is known, so fill the array directly rather than copying out of a list
+        TerminalOperatorStage<int[]> filler = new TerminalOperatorStage<>() {
+            final int[] ans = new int[size];
+            int n = 0;
+            //in case the source changed while it ran, e.g. a list that was added to
+            final IntList overflow = new IntList();
+
+            @Override
+            int[] getResult() {
+                if (overflow.isEmpty())
+                    return n == ans.length ? ans : Arrays.copyOf(ans, n);
+                IntList all = new IntList(n + overflow.size());
+                all.addAll(ans, 0, n);
+                all.addAll(overflow);
+                return all.toIntArray();
+            }
+
+            @Override
+            public void accept(int i) {
+                if (n < ans.length) {
+                    ans[n++] = i;
+                } else {
+                    overflow.addInt(i);
+                }
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                int fits = Math.min(length, ans.length - n);
+                System.arraycopy(values, offset, ans, n, fits);
+                n += fits;
+                if (fits < length) {
+                    overflow.addAll(values, offset + fits, length - fits);
+                }
+            }
+        };
+        evaluateInto(filler);
+        return filler.getResult();
+    }
+
+    /**
+     * @return The exact number of elements, if it's known and they'll all be collected in one place by a sequential
+     * run. Otherwise -1
+     */
+    private int sequentialSize() {
+        long size = exactSize();
+        return head().parallel || size > Integer.MAX_VALUE - 8 ? -1 : (int) size;
+    }
+
+    /**
+     * Runs sequentially even in {@link #parallel()} mode, since the output has to be written in order
+     */
+    @Override
+    public long writeTo(WritableByteChannel channel, ByteOrder order) {
+        IntChannelWriter writer = new IntChannelWriter(channel, order);
+        evaluateInto(new TerminalConsumerStage() {
+            @Override
+            public void accept(int i) {
+                writer.write(i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                writer.write(values, offset, length);
+            }
+        });
+        writer.flush();
+        return writer.count();
+    }
+
+    @Override
+    public Optional<Integer> fold(ToIntBiFunction<Integer, Integer> combiner) {
+        return run(() -> new TerminalOperatorStage<Optional<Integer>>() {
+            boolean sawValue = false;
+            int baseVal = 0;
+
+            @Override
+            Optional<Integer> getResult() {
+                return sawValue ? Optional.of(baseVal) : Optional.empty();
+            }
+
+            @Override
+            public void accept(int i) {
+                if (!sawValue) {
+                    baseVal = i;
+                    sawValue = true;
+                } else {
+                    baseVal = combiner.applyAsInt(baseVal, i);
+                }
+            }
+        }, (a, b) -> {
+            if (a.isPresent() && b.isPresent())
+                return Optional.of(combiner.applyAsInt(a.get(), b.get()));
+            return a.isPresent() ? a : b;
+        });
+    }
+
+    @Override
+    public boolean anyMatch(IntPredicate predicate) {
+        return run(() -> new TerminalOperatorStage<Boolean>() {
+            boolean matched = false;
+
+            @Override
+            Boolean getResult() {
+                return matched;
+            }
+
+            @Override
+            public void accept(int i) {
+                if (!matched && predicate.test(i)) {
+                    matched = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return matched;
+            }
+        }, Boolean::logicalOr);
+    }
+
+    @Override
+    public boolean allMatch(IntPredicate predicate) {
+        return !anyMatch(predicate.negate());
+    }
+
+    @Override
+    public Optional<Integer> findFirst() {
+        return run(() -> new TerminalOperatorStage<Optional<Integer>>() {
+            boolean found = false;
+            int first = 0;
+
+            @Override
+            Optional<Integer> getResult() {
+                return found ? Optional.of(first) : Optional.empty();
+            }
+
+            @Override
+            public void accept(int i) {
+                if (!found) {
+                    first = i;
+                    found = true;
+                }
+            }
+
+            @Override
+            public boolean isDone() {
+                return found;
+            }
+        }, (a, b) -> a.isPresent() ? a : b);
+    }
+
+    /**
+     * Runs the whole stream up front and iterates over the result. See {@link #iterator(int)} for a version that
+     * doesn't hold every element in memory
+     */
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return toList().iterator();
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator(int bufferSize) {
+        IntRingBuffer ring = new IntRingBuffer(bufferSize);
+        Thread producer = new Thread(() -> {
+            try {
+                pushInto(new TerminalConsumerStage() {
+                    @Override
+                    public void accept(int i) {
+                        ring.put(i);
+                    }
+
+                    @Override
+                    public void acceptBatch(int[] values, int offset, int length) {
+                        ring.putBatch(values, offset, length);
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return ring.isCancelled();
+                    }
+                });
+                ring.close();
+            } catch (Throwable t) {
+                ring.fail(t);
+            }
+        }, "PushStream-iterator");
+        producer.setDaemon(true);
+
+        PrimitiveIterator.OfInt iterator = new PrimitiveIterator.OfInt() {
+            final int[] chunk = new int[Math.min(ring.capacity(), BATCH_SIZE)];
+            int pos = 0;
+            int size = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (pos < size)
+                    return true;
+                pos = 0;
+                size = ring.takeBatch(chunk, 0, chunk.length);
+                return size > 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return chunk[pos++];
+            }
+        };
+        ABANDONED_ITERATORS.register(iterator, ring::cancel);
+        producer.start();
+        return iterator;
+    }
+
+    @Override
+    public Flow.Publisher<Integer> toPublisher() {
+        return StreamPublisher.of(this);
+    }
+
+    @Override
+    public Flow.Publisher<int[]> toBatchPublisher(int batchSize) {
+        return StreamPublisher.batched(this, batchSize);
+    }
+
+    /**
+     * Runs this stream, handing every output (and the {@link Sink#isDone()} signal) straight to the given sink.
+     * Used to splice one pipeline into another without materializing it
+     */
+    void pushInto(Sink sink) {
+        evaluateInto(new TerminalConsumerStage() {
+            @Override
+            public void accept(int i) {
+                sink.accept(i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                sink.acceptBatch(values, offset, length);
+            }
+
+            @Override
+            public boolean isDone() {
+                return sink.isDone();
+            }
+        });
+    }
+
+    /**
+     * Runs a fresh copy of this pipeline into {@code terminal}
+     */
+    private void evaluateInto(Sink terminal) {
+        Stage chain = instantiate();
+        chain.downstream = terminal;
+        chain.evaluateFused();
+    }
+
+    /**
+     * Runs this pipeline into a fresh terminal stage and returns the terminal's result.
+     * <p>
+     * In {@link #parallel()} mode, the source is split into slices that run on the common {@link ForkJoinPool}, each
+     * through its own copy of the leading stages that can run independently (map, filter, etc.). If that's the whole
+     * pipeline, every slice gets its own terminal and the results are merged in encounter order with
+     * {@code combiner}. Otherwise, the slices' outputs are fed in order into the first stage that needs to see
+     * everything (sorted, limit, etc.), which runs the rest of the pipeline as usual
+     *
+     * @param combiner Null if slice results can't be merged, e.g. a fold that isn't associative. The slices' outputs
+     *                 are then fed in order into a single terminal
+     */
+    private <R> R run(Supplier<TerminalOperatorStage<R>> terminal, BinaryOperator<R> combiner) {
+        Stage chain = instantiate();
+        List<Stage> stages = chain.pipeline();
+        HeadStage head = (HeadStage) stages.get(0);
+        int size = head.parallel ? head.splittableSize() : -1;
+        if (size < 2 * MIN_SLICE_SIZE) {
+            TerminalOperatorStage<R> tes = terminal.get();
+            chain.downstream = tes;
+            chain.evaluateFused();
+            return tes.getResult();
+        }
+
+        int splitAt = 1;
+        while (splitAt < stages.size() && !stages.get(splitAt).ordered) {
+            splitAt++;
+        }
+        List<Stage> independentStages = stages.subList(1, splitAt);
+        if (splitAt == stages.size() && combiner == null) {
+            //the terminal needs to see everything itself, much like a barrier
+            TerminalOperatorStage<R> tes = terminal.get();
+            feedBarrier(head, size, independentStages, tes);
+            return tes.getResult();
+        }
+        if (splitAt == stages.size()) {
+            List<R> combined = new ArrayList<>(1);
+            forEachSlice(head, size, independentStages, terminal, slice -> {
+                R result = slice.getResult();
+                if (combined.isEmpty()) {
+                    combined.add(result);
+                } else {
+                    combined.set(0, combiner.apply(combined.get(0), result));
+                }
+                //e.g. anyMatch has its answer, or findFirst has found the first element, since slices arrive in order
+                return !slice.isDone();
+            });
+            return combined.get(0);
+        }
+
+        Stage barrier = stages.get(splitAt);
+        TerminalOperatorStage<R> tes = terminal.get();
+        chain.downstream = tes;
+        List<Stage> rest = stages.subList(splitAt, stages.size());
+        Sink entry;
+        if (head.profiled) {
+            //the slices have already counted what they handed over, so this only counts what the barrier takes in
+            entry = new MeteredSink(barrier, EdgeMeter.pushed(null, barrier.metrics));
+            instrument(rest);
+        } else {
+            Stage topK = rest.size() > 1 ? topKReplacement(stages.get(splitAt - 1), barrier, rest.get(1)) : null;
+            entry = topK == null ? barrier : topK;
+        }
+        try {
+            feedBarrier(head, size, independentStages, entry);
+        } finally {
+            release(rest);
+        }
+        return tes.getResult();
+    }
+
+    /**
+     * Runs the slices through {@code independentStages}, and hands their outputs to {@code entry} in encounter order
+     */
+    private static void feedBarrier(HeadStage head, int size, List<Stage> independentStages, Sink entry) {
+        int[] block = new int[BATCH_SIZE];
+        forEachSlice(head, size, independentStages, () -> new TerminalOperatorStage<IntList>() {
+            final IntList output = new IntList();
+
+            @Override
+            IntList getResult() {
+                return output;
+            }
+
+            @Override
+            public void accept(int i) {
+                output.addInt(i);
+            }
+
+            @Override
+            public void acceptBatch(int[] values, int offset, int length) {
+                output.addAll(values, offset, length);
+            }
+        }, slice -> {
+            IntList output = slice.getResult();
+            for (int i = 0; i < output.size() && !entry.isDone(); i += BATCH_SIZE) {
+                int n = Math.min(BATCH_SIZE, output.size() - i);
+                output.getInts(i, block, 0, n);
+                entry.acceptBatch(block, 0, n);
+            }
+            //e.g. once a limit has everything it needs, the remaining slices can be skipped
+            return !entry.isDone();
+        });
+        entry.onReadyForNextStage();
+    }
+
+    /**
+     * Runs every slice of {@code head}'s input through fresh copies of {@code stages} and a fresh terminal, and hands
+     * the finished terminals to {@code consumer} in encounter order. Only a few slices are in flight at a time, so
+     * memory stays bounded even if the consumer stops early
+     *
+     * @param consumer Returns false if it doesn't need any more results. Slices that are still running then stop as
+     *                 soon as they next check {@link Sink#isDone()}, and the rest are never started
+     */
+    private static <R> void forEachSlice(HeadStage head, int size, List<Stage> stages,
+                                         Supplier<TerminalOperatorStage<R>> terminal,
+                                         Predicate<TerminalOperatorStage<R>> consumer) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int sliceSize = Math.max(MIN_SLICE_SIZE, Math.min(MAX_SLICE_SIZE, size / (4 * parallelism)));
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        Deque<ForkJoinTask<TerminalOperatorStage<R>>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        while (next < size || !inFlight.isEmpty()) {
+            while (next < size && inFlight.size() < 2 * parallelism) {
+                int from = next;
+                int to = (int) Math.min(size, (long) next + sliceSize);
+                inFlight.add(ForkJoinPool.commonPool().submit(() -> {
+                    HeadStage sliceHead = head.slice(from, to);
+                    sliceHead.profiled = head.profiled;
+                    Stage chain = replay(sliceHead, head, stages);
+                    TerminalOperatorStage<R> tes = terminal.get();
+                    chain.downstream = new StoppableSink(tes, stopped);
+                    chain.evaluateFused();
+                    return tes;
+                }));
+                next = to;
+            }
+            if (!consumer.test(inFlight.remove().join())) {
+                stopped.set(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@link #evaluate()}s this pipeline with every run of two or more consecutive map/filter stages replaced by a
+     * single {@link FusedStage}. Only called on a copy made by {@link #instantiate()}, so the stages can be rewired
+     * freely.
+     * <p>
+     * In {@link #profiled()} mode, nothing is fused, and every link is metered instead
+     */
+    private void evaluateFused() {
+        List<Stage> stages = pipeline();
+        try {
+            evaluateFused(stages);
+        } finally {
+            release(stages);
+        }
+    }
+
+    private void evaluateFused(List<Stage> stages) {
+        HeadStage head = (HeadStage) stages.get(0);
+        if (head.profiled) {
+            instrument(stages);
+            //nothing calls into the source, so time the whole run on its behalf
+            EdgeMeter meter = EdgeMeter.pushed(null, head.metrics);
+            long started = meter.beginExact();
+            try {
+                evaluate();
+            } finally {
+                meter.end(started, 0, 0);
+            }
+            return;
+        }
+
+        //a sort that only feeds a limit just needs to keep the first few elements
+        for (int i = 1; i + 1 < stages.size(); i++) {
+            Stage topK = topKReplacement(stages.get(i - 1), stages.get(i), stages.get(i + 1));
+            if (topK != null) {
+                stages.get(i - 1).downstream = topK;
+            }
+        }
+
+        int i = 1;
+        while (i < stages.size()) {
+            int end = i;
+            while (end < stages.size() && stages.get(end).isFusible()) {
+                end++;
+            }
+            if (end - i >= 2) {
+                Stage before = stages.get(i - 1);
+                FusedStage fused = new FusedStage(before, stages.subList(i, end));
+                fused.downstream = stages.get(end - 1).downstream;
+                before.downstream = fused;
+            }
+            i = Math.max(end, i + 1);
+        }
+
+        evaluate();
+    }
+
+    /**
+     * @return A stage doing the work of {@code sorted} and the {@code limit} right after it, wired to the limit's
+     * downstream, or null if they aren't a sorted stage followed by a limit
+     */
+    private static Stage topKReplacement(Stage before, Stage sorted, Stage limit) {
+        if (!replaceableByTopK(sorted, limit))
+            return null;
+        Stage topK = topKStage(before, limit.limitCount, sorted.sortComparator);
+        topK.downstream = limit.downstream;
+        return topK;
+    }
+
+    /**
+     * @return Whether {@code sorted} followed by {@code limit} can run as a {@link #topK(int, IntComparator)}. The
+     * heap it keeps can't spill, so a sort with a memory budget is only replaced if the heap fits in the budget
+     */
+    static boolean replaceableByTopK(Stage sorted, Stage limit) {
+        if (sorted.sortComparator == null || limit.limitCount < 0)
+            return false;
+        return sorted.sortMemoryBudget < 0 || IntTopK.fitsIn(limit.limitCount, sorted.sortMemoryBudget);
+    }
+
+    private static void release(List<Stage> stages) {
+        for (Stage stage : stages) {
+            stage.release();
+        }
+    }
+
+    /**
+     * Puts a {@link MeteredSink} on every link from the first of {@code stages} down to the terminal
+     */
+    private static void instrument(List<Stage> stages) {
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            stage.downstream = new MeteredSink(stage.downstream,
+                    EdgeMeter.pushed(stage.metrics, next == null ? null : next.metrics));
+        }
+    }
+
+    private boolean isFusible() {
+        return fusibleMapper != null || fusiblePredicate != null;
+    }
+
+    /**
+     * Used to trigger the upstream stage's evaluate. Eventually calls the {@link HeadStage}'s
+     * {@link HeadStage#accept(int)}, which triggers the whole pipeline of execution
+     */
+    protected abstract void evaluate();
+
+    @Override
+    public boolean isDone() {
+        return downstream.isDone();
+    }
+
+    /**
+     * @return How many elements this stage is currently holding on to, for {@link #profile()}
+     */
+    int buffered() {
+        return 0;
+    }
+
+    /**
+     * Lets go of anything this stage holds outside the heap, e.g. a sort's spilled runs. Called once a run is over,
+     * whether or not it finished
+     */
+    void release() {
+    }
+
+
+    /**
+     * An abstract class representing an intermediate stage that takes some input, and produces
+     * some output deterministically. should be pure function
+     */
+    private abstract static class StatelessStage extends Stage {
+        private int[] buffer = new int[0];
+
+        protected StatelessStage(String name, Stage upstream) {
+            super(name, upstream);
+        }
+
+        /**
+         * @return A scratch array of at least the given length that this stage can write its block output into
+         */
+        protected int[] buffer(int length) {
+            if (buffer.length < length) {
+                buffer = new int[Math.max(length, BATCH_SIZE)];
+            }
+            return buffer;
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+
+        @Override
+        public final void onReadyForNextStage() {
+            downstream.onReadyForNextStage();
+        }
+    }
+
+    /**
+     * A run of consecutive map/filter stages collapsed into one stage. Adjacent maps are composed into one function,
+     * as are adjacent filters, and each block goes through every step in place in a single buffer before being
+     * handed downstream in one call
+     */
+    private static final class FusedStage extends StatelessStage {
+        private final IntUnaryOperator[] mappers;
+        private final IntPredicate[] predicates; //for each step, exactly one of these is non-null
+        private final boolean mapsOnly; //so every value goes downstream, and no more are needed than it wants
+
+        private FusedStage(Stage upstream, List<Stage> stages) {
+            super("fused", upstream);
+            List<IntUnaryOperator> mappers = new ArrayList<>();
+            List<IntPredicate> predicates = new ArrayList<>();
+            for (Stage stage : stages) {
+                int last = mappers.size() - 1;
+                if (stage.fusibleMapper != null && last >= 0 && mappers.get(last) != null) {
+                    mappers.set(last, mappers.get(last).andThen(stage.fusibleMapper));
+                } else if (stage.fusiblePredicate != null && last >= 0 && predicates.get(last) != null) {
+                    predicates.set(last, predicates.get(last).and(stage.fusiblePredicate));
+                } else {
+                    mappers.add(stage.fusibleMapper);
+                    predicates.add(stage.fusiblePredicate);
+                }
+            }
+            this.mappers = mappers.toArray(new IntUnaryOperator[0]);
+            this.predicates = predicates.toArray(new IntPredicate[0]);
+            this.mapsOnly = predicates.stream().noneMatch(Objects::nonNull);
+        }
+
+        @Override
+        public int demand() {
+            return mapsOnly ? downstream.demand() : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void accept(int value) {
+            for (int step = 0; step < mappers.length; step++) {
+                if (mappers[step] != null) {
+                    value = mappers[step].applyAsInt(value);
+                } else if (!predicates[step].test(value)) {
+                    return;
+                }
+            }
+            downstream.accept(value);
+        }
+
+        @Override
+        public void acceptBatch(int[] values, int offset, int length) {
+            if (mapsOnly) {
+                length = Math.min(length, downstream.demand());
+            }
+            int[] out = buffer(length);
+            System.arraycopy(values, offset, out, 0, length);
+            int n = length;
+            for (int step = 0; step < mappers.length && n > 0; step++) {
+                if (mappers[step] != null) {
+                    IntUnaryOperator mapper = mappers[step];
+                    for (int i = 0; i < n; i++) {
+                        out[i] = mapper.applyAsInt(out[i]);
+                    }
+                } else {
+                    IntPredicate predicate = predicates[step];
+                    int kept = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (predicate.test(out[i])) {
+                            out[kept++] = out[i];
+                        }
+                    }
+                    n = kept;
+                }
+            }
+            if (n > 0) {
+                downstream.acceptBatch(out, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Hands out up to a fixed number of permits in each one-second window
+     */
+    static final class RateLimiter {
+        static final long WINDOW_NANOS = 1_000_000_000L;
+
+        private final int permitsPerSecond;
+        private final LongSupplier ticker;
+        private long windowStart;
+        private int used = 0;
+
+        /**
+         * @param ticker Reads the current time in nanoseconds, like {@link System#nanoTime()}
+         */
+        RateLimiter(int permitsPerSecond, LongSupplier ticker) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.ticker = ticker;
+            this.windowStart = ticker.getAsLong();
+        }
+
+        /**
+         * @return How many of the wanted permits were granted, possibly 0
+         */
+        synchronized int tryAcquire(int wanted) {
+            long now = ticker.getAsLong();
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now;
+                used = 0;
+            }
+            int granted = Math.min(wanted, permitsPerSecond - used);
+            used += granted;
+            return granted;
+        }
+    }
+
+    /**
+     * Passes everything through to a slice's terminal, until another slice has settled the answer, see
+     * {@link #forEachSlice(HeadStage, int, List, Supplier, Predicate)}
+     */
+    private static final class StoppableSink implements Sink {
+        private final Sink target;
+        private final AtomicBoolean stopped;
+
+        private StoppableSink(Sink target, AtomicBoolean stopped) {
+            this.target = target;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public void accept(int i) {
+            target.accept(i);
+        }
+
+        @Override
+        public void acceptBatch(int[] values, int offset, int length) {
+            target.acceptBatch(values, offset, length);
+        }
+
+        @Override
+        public void onReadyForNextStage() {
+            target.onReadyForNextStage();
+        }
+
+        @Override
+        public boolean isDone() {
+            return stopped.get() || target.isDone();
+        }
+
+        @Override
+        public int demand() {
+            return target.demand();
+        }
+    }
+
+    /**
+     * Sits on a link between two stages in {@link #profiled()} mode, passing everything through while recording it
+     */
+    private static final class MeteredSink implements Sink {
+        private final Sink target;
+        private final EdgeMeter meter;
+
+        private MeteredSink(Sink target, EdgeMeter meter) {
+            this.target = target;
+            this.meter = meter;
+        }
+
+        @Override
+        public void accept(int i) {
+            long started = meter.begin();
+            target.accept(i);
+            meter.end(started, 1, buffered());
+        }
+
+        @Override
+        public void acceptBatch(int[] values, int offset, int length) {
+            long started = meter.begin();
+            target.acceptBatch(values, offset, length);
+            meter.end(started, length, buffered());
+        }
+
+        @Override
+        public void onReadyForNextStage() {
+            //this is where stateful stages do most of their work, so it's always worth timing
+            long started = meter.beginExact();
+            target.onReadyForNextStage();
+            meter.end(started, 0, buffered());
+        }
+
+        @Override
+        public int demand() {
+            return target.demand();
+        }
+
+        @Override
+        public boolean isDone() {
+            return target.isDone();
+        }
+
+        private int buffered() {
+            return target instanceof Stage ? ((Stage) target).buffered() : 0;
+        }
+    }
+
+    /**
+     * An abstract class representing an intermediate stage that takes some input, and produces
+     * some output, but maintains state. Therefore it awaits {@link #onReadyForNextStage()} before
+     * finalizing its output and triggering downstream's {@link #onReadyForNextStage()}
+     */
+    private abstract static class StatefulStage extends Stage {
+        protected StatefulStage(String name, Stage upstream) {
+            super(name, upstream);
+        }
+
+        @Override
+        public void evaluate() {
+            this.upstream.evaluate();
+        }
+    }
+
+
+    /**
+     * An abstract class that should be overridden for initializing a stream. The {@link Stage#evaluate()} method
+     * should be overridden in such a way as to consume the input correctly from the constructor of HeadStage's derived
+     * classes
+     */
+    static abstract class HeadStage extends Stage {
+        private boolean parallel = false;
+        private boolean profiled = false;
+
+        protected HeadStage(String name) {
+            super(name, null);
+        }
 
-    /**
-     * An abstract class that should be overridden for initializing a stream. The {@link Stage#evaluate()} method
-     * should be overridden in such a way as to consume the input correctly from the constructor of HeadStage's derived
-     * classes
-     */
-    static abstract class HeadStage extends Stage {
         @Override
         public final void accept(int i) {
             downstream.accept(i);
         }
 
+        @Override
+        public final void acceptBatch(int[] values, int offset, int length) {
+            downstream.acceptBatch(values, offset, length);
+        }
+
         @Override
         public final void onReadyForNextStage() {
             //no-op, since nobody can tell us we're ready
         }
 
+        @Override
+        public final boolean isDone() {
+            return downstream.isDone();
+        }
+
         @Override
         public final void evaluate() {
             this.loadData();
@@ -333,8 +1873,35 @@ public abstract class Stage implements PushStream {
         }
 
         /**
-         * This function should be overridden to load the input from list/array/whatever
+         * This function should be overridden to load the input from list/array/whatever. Implementations
+         * should check {@link #isDone()} between elements and return early once it's true
          */
         protected abstract void loadData();
+
+        /**
+         * @return A new source producing the same elements as this one, for a run to push from
+         */
+        protected abstract HeadStage copy();
+
+        @Override
+        String describe() {
+            long size = exactSize();
+            return size < 0 ? name : String.format("%s[%d]", name, size);
+        }
+
+        /**
+         * @return How many elements this source produces, if it can be split up with {@link #slice(int, int)}.
+         * Otherwise -1
+         */
+        protected int splittableSize() {
+            return -1;
+        }
+
+        /**
+         * @return A new source producing just the elements from {@code fromIncl} up to {@code toExcl} of this one
+         */
+        protected HeadStage slice(int fromIncl, int toExcl) {
+            throw new UnsupportedOperationException("This source can't be split");
+        }
     }
 }
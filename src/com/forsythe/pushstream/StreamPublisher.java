@@ -0,0 +1,179 @@
+package com.forsythe.pushstream;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes a stream's output to {@link Flow.Subscriber}s, see {@link PushStream#toPublisher()}. Every subscriber gets
+ * its own run of the stream, on a background thread that waits for demand before each {@code onNext}. Nothing is
+ * queued up ahead of demand: the source is held up for as long as the terminal stage is, so at most one batch is
+ * buffered per subscriber
+ *
+ * @param <T> What each {@code onNext} carries: a single element, or a block of them
+ */
+abstract class StreamPublisher<T> implements Flow.Publisher<T> {
+    private final Stage stream;
+    private final int batchSize;
+
+    private StreamPublisher(Stage stream, int batchSize) {
+        this.stream = stream;
+        this.batchSize = batchSize;
+    }
+
+    static Flow.Publisher<Integer> of(Stage stream) {
+        return new StreamPublisher<>(stream, 1) {
+            @Override
+            Integer wrap(int[] block, int length) {
+                return block[0];
+            }
+        };
+    }
+
+    static Flow.Publisher<int[]> batched(Stage stream, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException(String.format("Invalid batch size %d", batchSize));
+        return new StreamPublisher<>(stream, batchSize) {
+            @Override
+            int[] wrap(int[] block, int length) {
+                //the subscriber can hold on to what it's given, so the block can't be reused
+                return Arrays.copyOf(block, length);
+            }
+        };
+    }
+
+    /**
+     * @return What to hand to {@code onNext} for the first {@code length} elements of {@code block}
+     */
+    abstract T wrap(int[] block, int length);
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        Subscription subscription = new Subscription(subscriber);
+        Thread producer = new Thread(subscription, "PushStream-publisher");
+        producer.setDaemon(true);
+        subscription.producer = producer;
+        subscriber.onSubscribe(subscription);
+        producer.start();
+    }
+
+    private final class Subscription implements Flow.Subscription, Runnable, Sink {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+        private volatile Thread producer;
+        //only touched by the producer
+        private final int[] block = new int[batchSize];
+        private int length = 0;
+
+        private Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException(String.format("Cannot request %d elements", n));
+            } else {
+                //anything from Long.MAX_VALUE up is unbounded
+                demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            LockSupport.unpark(producer);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            LockSupport.unpark(producer);
+        }
+
+        @Override
+        public void run() {
+            try {
+                stream.pushInto(this);
+                emit();
+            } catch (Throwable t) {
+                if (invalidRequest == null && !cancelled) {
+                    subscriber.onError(t);
+                }
+                return;
+            }
+            if (invalidRequest != null) {
+                subscriber.onError(invalidRequest);
+            } else if (!cancelled) {
+                subscriber.onComplete();
+            }
+        }
+
+        @Override
+        public void accept(int i) {
+            if (isDone())
+                return;
+            block[length++] = i;
+            if (length == block.length) {
+                emit();
+            }
+        }
+
+        @Override
+        public void acceptBatch(int[] values, int offset, int length) {
+            while (length > 0 && !isDone()) {
+                int n = Math.min(length, block.length - this.length);
+                System.arraycopy(values, offset, block, this.length, n);
+                this.length += n;
+                offset += n;
+                length -= n;
+                if (this.length == block.length) {
+                    emit();
+                }
+            }
+        }
+
+        @Override
+        public void onReadyForNextStage() {
+            //no-op, what's left in the block is emitted once the run is over
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || invalidRequest != null;
+        }
+
+        /**
+         * Waits for demand, then hands the block to the subscriber. Dropped if the subscription ends first
+         */
+        private void emit() {
+            if (length == 0)
+                return;
+            if (!awaitDemand()) {
+                length = 0;
+                return;
+            }
+            T next = wrap(block, length);
+            length = 0;
+            subscriber.onNext(next);
+        }
+
+        /**
+         * @return false if the subscription ended before there was any demand
+         */
+        private boolean awaitDemand() {
+            while (!isDone()) {
+                long wanted = demand.get();
+                if (wanted == Long.MAX_VALUE)
+                    return true;
+                if (wanted > 0 && demand.compareAndSet(wanted, wanted - 1))
+                    return true;
+                if (wanted == 0) {
+                    //the source is held up right here until the subscriber asks for more
+                    LockSupport.park(this);
+                }
+            }
+            return false;
+        }
+    }
+}
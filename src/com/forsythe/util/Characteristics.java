@@ -0,0 +1,35 @@
+package com.forsythe.util;
+
+/**
+ * Flags a stream knows about its elements, combined into a bitset. Sources set them, each stage passes on the ones
+ * its operation preserves, and operations use them to skip work, e.g. a {@code sorted()} on input that's already
+ * sorted does nothing
+ */
+public final class Characteristics {
+    /**
+     * The exact number of elements is known without producing them
+     */
+    public static final int SIZED = 1;
+
+    /**
+     * The elements are in ascending order
+     */
+    public static final int SORTED = 1 << 1;
+
+    /**
+     * No element appears more than once
+     */
+    public static final int DISTINCT = 1 << 2;
+
+    /**
+     * The elements never run out, so anything that needs all of them would never finish
+     */
+    public static final int INFINITE = 1 << 3;
+
+    private Characteristics() {
+    }
+
+    public static boolean has(int characteristics, int flag) {
+        return (characteristics & flag) == flag;
+    }
+}
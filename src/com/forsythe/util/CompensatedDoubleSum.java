@@ -0,0 +1,64 @@
+package com.forsythe.util;
+
+/**
+ * A running total of doubles that also tracks the low-order bits lost to rounding at each step (Neumaier's variant of
+ * Kahan summation), so adding up many values of very different magnitudes doesn't drift the way a plain {@code +=}
+ * loop does
+ */
+public final class CompensatedDoubleSum {
+    private double sum = 0;
+    private double compensation = 0;
+    //infinities and NaNs poison the compensation, so the plain total decides the result once one turns up
+    private double simpleSum = 0;
+    private long count = 0;
+
+    public void add(double value) {
+        double t = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - t) + value;
+        } else {
+            compensation += (value - t) + sum;
+        }
+        sum = t;
+        simpleSum += value;
+        count++;
+    }
+
+    public void addAll(double[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Adds everything {@code other} has seen to this one
+     */
+    public CompensatedDoubleSum merge(CompensatedDoubleSum other) {
+        long count = this.count + other.count;
+        double simpleSum = this.simpleSum + other.simpleSum;
+        add(other.sum);
+        add(other.compensation);
+        this.count = count;
+        this.simpleSum = simpleSum;
+        return this;
+    }
+
+    /**
+     * @return How many values have been added
+     */
+    public long count() {
+        return count;
+    }
+
+    public double sum() {
+        double total = sum + compensation;
+        return Double.isNaN(total) && Double.isInfinite(simpleSum) ? simpleSum : total;
+    }
+
+    /**
+     * @return The mean of everything added, or NaN if nothing has been
+     */
+    public double average() {
+        return count == 0 ? Double.NaN : sum() / count;
+    }
+}
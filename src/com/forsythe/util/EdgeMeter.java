@@ -0,0 +1,87 @@
+package com.forsythe.util;
+
+/**
+ * Instruments one link between two stages of a profiled pipeline. It counts the elements handed from the producing
+ * stage to the consuming one, and times the calls made across the link.
+ * <p>
+ * Timing every call would cost more than a cheap stage itself, so only the first call and every
+ * {@value #SAMPLE_INTERVAL}th one after it are timed, each standing in for the calls since the previous sample. Calls
+ * that are known to be rare and expensive (e.g. the one that makes a sort stage emit) can be timed exactly with
+ * {@link #beginExact()} instead.
+ * <p>
+ * A meter must only be used by one thread at a time, but the {@link StageMetrics} it records into can be shared
+ */
+public final class EdgeMeter {
+    static final int SAMPLE_INTERVAL = 16;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final StageMetrics producer;
+    private final StageMetrics consumer;
+    private final StageMetrics caller;
+    private final StageMetrics callee;
+    private long calls = 0;
+    private long weight = 1;
+
+    private EdgeMeter(StageMetrics producer, StageMetrics consumer, StageMetrics caller, StageMetrics callee) {
+        this.producer = producer;
+        this.consumer = consumer;
+        this.caller = caller;
+        this.callee = callee;
+    }
+
+    /**
+     * For a link where the producer calls into the consumer. Either side may be null, e.g. for a terminal operation
+     */
+    public static EdgeMeter pushed(StageMetrics producer, StageMetrics consumer) {
+        return new EdgeMeter(producer, consumer, producer, consumer);
+    }
+
+    /**
+     * For a link where the consumer calls into the producer. Either side may be null, e.g. for a terminal operation
+     */
+    public static EdgeMeter pulled(StageMetrics producer, StageMetrics consumer) {
+        return new EdgeMeter(producer, consumer, consumer, producer);
+    }
+
+    /**
+     * Call right before calling across the link, and pass the result to {@link #end(long, long, long)}
+     */
+    public long begin() {
+        long call = calls++;
+        if (call % SAMPLE_INTERVAL != 0)
+            return NOT_SAMPLED;
+        weight = call == 0 ? 1 : SAMPLE_INTERVAL;
+        return System.nanoTime();
+    }
+
+    /**
+     * Like {@link #begin()}, but always times the call, and doesn't count it towards the sampling
+     */
+    public long beginExact() {
+        weight = 1;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param started  What {@link #begin()} or {@link #beginExact()} returned
+     * @param elements How many elements the call handed over
+     * @param buffered How many elements the called stage is holding on to, now that the call has returned
+     */
+    public void end(long started, long elements, long buffered) {
+        if (started != NOT_SAMPLED) {
+            long elapsed = (System.nanoTime() - started) * weight;
+            if (callee != null)
+                callee.recordNanos(elapsed);
+            if (caller != null)
+                caller.recordNestedNanos(elapsed);
+        }
+        if (elements > 0) {
+            if (producer != null)
+                producer.recordOut(elements);
+            if (consumer != null)
+                consumer.recordIn(elements);
+        }
+        if (callee != null)
+            callee.recordBuffered(buffered);
+    }
+}
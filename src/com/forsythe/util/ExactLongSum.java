@@ -0,0 +1,70 @@
+package com.forsythe.util;
+
+/**
+ * A running total of longs, kept to 128 bits so it can't overflow partway through. The final total is only checked
+ * against the range of a long when it's read with {@link #longValueExact()}, and the average stays exact either way
+ */
+public final class ExactLongSum {
+    //the total is high * 2^64 + low, with low read as unsigned
+    private long high = 0;
+    private long low = 0;
+    private long count = 0;
+
+    public void add(long value) {
+        long sum = low + value;
+        high += (value >> 63) + (Long.compareUnsigned(sum, low) < 0 ? 1 : 0);
+        low = sum;
+        count++;
+    }
+
+    public void addAll(long[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    public void addAll(int[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Adds everything {@code other} has seen to this one
+     */
+    public ExactLongSum merge(ExactLongSum other) {
+        long sum = low + other.low;
+        high += other.high + (Long.compareUnsigned(sum, low) < 0 ? 1 : 0);
+        low = sum;
+        count += other.count;
+        return this;
+    }
+
+    /**
+     * @return How many values have been added
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @throws ArithmeticException If the total doesn't fit in a long
+     */
+    public long longValueExact() {
+        if (high != low >> 63)
+            throw new ArithmeticException("long overflow");
+        return low;
+    }
+
+    public double doubleValue() {
+        double unsignedLow = (double) (low >>> 1) * 2 + (low & 1);
+        return high * 0x1p64 + unsignedLow;
+    }
+
+    /**
+     * @return The mean of everything added, or NaN if nothing has been
+     */
+    public double average() {
+        return count == 0 ? Double.NaN : doubleValue() / count;
+    }
+}
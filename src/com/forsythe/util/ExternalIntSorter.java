@@ -0,0 +1,373 @@
+package com.forsythe.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sorts more ints than fit in memory. Values are collected into runs that fit in the memory budget. Each full run is
+ * sorted and spilled to a temp file as raw binary ints, and {@link #finish()} merges the spilled runs (plus the last
+ * one, which stays in memory) lazily as the output is read. At most {@link #MAX_FAN_IN} runs are merged at once, so
+ * if more than that were spilled, they're first merged into fewer, longer runs on disk, a group at a time.
+ * <p>
+ * The merge is stable: equal values come out in the order they were added.
+ * <p>
+ * Spilled runs that never get as far as {@link #finish()}, e.g. because the input failed, are deleted by
+ * {@link #close()}, or once the sorter is garbage collected
+ */
+public final class ExternalIntSorter implements Closeable {
+    /**
+     * Runs are never shorter than this, however small the budget
+     */
+    static final int MIN_RUN_LENGTH = 1 << 10;
+
+    /**
+     * How many values of each spilled run are read into memory at a time while merging
+     */
+    static final int MERGE_CHUNK_LENGTH = 1 << 10;
+
+    /**
+     * How many spilled runs are merged at once. Each one holds an open file, a mapping and a chunk of memory
+     */
+    static final int MAX_FAN_IN = 64;
+
+    private static final Cleaner ABANDONED_RUNS = Cleaner.create();
+
+    private final IntComparator comparator;
+    private final int runLength;
+    private final int maxFanIn;
+    private IntSortBuffer current;
+    private List<SpilledRun> spilled = new ArrayList<>();
+    //every run file that hasn't been handed over to an Output yet
+    private final SpillFiles spillFiles = new SpillFiles();
+
+    /**
+     * @param memoryBudgetBytes Roughly how much memory a run may take up. Sorting with a custom comparator needs a
+     *                          scratch copy of the run, so a run gets half of this
+     */
+    public ExternalIntSorter(IntComparator comparator, long memoryBudgetBytes) {
+        this(comparator, memoryBudgetBytes, MAX_FAN_IN);
+    }
+
+    ExternalIntSorter(IntComparator comparator, long memoryBudgetBytes, int maxFanIn) {
+        if (memoryBudgetBytes <= 0)
+            throw new IllegalArgumentException(String.format("Invalid memory budget %d", memoryBudgetBytes));
+        this.comparator = comparator;
+        this.maxFanIn = maxFanIn;
+        long runLength = memoryBudgetBytes / (2 * Integer.BYTES);
+        this.runLength = (int) Math.max(MIN_RUN_LENGTH, Math.min(Integer.MAX_VALUE - 8, runLength));
+        this.current = new IntSortBuffer(comparator);
+        ABANDONED_RUNS.register(this, spillFiles);
+    }
+
+    /**
+     * @throws UncheckedIOException If a run has to be spilled and can't be
+     */
+    public void add(int value) {
+        current.add(value);
+        if (current.size() == runLength) {
+            spill();
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException If a run has to be spilled and can't be
+     */
+    public void addAll(int[] values, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, runLength - current.size());
+            current.addAll(values, offset, n);
+            offset += n;
+            length -= n;
+            if (current.size() == runLength) {
+                spill();
+            }
+        }
+    }
+
+    /**
+     * @return How many values are currently held in memory
+     */
+    public int buffered() {
+        return current.size();
+    }
+
+    /**
+     * @return How many runs have been spilled to disk so far
+     */
+    public int spilledRuns() {
+        return spilled.size();
+    }
+
+    /**
+     * Sorts whatever hasn't been spilled yet, and starts merging it with the spilled runs. The sorter is left empty,
+     * ready to be reused
+     *
+     * @throws UncheckedIOException If a spilled run can't be read back
+     */
+    public Output finish() {
+        current.sort();
+        List<SpilledRun> runs = spilled;
+        spilled = new ArrayList<>();
+        Output output = new Output(current, mergeDown(runs));
+        current = new IntSortBuffer(comparator);
+        return output;
+    }
+
+    /**
+     * Merges groups of consecutive runs into one run each until no more than {@link #maxFanIn} are left. Keeping
+     * each group's runs in order, and the groups in order, keeps the merge stable
+     */
+    private List<SpilledRun> mergeDown(List<SpilledRun> runs) {
+        while (runs.size() > maxFanIn) {
+            List<SpilledRun> merged = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += maxFanIn) {
+                List<SpilledRun> group = runs.subList(from, Math.min(runs.size(), from + maxFanIn));
+                merged.add(group.size() == 1 ? group.get(0) : merge(group));
+            }
+            runs = merged;
+        }
+        return runs;
+    }
+
+    private SpilledRun merge(List<SpilledRun> group) {
+        Path path = createRunFile();
+        long length = IntChannelWriter.writeFile(path, false, channel -> {
+            IntChannelWriter writer = new IntChannelWriter(channel, ByteOrder.nativeOrder());
+            try (Output merged = new Output(new IntSortBuffer(comparator), group)) {
+                int[] block = new int[MERGE_CHUNK_LENGTH];
+                int n;
+                while ((n = merged.read(block, 0, block.length)) > 0) {
+                    writer.write(block, 0, n);
+                }
+            }
+            writer.flush();
+            return writer.count();
+        });
+        return new SpilledRun(path, length);
+    }
+
+    /**
+     * Deletes any runs spilled since the last {@link #finish()}, and drops whatever's held in memory. The sorter is
+     * left empty, ready to be reused
+     */
+    @Override
+    public void close() {
+        spillFiles.run();
+        spilled = new ArrayList<>();
+        current = new IntSortBuffer(comparator);
+    }
+
+    private void spill() {
+        current.sort();
+        Path path = createRunFile();
+        IntSortBuffer run = current;
+        IntChannelWriter.writeFile(path, false, channel -> {
+            IntChannelWriter writer = new IntChannelWriter(channel, ByteOrder.nativeOrder());
+            writer.write(run.array(), 0, run.size());
+            writer.flush();
+            return writer.count();
+        });
+        spilled.add(new SpilledRun(path, run.size()));
+        current = new IntSortBuffer(comparator);
+    }
+
+    /**
+     * @return A new, empty temp file, which is deleted by {@link #close()} until it's been handed over to an
+     * {@link Output}
+     */
+    private Path createRunFile() {
+        Path path;
+        try {
+            path = Files.createTempFile("hstream-sort-", ".run");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spillFiles.paths.add(path);
+        return path;
+    }
+
+    /**
+     * The run files to delete if the sorter is closed or dropped. Kept apart from the sorter, so the {@link Cleaner}
+     * doesn't keep it reachable
+     */
+    private static final class SpillFiles implements Runnable {
+        final Set<Path> paths = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void run() {
+            for (Path path : paths) {
+                delete(path);
+                paths.remove(path);
+            }
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            //some platforms won't delete a file that's still open
+            path.toFile().deleteOnExit();
+        }
+    }
+
+    private static final class SpilledRun {
+        final Path path;
+        final long length;
+
+        SpilledRun(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The sorted values. Spilled runs are read back a chunk at a time, and a heap picks the run with the next value.
+     * Temp files are deleted once they're open, or when the JVM exits on platforms that don't allow that
+     */
+    public final class Output implements Closeable {
+        private final MappedIntFile[] files; //null for the run that stayed in memory
+        private final int[][] chunks;
+        private final int[] pos;
+        private final int[] size;
+        private final int[] heap; //run indices, ordered by each run's next value, then by run index
+        private int heapSize = 0;
+
+        private Output(IntSortBuffer inMemory, List<SpilledRun> spilled) {
+            int runs = spilled.size() + 1;
+            files = new MappedIntFile[runs];
+            chunks = new int[runs][];
+            pos = new int[runs];
+            size = new int[runs];
+            heap = new int[runs];
+            try {
+                for (int r = 0; r < spilled.size(); r++) {
+                    SpilledRun run = spilled.get(r);
+                    files[r] = MappedIntFile.open(run.path, ByteOrder.nativeOrder(), 0, run.length);
+                    delete(run.path);
+                    spillFiles.paths.remove(run.path);
+                    chunks[r] = new int[(int) Math.min(MERGE_CHUNK_LENGTH, run.length)];
+                }
+            } catch (RuntimeException | Error e) {
+                //the runs opened so far are already deleted, and nothing else will close them
+                close();
+                throw e;
+            }
+            //the in-memory run holds the most recent values, so it goes last to keep the merge stable
+            chunks[runs - 1] = inMemory.array();
+            size[runs - 1] = inMemory.size();
+            for (int r = 0; r < runs; r++) {
+                if (r == runs - 1 ? size[r] > 0 : refill(r)) {
+                    heap[heapSize++] = r;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        /**
+         * Copies up to {@code length} of the next values into {@code dst}. Fewer are only copied once every value
+         * has been read
+         *
+         * @return The number of values copied
+         * @throws UncheckedIOException If a spilled run can't be read back
+         */
+        public int read(int[] dst, int offset, int length) {
+            if (heapSize == 1) {
+                //only one run left, so copy straight out of it
+                return readSingleRun(dst, offset, length);
+            }
+            int n = 0;
+            while (n < length && heapSize > 1) {
+                int r = heap[0];
+                dst[offset + n++] = chunks[r][pos[r]++];
+                if (pos[r] == size[r] && !refill(r)) {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(0);
+            }
+            if (n < length && heapSize == 1) {
+                n += readSingleRun(dst, offset + n, length - n);
+            }
+            return n;
+        }
+
+        private int readSingleRun(int[] dst, int offset, int length) {
+            int r = heap[0];
+            int n = 0;
+            while (n < length) {
+                if (pos[r] == size[r] && !refill(r)) {
+                    heapSize = 0;
+                    break;
+                }
+                int chunk = Math.min(length - n, size[r] - pos[r]);
+                System.arraycopy(chunks[r], pos[r], dst, offset + n, chunk);
+                pos[r] += chunk;
+                n += chunk;
+            }
+            return n;
+        }
+
+        /**
+         * @return Whether run {@code r} has any values left
+         */
+        private boolean refill(int r) {
+            if (files[r] == null)
+                return false;
+            pos[r] = 0;
+            size[r] = files[r].read(chunks[r], 0, chunks[r].length);
+            if (size[r] == 0) {
+                files[r].close();
+                files[r] = null;
+                return false;
+            }
+            return true;
+        }
+
+        private void siftDown(int i) {
+            int r = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize)
+                    break;
+                if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!before(heap[child], r))
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = r;
+        }
+
+        private boolean before(int a, int b) {
+            int c = comparator.compare(chunks[a][pos[a]], chunks[b][pos[b]]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /**
+         * Closes any spilled runs that haven't been read to the end
+         */
+        @Override
+        public void close() {
+            for (int r = 0; r < files.length; r++) {
+                if (files[r] != null) {
+                    files[r].close();
+                    files[r] = null;
+                }
+            }
+            heapSize = 0;
+        }
+    }
+}
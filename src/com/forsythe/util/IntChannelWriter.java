@@ -0,0 +1,110 @@
+package com.forsythe.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.function.ToLongFunction;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes ints to a channel as binary int32 values. They're gathered up in one reusable direct buffer, which is only
+ * handed to the channel once it's full, so the channel sees a few large writes instead of many small ones
+ */
+public final class IntChannelWriter {
+    /**
+     * How many bytes are gathered up before each write
+     */
+    static final int BUFFER_BYTES = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer bytes;
+    private final IntBuffer ints;
+    private long count = 0;
+
+    /**
+     * @param channel Should be in blocking mode. It's left open
+     */
+    public IntChannelWriter(WritableByteChannel channel, ByteOrder order) {
+        this.channel = channel;
+        this.bytes = ByteBuffer.allocateDirect(BUFFER_BYTES).order(order);
+        this.ints = bytes.asIntBuffer();
+    }
+
+    /**
+     * Creates (or truncates) the file, and hands its channel to {@code writer}
+     *
+     * @param fsync Whether to force everything to the storage device before returning
+     * @return What {@code writer} returned
+     * @throws UncheckedIOException If the file can't be written
+     */
+    public static long writeFile(Path path, boolean fsync, ToLongFunction<WritableByteChannel> writer) {
+        try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            long result = writer.applyAsLong(channel);
+            if (fsync) {
+                channel.force(true);
+            }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException If the channel fails
+     */
+    public void write(int value) {
+        if (!ints.hasRemaining()) {
+            flush();
+        }
+        ints.put(value);
+        count++;
+    }
+
+    /**
+     * @throws UncheckedIOException If the channel fails
+     */
+    public void write(int[] values, int offset, int length) {
+        count += length;
+        while (length > 0) {
+            if (!ints.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(length, ints.remaining());
+            ints.put(values, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Hands everything gathered so far to the channel
+     *
+     * @throws UncheckedIOException If the channel fails
+     */
+    public void flush() {
+        bytes.clear().limit(ints.position() * Integer.BYTES);
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ints.clear();
+    }
+
+    /**
+     * @return How many ints have been written
+     */
+    public long count() {
+        return count;
+    }
+}
@@ -0,0 +1,31 @@
+package com.forsythe.util;
+
+import java.util.Comparator;
+
+/**
+ * A {@link Comparator} over primitive ints, so sorting doesn't need to box every element
+ */
+@FunctionalInterface
+public interface IntComparator extends Comparator<Integer> {
+    IntComparator NATURAL_ORDER = Integer::compare;
+
+    IntComparator REVERSE_ORDER = (a, b) -> Integer.compare(b, a);
+
+    int compare(int a, int b);
+
+    @Override
+    default int compare(Integer a, Integer b) {
+        return compare(a.intValue(), b.intValue());
+    }
+
+    /**
+     * @return The given comparator itself if it's already an {@link IntComparator}, otherwise one that unboxes
+     * through it
+     */
+    static IntComparator from(Comparator<Integer> comparator) {
+        if (comparator instanceof IntComparator) {
+            return (IntComparator) comparator;
+        }
+        return comparator::compare;
+    }
+}
@@ -0,0 +1,130 @@
+package com.forsythe.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A set of ints in a single open-addressing table with linear probing, so each value takes up one int slot instead of
+ * a boxed {@link Integer} and a hash map entry. The table can be kept off-heap, in a direct buffer, so a big set
+ * doesn't add to GC pressure. It's freed once the set is garbage collected
+ */
+public final class IntHashSet {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_HEAP_CAPACITY = 1 << 30;
+    private static final int MAX_DIRECT_CAPACITY = 1 << 28; //a direct buffer has to be under 2GB
+
+    private final boolean offHeap;
+    //exactly one of these is set. Empty slots hold 0, so 0 itself is tracked separately
+    private int[] heapSlots;
+    private IntBuffer directSlots;
+    private int mask;
+    private int resizeAt;
+    private int size = 0;
+    private boolean containsZero = false;
+
+    public IntHashSet() {
+        this(0, false);
+    }
+
+    /**
+     * @param expectedSize How many values the set should hold before it has to grow
+     * @param offHeap      Whether to keep the table in a direct buffer instead of an int[]
+     */
+    public IntHashSet(int expectedSize, boolean offHeap) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException(String.format("Invalid expected size %d", expectedSize));
+        this.offHeap = offHeap;
+        double wanted = Math.ceil(expectedSize / (double) IntHashing.LOAD_FACTOR);
+        int capacity = MIN_CAPACITY;
+        while (capacity < wanted && capacity < maxCapacity()) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return Whether the value wasn't in the set already
+     * @throws IllegalStateException If the set would need to grow past its largest possible table
+     */
+    public boolean add(int value) {
+        if (value == 0) {
+            if (containsZero)
+                return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = indexOf(value);
+        if (get(slot) == value)
+            return false;
+        set(slot, value);
+        if (++size > resizeAt) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return value == 0 ? containsZero : get(indexOf(value)) == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot holding {@code value}, or else the empty slot where it would go
+     */
+    private int indexOf(int value) {
+        int slot = IntHashing.mix(value) & mask;
+        int existing;
+        while ((existing = get(slot)) != 0 && existing != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity >= maxCapacity())
+            throw new IllegalStateException(String.format("Cannot hold more than %d distinct values", resizeAt));
+        int[] oldHeap = heapSlots;
+        IntBuffer oldDirect = directSlots;
+        allocate(capacity << 1);
+        for (int i = 0; i < capacity; i++) {
+            int value = oldHeap != null ? oldHeap[i] : oldDirect.get(i);
+            if (value != 0) {
+                set(indexOf(value), value);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        if (offHeap) {
+            directSlots = ByteBuffer.allocateDirect(capacity * Integer.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        } else {
+            heapSlots = new int[capacity];
+        }
+        mask = capacity - 1;
+        resizeAt = capacity == maxCapacity() ? capacity - 1 : (int) (capacity * IntHashing.LOAD_FACTOR);
+    }
+
+    private int maxCapacity() {
+        return offHeap ? MAX_DIRECT_CAPACITY : MAX_HEAP_CAPACITY;
+    }
+
+    private int get(int slot) {
+        return heapSlots != null ? heapSlots[slot] : directSlots.get(slot);
+    }
+
+    private void set(int slot, int value) {
+        if (heapSlots != null) {
+            heapSlots[slot] = value;
+        } else {
+            directSlots.put(slot, value);
+        }
+    }
+}
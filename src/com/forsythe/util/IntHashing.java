@@ -0,0 +1,23 @@
+package com.forsythe.util;
+
+/**
+ * What the open-addressing int tables, {@link IntHashSet} and {@link IntIntMap}, have in common
+ */
+final class IntHashing {
+    /**
+     * A table is grown once it's this full
+     */
+    static final float LOAD_FACTOR = 0.75f;
+
+    private IntHashing() {
+    }
+
+    /**
+     * @return {@code value} with its bits spread out, since consecutive values would otherwise land in long runs of
+     * neighbouring slots. Mask it to get a slot index
+     */
+    static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,9 @@
+package com.forsythe.util;
+
+/**
+ * Takes a key and its value from an {@link IntIntMap}, without boxing either of them
+ */
+@FunctionalInterface
+public interface IntIntConsumer {
+    void accept(int key, int value);
+}
@@ -0,0 +1,301 @@
+package com.forsythe.util;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * A map from ints to ints, without boxing. By default the keys go in an open-addressing table with linear probing.
+ * When every key is known to fall in a small range, {@link #dense(int, int)} keeps one slot per key in a plain array
+ * instead, so there's no hashing or probing at all
+ */
+public final class IntIntMap {
+    /**
+     * The largest key range {@link #dense(int, int)} accepts
+     */
+    static final int MAX_DENSE_RANGE = 1 << 28;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final boolean dense;
+    private int[] values;
+    private int size = 0;
+
+    //dense: the value for a key is at values[key - fromKey], with a bit per key saying whether it's been set
+    private final int fromKey;
+    private final int toKey;
+    private long[] present;
+
+    //hashed: empty slots hold key 0, so the value for 0 itself is kept separately
+    private int[] keys;
+    private int mask;
+    private int resizeAt;
+    private boolean containsZero = false;
+    private int zeroValue;
+
+    public IntIntMap() {
+        this.dense = false;
+        this.fromKey = 0;
+        this.toKey = 0;
+        allocate(MIN_CAPACITY);
+    }
+
+    private IntIntMap(int fromKey, int toKey) {
+        this.dense = true;
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+        int range = toKey - fromKey;
+        this.values = new int[range];
+        this.present = new long[(range + 63) >>> 6];
+    }
+
+    /**
+     * @param fromKey The smallest key, inclusive
+     * @param toKey   The largest key, exclusive
+     * @return A map that only accepts keys in that range, stored in an array with a slot for each
+     */
+    public static IntIntMap dense(int fromKey, int toKey) {
+        long range = (long) toKey - fromKey;
+        if (range < 0 || range > MAX_DENSE_RANGE)
+            throw new IllegalArgumentException(String.format("Invalid key range [%d, %d)", fromKey, toKey));
+        return new IntIntMap(fromKey, toKey);
+    }
+
+    /**
+     * @throws IllegalArgumentException If this map is dense and the key is outside its range
+     */
+    public void put(int key, int value) {
+        if (dense) {
+            int slot = denseSlot(key);
+            markPresent(slot);
+            values[slot] = value;
+        } else if (key == 0) {
+            if (!containsZero) {
+                containsZero = true;
+                size++;
+            }
+            zeroValue = value;
+        } else {
+            int slot = indexOf(key);
+            if (keys[slot] == key) {
+                values[slot] = value;
+            } else {
+                insert(slot, key, value);
+            }
+        }
+    }
+
+    /**
+     * Adds {@code delta} to the value for {@code key}, starting from 0 if it isn't in the map yet
+     *
+     * @throws IllegalArgumentException If this map is dense and the key is outside its range
+     */
+    public void add(int key, int delta) {
+        if (dense) {
+            int slot = denseSlot(key);
+            if (markPresent(slot)) {
+                values[slot] = delta;
+            } else {
+                values[slot] += delta;
+            }
+        } else if (key == 0) {
+            zeroValue = containsZero ? zeroValue + delta : delta;
+            if (!containsZero) {
+                containsZero = true;
+                size++;
+            }
+        } else {
+            int slot = indexOf(key);
+            if (keys[slot] == key) {
+                values[slot] += delta;
+            } else {
+                insert(slot, key, delta);
+            }
+        }
+    }
+
+    /**
+     * Sets the value for {@code key} to {@code op(current, value)}, where the current value is {@code identity} if
+     * the key isn't in the map yet
+     *
+     * @throws IllegalArgumentException If this map is dense and the key is outside its range
+     */
+    public void fold(int key, int identity, int value, IntBinaryOperator op) {
+        if (dense) {
+            int slot = denseSlot(key);
+            values[slot] = op.applyAsInt(markPresent(slot) ? identity : values[slot], value);
+        } else if (key == 0) {
+            zeroValue = op.applyAsInt(containsZero ? zeroValue : identity, value);
+            if (!containsZero) {
+                containsZero = true;
+                size++;
+            }
+        } else {
+            int slot = indexOf(key);
+            if (keys[slot] == key) {
+                values[slot] = op.applyAsInt(values[slot], value);
+            } else {
+                insert(slot, key, op.applyAsInt(identity, value));
+            }
+        }
+    }
+
+    /**
+     * Adds every key in {@code other} to this map. A key that's in both ends up with
+     * {@code combiner(thisValue, otherValue)}
+     *
+     * @return This map
+     */
+    public IntIntMap merge(IntIntMap other, IntBinaryOperator combiner) {
+        if (dense && other.dense && fromKey == other.fromKey && toKey == other.toKey) {
+            //same layout, so walk the slots side by side
+            for (int w = 0; w < present.length; w++) {
+                long theirs = other.present[w];
+                while (theirs != 0) {
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(theirs);
+                    theirs &= theirs - 1;
+                    values[slot] = markPresent(slot)
+                            ? other.values[slot]
+                            : combiner.applyAsInt(values[slot], other.values[slot]);
+                }
+            }
+            return this;
+        }
+        other.forEach((key, value) -> {
+            if (containsKey(key)) {
+                fold(key, 0, value, combiner); //the identity isn't used, the key's already there
+            } else {
+                put(key, value);
+            }
+        });
+        return this;
+    }
+
+    public boolean containsKey(int key) {
+        if (dense) {
+            long slot = (long) key - fromKey;
+            return slot >= 0 && slot < values.length && (present[(int) slot >>> 6] & (1L << slot)) != 0;
+        }
+        return key == 0 ? containsZero : keys[indexOf(key)] == key;
+    }
+
+    /**
+     * @return The value for {@code key}, or 0 if it isn't in the map
+     */
+    public int get(int key) {
+        return getOrDefault(key, 0);
+    }
+
+    public int getOrDefault(int key, int defaultValue) {
+        if (!containsKey(key))
+            return defaultValue;
+        if (dense)
+            return values[key - fromKey];
+        return key == 0 ? zeroValue : values[indexOf(key)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Every key in the map, in ascending order
+     */
+    public int[] keys() {
+        int[] ans = new int[size];
+        int[] n = {0};
+        forEach((key, value) -> ans[n[0]++] = key);
+        if (!dense) {
+            Arrays.sort(ans);
+        }
+        return ans;
+    }
+
+    /**
+     * Hands every entry to {@code action}. Dense maps go in ascending key order, hashed ones in no particular order
+     */
+    public void forEach(IntIntConsumer action) {
+        if (dense) {
+            for (int w = 0; w < present.length; w++) {
+                long bits = present[w];
+                while (bits != 0) {
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    action.accept(fromKey + slot, values[slot]);
+                }
+            }
+            return;
+        }
+        if (containsZero) {
+            action.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                action.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private int denseSlot(int key) {
+        long slot = (long) key - fromKey;
+        if (slot < 0 || slot >= values.length)
+            throw new IllegalArgumentException(String.format("Key %d is outside the range [%d, %d)",
+                    key, fromKey, toKey));
+        return (int) slot;
+    }
+
+    /**
+     * @return Whether the slot wasn't already in use
+     */
+    private boolean markPresent(int slot) {
+        long bit = 1L << slot;
+        if ((present[slot >>> 6] & bit) != 0)
+            return false;
+        present[slot >>> 6] |= bit;
+        size++;
+        return true;
+    }
+
+    private void insert(int slot, int key, int value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size - (containsZero ? 1 : 0) > resizeAt) {
+            grow();
+        }
+    }
+
+    /**
+     * @return The slot holding {@code key}, or else the empty slot where it would go
+     */
+    private int indexOf(int key) {
+        int slot = IntHashing.mix(key) & mask;
+        int existing;
+        while ((existing = keys[slot]) != 0 && existing != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = keys.length;
+        if (capacity >= MAX_CAPACITY)
+            throw new IllegalStateException(String.format("Cannot hold more than %d keys", resizeAt));
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity << 1);
+        for (int i = 0; i < capacity; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = indexOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * IntHashing.LOAD_FACTOR);
+    }
+}
@@ -0,0 +1,170 @@
+package com.forsythe.util;
+
+import java.util.*;
+
+/**
+ * A growable list of ints backed by an int[]. It's a full {@link List List&lt;Integer&gt;}, but values are only boxed
+ * when they're read through that interface; {@link #getInt(int)}, {@link #addInt(int)} and the
+ * {@link PrimitiveIterator.OfInt} from {@link #iterator()} never box
+ */
+public final class IntList extends AbstractList<Integer> implements RandomAccess {
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", initialCapacity));
+        this.values = new int[initialCapacity];
+    }
+
+    public void addInt(int value) {
+        if (size == values.length) {
+            grow(size + 1);
+        }
+        values[size++] = value;
+        modCount++;
+    }
+
+    public void addAll(int[] src, int offset, int length) {
+        if (size + length > values.length) {
+            grow(size + length);
+        }
+        System.arraycopy(src, offset, values, size, length);
+        size += length;
+        modCount++;
+    }
+
+    public boolean addAll(IntList other) {
+        addAll(other.values, 0, other.size);
+        return other.size > 0;
+    }
+
+    /**
+     * Copies {@code length} values, starting from {@code index}, into {@code dst}
+     */
+    public void getInts(int index, int[] dst, int offset, int length) {
+        Objects.checkFromIndexSize(index, length, size);
+        System.arraycopy(values, index, dst, offset, length);
+    }
+
+    public int getInt(int index) {
+        Objects.checkIndex(index, size);
+        return values[index];
+    }
+
+    public int setInt(int index, int value) {
+        Objects.checkIndex(index, size);
+        int old = values[index];
+        values[index] = value;
+        return old;
+    }
+
+    public int removeAt(int index) {
+        Objects.checkIndex(index, size);
+        int old = values[index];
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * @return A copy of the values in this list
+     */
+    public int[] toIntArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Integer get(int index) {
+        return getInt(index);
+    }
+
+    @Override
+    public Integer set(int index, Integer value) {
+        return setInt(index, value);
+    }
+
+    @Override
+    public boolean add(Integer value) {
+        addInt(value);
+        return true;
+    }
+
+    @Override
+    public void add(int index, Integer value) {
+        Objects.checkIndex(index, size + 1);
+        if (size == values.length) {
+            grow(size + 1);
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Integer remove(int index) {
+        return removeAt(index);
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            int cursor = 0;
+            int lastReturned = -1;
+            int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size;
+            }
+
+            @Override
+            public int nextInt() {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (cursor >= size)
+                    throw new NoSuchElementException();
+                lastReturned = cursor++;
+                return values[lastReturned];
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned < 0)
+                    throw new IllegalStateException();
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                removeAt(lastReturned);
+                cursor = lastReturned;
+                lastReturned = -1;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(minCapacity, values.length + (values.length >> 1));
+        if (newCapacity < 0) {
+            //overflowed, just try for the minimum
+            newCapacity = minCapacity;
+        }
+        values = Arrays.copyOf(values, newCapacity);
+    }
+}
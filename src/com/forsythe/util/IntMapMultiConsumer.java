@@ -0,0 +1,12 @@
+package com.forsythe.util;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Expands one int into any number of ints by handing each of them to {@code emit}, without needing an
+ * {@link Iterable} (or any boxing) per element
+ */
+@FunctionalInterface
+public interface IntMapMultiConsumer {
+    void accept(int value, IntConsumer emit);
+}
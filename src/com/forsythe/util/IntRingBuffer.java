@@ -0,0 +1,199 @@
+package com.forsythe.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer for handing ints from exactly one producer thread to exactly one consumer thread.
+ * <p>
+ * Either side spins for a little while when the buffer is full/empty, and then parks until the other side makes
+ * progress. The producer finishes with {@link #close()} or {@link #fail(Throwable)}, and the consumer can give up
+ * early with {@link #cancel()}
+ */
+public final class IntRingBuffer {
+    private static final int SPIN_TRIES = 256;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    private final int[] values;
+    private final int mask;
+    private final AtomicLong readIndex = new AtomicLong(); //only ever written by the consumer
+    private final AtomicLong writeIndex = new AtomicLong(); //only ever written by the producer
+    private volatile boolean closed = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity The maximum number of values that can be waiting in the buffer. Rounded up to a power of 2
+     */
+    public IntRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException(String.format("Invalid ring buffer capacity %d", capacity));
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.values = new int[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /*
+     * Producer side
+     */
+
+    /**
+     * Blocks until there's room for the value
+     *
+     * @return false if the consumer has cancelled, in which case the value is dropped
+     */
+    public boolean put(int value) {
+        long write = writeIndex.get();
+        if (!awaitSpace(write))
+            return false;
+        values[(int) write & mask] = value;
+        writeIndex.set(write + 1);
+        wake(waitingConsumer);
+        return true;
+    }
+
+    /**
+     * Blocks until all the values have been handed over
+     *
+     * @return false if the consumer has cancelled, in which case the remaining values are dropped
+     */
+    public boolean putBatch(int[] src, int offset, int length) {
+        long write = writeIndex.get();
+        while (length > 0) {
+            if (!awaitSpace(write))
+                return false;
+            int n = (int) Math.min(length, values.length - (write - readIndex.get()));
+            for (int i = 0; i < n; i++) {
+                values[(int) (write + i) & mask] = src[offset + i];
+            }
+            write += n;
+            offset += n;
+            length -= n;
+            writeIndex.set(write);
+            wake(waitingConsumer);
+        }
+        return true;
+    }
+
+    /**
+     * Signals that the producer won't write anything else. The consumer still gets every value already written
+     */
+    public void close() {
+        closed = true;
+        wake(waitingConsumer);
+    }
+
+    /**
+     * Like {@link #close()}, but the consumer will rethrow the given exception once it has read every value
+     * already written
+     */
+    public void fail(Throwable t) {
+        failure = t;
+        close();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     * Consumer side
+     */
+
+    /**
+     * Blocks until at least one value is available, or the producer has finished
+     *
+     * @return The number of values written to {@code dst}, which is only 0 once the producer has finished and every
+     * value has been read
+     */
+    public int takeBatch(int[] dst, int offset, int length) {
+        long read = readIndex.get();
+        if (!awaitData(read)) {
+            Throwable t = failure;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new RuntimeException(t);
+            return 0;
+        }
+        int n = (int) Math.min(length, writeIndex.get() - read);
+        for (int i = 0; i < n; i++) {
+            dst[offset + i] = values[(int) (read + i) & mask];
+        }
+        readIndex.set(read + n);
+        wake(waitingProducer);
+        return n;
+    }
+
+    /**
+     * Tells the producer to stop. Anything still in the buffer is discarded
+     */
+    public void cancel() {
+        cancelled = true;
+        wake(waitingProducer);
+    }
+
+    /**
+     * @return false if the consumer cancelled before there was space
+     */
+    private boolean awaitSpace(long write) {
+        int spins = 0;
+        while (write - readIndex.get() == values.length) {
+            if (cancelled)
+                return false;
+            if (spins < SPIN_TRIES) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                waitingProducer = Thread.currentThread();
+                if (write - readIndex.get() == values.length && !cancelled)
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                waitingProducer = null;
+                if (Thread.currentThread().isInterrupted())
+                    throw new CancellationException("Interrupted while waiting for the consumer");
+            }
+        }
+        return !cancelled;
+    }
+
+    /**
+     * @return false if the producer finished before any data arrived
+     */
+    private boolean awaitData(long read) {
+        int spins = 0;
+        while (writeIndex.get() == read) {
+            if (closed) {
+                //the producer may have written more right before closing
+                return writeIndex.get() != read;
+            }
+            if (spins < SPIN_TRIES) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                waitingConsumer = Thread.currentThread();
+                if (writeIndex.get() == read && !closed)
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                waitingConsumer = null;
+                if (Thread.currentThread().isInterrupted())
+                    throw new CancellationException("Interrupted while waiting for the producer");
+            }
+        }
+        return true;
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+}
@@ -0,0 +1,124 @@
+package com.forsythe.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable int[] that collects values and sorts them in place. Natural and reverse order use the JDK's
+ * dual-pivot quicksort (or {@link Arrays#parallelSort(int[], int, int)} for large inputs), while any other
+ * {@link IntComparator} falls back to a stable merge sort that needs a temporary copy of the data
+ */
+public final class IntSortBuffer {
+    /**
+     * Inputs at least this large are sorted with {@link Arrays#parallelSort(int[], int, int)}
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final IntComparator comparator;
+    private int[] values = new int[16];
+    private int size = 0;
+
+    public IntSortBuffer(IntComparator comparator) {
+        this.comparator = comparator;
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            grow(size + 1);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(int[] src, int offset, int length) {
+        if (size + length > values.length) {
+            grow(size + length);
+        }
+        System.arraycopy(src, offset, values, size, length);
+        size += length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return The backing array, whose first {@link #size()} elements are the values in this buffer
+     */
+    public int[] array() {
+        return values;
+    }
+
+    public void sort() {
+        if (comparator == IntComparator.NATURAL_ORDER) {
+            sortNatural();
+        } else if (comparator == IntComparator.REVERSE_ORDER) {
+            sortNatural();
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                int temp = values[i];
+                values[i] = values[j];
+                values[j] = temp;
+            }
+        } else {
+            mergeSort(Arrays.copyOf(values, size), values, 0, size, comparator);
+        }
+    }
+
+    private void sortNatural() {
+        if (size >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values, 0, size);
+        } else {
+            Arrays.sort(values, 0, size);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(minCapacity, values.length + (values.length >> 1));
+        if (newCapacity < 0) {
+            //overflowed, just try for the minimum
+            newCapacity = minCapacity;
+        }
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+    /**
+     * Sorts {@code dest[low, high)}, using {@code src} (which must start out holding the same values) as scratch space
+     */
+    private static void mergeSort(int[] src, int[] dest, int low, int high, IntComparator comparator) {
+        int length = high - low;
+        if (length < INSERTION_SORT_THRESHOLD) {
+            for (int i = low + 1; i < high; i++) {
+                int value = dest[i];
+                int j = i;
+                while (j > low && comparator.compare(dest[j - 1], value) > 0) {
+                    dest[j] = dest[j - 1];
+                    j--;
+                }
+                dest[j] = value;
+            }
+            return;
+        }
+
+        int mid = (low + high) >>> 1;
+        mergeSort(dest, src, low, mid, comparator);
+        mergeSort(dest, src, mid, high, comparator);
+
+        //halves are already in order relative to each other
+        if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, low, dest, low, length);
+            return;
+        }
+
+        for (int i = low, p = low, q = mid; i < high; i++) {
+            if (q >= high || p < mid && comparator.compare(src[p], src[q]) <= 0) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.forsythe.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the first {@code k} ints in {@link IntComparator} order out of everything offered to it, in O(k) memory and
+ * O(log k) time per value that makes the cut. Ties are broken by arrival, so the result matches a stable sort of
+ * everything offered, cut off after {@code k} values
+ */
+public final class IntTopK {
+    /**
+     * What each value kept takes up: the value itself, and when it arrived
+     */
+    public static final int BYTES_PER_VALUE = Integer.BYTES + Long.BYTES;
+
+    private final int k;
+    private final IntComparator comparator;
+    //a binary heap with the last value to make the cut (the first to be evicted) at the root. Grows up to k as
+    //values arrive, so a big k over a short input stays cheap
+    private int[] values = new int[0];
+    private long[] arrivals = new long[0];
+    private int size = 0;
+    private long offered = 0;
+
+    public IntTopK(int k, IntComparator comparator) {
+        if (k < 0)
+            throw new IllegalArgumentException(String.format("Cannot keep the top %d elements", k));
+        this.k = k;
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return Whether keeping the top {@code k} values fits in {@code memoryBudgetBytes}
+     */
+    public static boolean fitsIn(int k, long memoryBudgetBytes) {
+        return (long) k * BYTES_PER_VALUE <= memoryBudgetBytes;
+    }
+
+    public void offer(int value) {
+        long arrival = offered++;
+        if (size < k) {
+            ensureCapacity(size + 1);
+            values[size] = value;
+            arrivals[size] = arrival;
+            siftUp(size++);
+        } else if (k > 0 && comparator.compare(value, values[0]) < 0) {
+            //arrived later than everything kept, so it only makes the cut if it's strictly before the root
+            values[0] = value;
+            arrivals[0] = arrival;
+            siftDown(0);
+        }
+    }
+
+    public void offerAll(int[] src, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            offer(src[i]);
+        }
+    }
+
+    /**
+     * @return How many values are currently kept, at most {@code k}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The values kept, in order. Leaves this empty, ready to be reused
+     */
+    public int[] drainSorted() {
+        int[] sorted = new int[size];
+        //repeatedly move the root (the last value in order) to the end
+        for (int end = size - 1; end >= 0; end--) {
+            sorted[end] = values[0];
+            size--;
+            values[0] = values[size];
+            arrivals[0] = arrivals[size];
+            siftDown(0);
+        }
+        offered = 0;
+        return sorted;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newCapacity = (int) Math.min(k, Math.max(capacity, Math.max(16, 2L * values.length)));
+            values = Arrays.copyOf(values, newCapacity);
+            arrivals = Arrays.copyOf(arrivals, newCapacity);
+        }
+    }
+
+    /**
+     * @return Whether the value at {@code a} comes after the one at {@code b}, i.e. belongs closer to the root
+     */
+    private boolean after(int a, int b) {
+        int c = comparator.compare(values[a], values[b]);
+        return c > 0 || (c == 0 && arrivals[a] > arrivals[b]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!after(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && after(child + 1, child)) {
+                child++;
+            }
+            if (!after(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+        long arrival = arrivals[a];
+        arrivals[a] = arrivals[b];
+        arrivals[b] = arrival;
+    }
+}
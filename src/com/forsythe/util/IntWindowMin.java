@@ -0,0 +1,63 @@
+package com.forsythe.util;
+
+/**
+ * The first in {@link IntComparator} order of the last {@code size} ints added, i.e. the minimum for
+ * {@link IntComparator#NATURAL_ORDER} and the maximum for {@link IntComparator#REVERSE_ORDER}.
+ * <p>
+ * Kept as a monotonic deque: each int waits behind the ones before it that come earlier in order, and anything it
+ * beats is dropped, since it can never be the answer again. Every int is added and removed once, so each update is
+ * amortized O(1) whatever the window size
+ */
+public final class IntWindowMin {
+    private final int size;
+    private final IntComparator comparator;
+    //a ring of at most size entries, from the current answer at head onwards
+    private final int[] values;
+    private final long[] positions;
+    private int head = 0;
+    private int length = 0;
+    private long added = 0;
+
+    public IntWindowMin(int size, IntComparator comparator) {
+        if (size <= 0)
+            throw new IllegalArgumentException(String.format("Invalid window size %d", size));
+        this.size = size;
+        this.comparator = comparator;
+        this.values = new int[size];
+        this.positions = new long[size];
+    }
+
+    public void add(int value) {
+        //anything that doesn't come before the new value is out of the running for as long as it's in the window
+        while (length > 0 && comparator.compare(values[slot(length - 1)], value) >= 0) {
+            length--;
+        }
+        if (length > 0 && positions[head] <= added - size) {
+            head = slot(1);
+            length--;
+        }
+        int tail = slot(length++);
+        values[tail] = value;
+        positions[tail] = added++;
+    }
+
+    public void addAll(int[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If nothing's been added yet
+     */
+    public int get() {
+        if (length == 0)
+            throw new IllegalStateException("The window is empty");
+        return values[head];
+    }
+
+    private int slot(int index) {
+        int slot = head + index;
+        return slot >= size ? slot - size : slot;
+    }
+}
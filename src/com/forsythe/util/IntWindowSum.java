@@ -0,0 +1,51 @@
+package com.forsythe.util;
+
+/**
+ * The sum of the last {@code size} ints added, updated in O(1) per int. The window is kept in a ring buffer, so the
+ * int that falls out of it can be subtracted again
+ */
+public final class IntWindowSum {
+    private final int[] ring;
+    private int next = 0;
+    private int count = 0;
+    private long sum = 0;
+
+    public IntWindowSum(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException(String.format("Invalid window size %d", size));
+        this.ring = new int[size];
+    }
+
+    public void add(int value) {
+        if (count == ring.length) {
+            sum -= ring[next];
+        } else {
+            count++;
+        }
+        ring[next] = value;
+        sum += value;
+        if (++next == ring.length) {
+            next = 0;
+        }
+    }
+
+    public void addAll(int[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * @return The sum of the ints in the window, which can't overflow as long as it holds under 2^32 of them
+     */
+    public long sum() {
+        return sum;
+    }
+
+    /**
+     * @return How many ints are in the window, at most {@code size}
+     */
+    public int count() {
+        return count;
+    }
+}
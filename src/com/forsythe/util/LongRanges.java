@@ -0,0 +1,21 @@
+package com.forsythe.util;
+
+/**
+ * Helpers for stepping through a range of longs, which can be wider than {@link Long#MAX_VALUE}, e.g. from
+ * {@link Long#MIN_VALUE} to {@link Long#MAX_VALUE}
+ */
+public final class LongRanges {
+    private LongRanges() {
+    }
+
+    /**
+     * @return How many values from {@code fromIncl} up to {@code toExcl} to take in the next step, at most {@code max}
+     */
+    public static int step(long fromIncl, long toExcl, int max) {
+        if (fromIncl >= toExcl)
+            return 0;
+        //the width overflows a long, but never an unsigned one
+        long width = toExcl - fromIncl;
+        return Long.compareUnsigned(width, max) < 0 ? (int) width : max;
+    }
+}
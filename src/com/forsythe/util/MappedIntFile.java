@@ -0,0 +1,136 @@
+package com.forsythe.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a range of a binary file of int32 values through memory-mapped segments, so the OS pages the file in as it's
+ * read and the heap never holds more than the caller's buffer. A single mapping can't be bigger than 2GB, so larger
+ * files are mapped one segment at a time.
+ * <p>
+ * A reader that's dropped without being closed has its file closed once it's garbage collected
+ */
+public final class MappedIntFile implements Closeable {
+    /**
+     * How many bytes are mapped at a time
+     */
+    static final long SEGMENT_BYTES = 1L << 30;
+
+    private static final Cleaner ABANDONED_FILES = Cleaner.create();
+
+    private final FileChannel channel;
+    private final Cleaner.Cleanable closer;
+    private final ByteOrder order;
+    private final long segmentBytes;
+    private final long toIndex;
+    private long index;
+    private IntBuffer segment = IntBuffer.allocate(0);
+
+    private MappedIntFile(FileChannel channel, ByteOrder order, long fromIndex, long toIndex, long segmentBytes) {
+        this.channel = channel;
+        this.order = order;
+        this.index = fromIndex;
+        this.toIndex = toIndex;
+        this.segmentBytes = segmentBytes;
+        //mustn't refer to this, or it would never become unreachable
+        this.closer = ABANDONED_FILES.register(this, () -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return How many ints the file holds
+     * @throws IllegalArgumentException If the file's length isn't a whole number of ints
+     * @throws UncheckedIOException     If the file can't be read
+     */
+    public static long length(Path path) {
+        long bytes;
+        try {
+            bytes = Files.size(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (bytes % Integer.BYTES != 0)
+            throw new IllegalArgumentException(String.format("%s is %d bytes long, which isn't a whole number of ints",
+                    path, bytes));
+        return bytes / Integer.BYTES;
+    }
+
+    /**
+     * Opens the file for reading the ints from {@code fromIndex} up to {@code toIndex}
+     *
+     * @throws UncheckedIOException If the file can't be opened
+     */
+    public static MappedIntFile open(Path path, ByteOrder order, long fromIndex, long toIndex) {
+        return open(path, order, fromIndex, toIndex, SEGMENT_BYTES);
+    }
+
+    static MappedIntFile open(Path path, ByteOrder order, long fromIndex, long toIndex, long segmentBytes) {
+        try {
+            return new MappedIntFile(FileChannel.open(path, StandardOpenOption.READ), order, fromIndex, toIndex,
+                    segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return How many ints are left to read
+     */
+    public long remaining() {
+        return toIndex - index + segment.remaining();
+    }
+
+    /**
+     * Copies up to {@code length} of the next ints into {@code dst}. Fewer are only copied once the range runs out
+     *
+     * @return The number of ints copied
+     * @throws UncheckedIOException If mapping the next segment fails
+     */
+    public int read(int[] dst, int offset, int length) {
+        int n = 0;
+        while (n < length) {
+            if (!segment.hasRemaining() && !mapNextSegment())
+                break;
+            int chunk = Math.min(length - n, segment.remaining());
+            segment.get(dst, offset + n, chunk);
+            n += chunk;
+        }
+        return n;
+    }
+
+    private boolean mapNextSegment() {
+        if (index >= toIndex)
+            return false;
+        long ints = Math.min(toIndex - index, segmentBytes / Integer.BYTES);
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, index * Integer.BYTES, ints * Integer.BYTES)
+                    .order(order)
+                    .asIntBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index += ints;
+        return true;
+    }
+
+    /**
+     * Closes the file, if it isn't already. Mapped segments stay valid until they're garbage collected
+     */
+    @Override
+    public void close() {
+        closer.clean();
+    }
+}
@@ -0,0 +1,47 @@
+package com.forsythe.util;
+
+import java.util.List;
+
+/**
+ * A snapshot of the per-stage numbers recorded by a profiled pipeline, from its source to its last stage
+ */
+public final class PipelineProfile {
+    private final List<StageProfile> stages;
+
+    public PipelineProfile(List<StageProfile> stages) {
+        this.stages = List.copyOf(stages);
+    }
+
+    /**
+     * @return Every stage in the pipeline, starting with its source
+     */
+    public List<StageProfile> stages() {
+        return stages;
+    }
+
+    /**
+     * Describes the pipeline in the style of an SQL {@code EXPLAIN ANALYZE}: the last stage comes first, and each
+     * stage is followed by the one feeding it, e.g.
+     * <pre>
+     * sorted  (in=500 out=500 selectivity=1.000 self=0.051 ms total=0.123 ms peak buffered=500)
+     *   -&gt;  filter  (in=1000 out=500 selectivity=0.500 self=0.040 ms total=0.072 ms)
+     *         -&gt;  fromRange  (out=1000 self=0.032 ms total=0.032 ms)
+     * </pre>
+     */
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            int depth = stages.size() - 1 - i;
+            if (depth > 0) {
+                sb.append(" ".repeat(6 * (depth - 1) + 2)).append("->  ");
+            }
+            sb.append(stages.get(i)).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return explain();
+    }
+}
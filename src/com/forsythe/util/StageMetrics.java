@@ -0,0 +1,48 @@
+package com.forsythe.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The running totals for one stage of a profiled pipeline. They're filled in by the {@link EdgeMeter}s on the links
+ * into and out of the stage, and can be shared by copies of the stage running on different threads
+ */
+public final class StageMetrics {
+    private final LongAdder elementsIn = new LongAdder();
+    private final LongAdder elementsOut = new LongAdder();
+    private final LongAdder nanos = new LongAdder(); //time spent inside calls to this stage
+    private final LongAdder nestedNanos = new LongAdder(); //the part of that spent inside the stages it called
+    private final LongAccumulator peakBuffered = new LongAccumulator(Math::max, 0);
+
+    void recordIn(long elements) {
+        elementsIn.add(elements);
+    }
+
+    void recordOut(long elements) {
+        elementsOut.add(elements);
+    }
+
+    void recordNanos(long elapsed) {
+        nanos.add(elapsed);
+    }
+
+    void recordNestedNanos(long elapsed) {
+        nestedNanos.add(elapsed);
+    }
+
+    void recordBuffered(long buffered) {
+        if (buffered > 0) {
+            peakBuffered.accumulate(buffered);
+        }
+    }
+
+    /**
+     * @return The numbers recorded so far, labelled with the given stage name
+     */
+    public StageProfile snapshot(String name) {
+        long total = nanos.sum();
+        //the timings are estimated from separate samples, so the difference can come out slightly negative
+        long self = Math.max(0, total - nestedNanos.sum());
+        return new StageProfile(name, elementsIn.sum(), elementsOut.sum(), total, self, peakBuffered.get());
+    }
+}
@@ -0,0 +1,80 @@
+package com.forsythe.util;
+
+/**
+ * A snapshot of what one stage of a profiled pipeline has done, see {@link PipelineProfile}
+ */
+public final class StageProfile {
+    private final String name;
+    private final long elementsIn;
+    private final long elementsOut;
+    private final long totalNanos;
+    private final long selfNanos;
+    private final long peakBuffered;
+
+    StageProfile(String name, long elementsIn, long elementsOut, long totalNanos, long selfNanos, long peakBuffered) {
+        this.name = name;
+        this.elementsIn = elementsIn;
+        this.elementsOut = elementsOut;
+        this.totalNanos = totalNanos;
+        this.selfNanos = selfNanos;
+        this.peakBuffered = peakBuffered;
+    }
+
+    /**
+     * @return The operation this stage performs, e.g. "filter"
+     */
+    public String name() {
+        return name;
+    }
+
+    public long elementsIn() {
+        return elementsIn;
+    }
+
+    public long elementsOut() {
+        return elementsOut;
+    }
+
+    /**
+     * @return The fraction of the input that made it to the output, or NaN if there was no input (as for a source)
+     */
+    public double selectivity() {
+        return elementsIn == 0 ? Double.NaN : (double) elementsOut / elementsIn;
+    }
+
+    /**
+     * @return Estimated time spent inside this stage, including the stages it called into
+     */
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return Estimated time spent inside this stage, not counting the stages it called into
+     */
+    public long selfNanos() {
+        return selfNanos;
+    }
+
+    /**
+     * @return The most elements this stage held on to at once. Always 0 for stages that don't buffer
+     */
+    public long peakBuffered() {
+        return peakBuffered;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name).append("  (");
+        if (Double.isNaN(selectivity())) {
+            sb.append(String.format("out=%d", elementsOut));
+        } else {
+            sb.append(String.format("in=%d out=%d selectivity=%.3f", elementsIn, elementsOut, selectivity()));
+        }
+        sb.append(String.format(" self=%.3f ms total=%.3f ms", selfNanos / 1e6, totalNanos / 1e6));
+        if (peakBuffered > 0) {
+            sb.append(String.format(" peak buffered=%d", peakBuffered));
+        }
+        return sb.append(')').toString();
+    }
+}
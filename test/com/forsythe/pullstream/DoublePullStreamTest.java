@@ -0,0 +1,35 @@
+package com.forsythe.pullstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublePullStreamTest {
+    @Test
+    void stages() {
+        assertArrayEquals(new double[]{-3.0, -0.0, 0.0, 1.0, Double.NaN},
+                DoublePullStream.of(0.5, -1.5, 2.5, Double.NaN, -0.0, 0.0)
+                        .filter(x -> x != 2.5)
+                        .map(x -> x * 2)
+                        .sorted()
+                        .toArray());
+        assertArrayEquals(new double[]{0.5, 0.25},
+                DoublePullStream.generator(1, x -> x / 2).skip(1).limit(2).toArray());
+        assertEquals(4, DoublePullStream.generator(1, x -> x / 2).takeWhile(x -> x > 0.1).count());
+        assertEquals(-1.5, DoublePullStream.of(0.5, -1.5).min().orElse(0));
+        assertEquals(6.0, DoublePullStream.of(1, 2, 3).fold(0, Double::sum));
+        assertFalse(DoublePullStream.of().reduce(Double::sum).isPresent());
+        assertEquals(0.5, DoublePullStream.of(0.5).iterator().nextDouble());
+    }
+
+    @Test
+    void sumAndAverage() {
+        assertEquals(1000.0, PullStream.fromRange(0, 10_000).mapToDouble(x -> 0.1).sum());
+        assertEquals(0.1, PullStream.fromRange(0, 10_000).mapToDouble(x -> 0.1).average().orElse(0));
+        assertEquals(1.0, DoublePullStream.of(1e100, 1.0, -1e100).sum());
+        assertFalse(DoublePullStream.of().average().isPresent());
+        assertEquals(2.5, PullStream.fromList(List.of(1, 2, 3, 4)).asDoubleStream().average().orElse(0));
+    }
+}
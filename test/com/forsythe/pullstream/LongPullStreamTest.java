@@ -0,0 +1,78 @@
+package com.forsythe.pullstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongPullStreamTest {
+    @Test
+    void stages() {
+        long big = 1L << 40;
+        assertArrayEquals(new long[]{3 * big + 60, 3 * big + 66, 3 * big + 72, 3 * big + 78, 3 * big + 84},
+                LongPullStream.fromRange(big, big + 10_000)
+                        .map(x -> x * 3)
+                        .filter(x -> x % 2 == 0)
+                        .skip(10)
+                        .limit(5)
+                        .toArray());
+        assertArrayEquals(new long[]{-5, 1, 3, Long.MAX_VALUE},
+                LongPullStream.of(3, Long.MAX_VALUE, -5, 1).sorted().toArray());
+        assertEquals(Long.MAX_VALUE, LongPullStream.of(3, Long.MAX_VALUE, -5, 1).max().orElse(0));
+        assertEquals(-5, LongPullStream.of(3, Long.MAX_VALUE, -5, 1).min().orElse(0));
+        assertEquals(6, LongPullStream.of(1, 2, 3).fold(0, Long::sum));
+        assertFalse(LongPullStream.of().reduce(Long::sum).isPresent());
+        assertEquals(List.of(1L, 2L, 4L, 8L),
+                toList(LongPullStream.generator(1, x -> x * 2).takeWhile(x -> x < 10)));
+        assertEquals(1L << 62, LongPullStream.generator(1, x -> x * 2).skip(62).iterator().nextLong());
+        assertEquals(1000, LongPullStream.generator(0, x -> x + 1).limit(1000).count());
+        assertThrows(IllegalArgumentException.class, () -> LongPullStream.of(1).skip(-1));
+    }
+
+    @Test
+    void wideAndNegativeRanges() {
+        //wider than Long.MAX_VALUE
+        assertArrayEquals(new long[]{Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MIN_VALUE + 2},
+                LongPullStream.fromRange(Long.MIN_VALUE, Long.MAX_VALUE).limit(3).toArray());
+        assertArrayEquals(new long[]{-1, 0, 1}, LongPullStream.fromRange(-1, Long.MAX_VALUE).limit(3).toArray());
+        assertArrayEquals(new long[]{Long.MAX_VALUE - 2, Long.MAX_VALUE - 1},
+                LongPullStream.fromRange(Long.MAX_VALUE - 2, Long.MAX_VALUE).toArray());
+        assertArrayEquals(new long[]{-5, -4, -3}, LongPullStream.fromRange(-5, -2).toArray());
+        assertArrayEquals(new long[0], LongPullStream.fromRange(Long.MAX_VALUE, Long.MIN_VALUE).toArray());
+    }
+
+    @Test
+    void sumAndAverage() {
+        assertEquals(49_995_000L, LongPullStream.fromRange(0, 10_000).sum());
+        assertThrows(ArithmeticException.class, () -> LongPullStream.of(Long.MAX_VALUE, 1).sum());
+        assertEquals(Long.MAX_VALUE - 1, LongPullStream.of(Long.MAX_VALUE, 1, -2).sum());
+        assertEquals(Long.MAX_VALUE, LongPullStream.of(Long.MAX_VALUE, Long.MAX_VALUE).average().orElse(0));
+        assertFalse(LongPullStream.of().average().isPresent());
+        //int streams add up as longs too
+        assertEquals(2L * Integer.MAX_VALUE,
+                PullStream.fromList(List.of(Integer.MAX_VALUE, Integer.MAX_VALUE)).sum());
+        assertEquals(Integer.MAX_VALUE,
+                PullStream.fromList(List.of(Integer.MAX_VALUE, Integer.MAX_VALUE)).average().orElse(0));
+    }
+
+    @Test
+    void conversions() {
+        assertEquals(4L * Integer.MAX_VALUE, PullStream.fromList(List.of(Integer.MAX_VALUE, Integer.MAX_VALUE))
+                .asLongStream()
+                .map(x -> x * 2)
+                .sum());
+        assertEquals(4999L * 4999, PullStream.fromRange(0, 5000).mapToLong(x -> (long) x * x).max().orElse(0));
+        assertEquals(3, PullStream.generator(0, x -> x + 1).asLongStream().limit(3).count());
+        assertArrayEquals(new double[]{0.5, 1.0, 1.5},
+                LongPullStream.of(1, 2, 3).mapToDouble(x -> x / 2.0).toArray());
+        assertEquals(3.0, LongPullStream.of(1, 2).asDoubleStream().sum());
+    }
+
+    private static List<Long> toList(LongPullStream stream) {
+        List<Long> values = new ArrayList<>();
+        stream.forEach(values::add);
+        return values;
+    }
+}
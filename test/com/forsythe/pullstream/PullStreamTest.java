@@ -1,10 +1,25 @@
 package com.forsythe.pullstream;
 
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.StageProfile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import static com.forsythe.util.Characteristics.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class PullStreamTest {
     @Test
@@ -32,6 +47,19 @@ class PullStreamTest {
         assertEquals(List.of(), stream3.toList()); //fully consumed
     }
 
+    @Test
+    void composedMaps() {
+        PullStream first = PullStream.fromRange(0, 10).map(x -> x + 1);
+        PullStream second = first.map(x -> x * 2).map(x -> x - 1);
+        assertTrue(second.hasNext());
+        assertEquals(1, second.getNext());
+        //still one single-use stream underneath
+        assertTrue(first.hasNext());
+        assertEquals(2, first.getNext());
+        assertEquals(List.of(5, 7, 9, 11, 13, 15, 17, 19), second.toList());
+        assertEquals(List.of(), first.toList());
+    }
+
     @Test
     void mapAndFilter() {
         PullStream stream = PullStream.fromRange(1, 100);
@@ -46,6 +74,29 @@ class PullStreamTest {
         assertEquals(List.of(-8, -6, -4, -2, 1, 3, 5, 7, 9), output);
     }
 
+    @Test
+    void sortedWithComparators() {
+        Random random = new Random(7);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 300_000; i++) {
+            input.add(random.nextInt(1000) - 500);
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(Comparator.naturalOrder());
+        assertEquals(expected, PullStream.fromList(input).sorted().toList());
+
+        expected.sort(Comparator.reverseOrder());
+        assertEquals(expected, PullStream.fromList(input).sorted(IntComparator.REVERSE_ORDER).toList());
+
+        IntComparator absolute = (a, b) -> Integer.compare(Math.abs(a), Math.abs(b));
+        expected = new ArrayList<>(input);
+        expected.sort(absolute);
+        PullStream sorted = PullStream.fromList(input).sorted(absolute);
+        assertTrue(sorted.hasNext());
+        assertEquals(expected.get(0), sorted.getNext());
+        assertEquals(expected.subList(1, expected.size()), sorted.toList());
+    }
+
     @Test
     void generatorAndLimit() {
         PullStream counter = PullStream.generator(1, (a) -> a + 1);
@@ -87,6 +138,214 @@ class PullStreamTest {
         assertEquals(Set.of(256, 512, 1024, 2048), output);
     }
 
+    @Test
+    void sortedWithinMemoryBudget() {
+        Random random = new Random(5);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            input.add(random.nextInt(1000));
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        Collections.sort(expected);
+        PullStream stream = PullStream.fromList(input).sorted(IntComparator.NATURAL_ORDER, 16 * 1024);
+        assertTrue(stream.hasNext());
+        assertEquals(expected.get(0), stream.getNext());
+        assertEquals(expected.subList(1, expected.size()), stream.toList());
+
+        assertEquals(expected.subList(0, 5),
+                PullStream.fromList(input).sorted(IntComparator.NATURAL_ORDER, 1).limit(5).toList());
+        assertEquals(List.of(), PullStream.fromList(List.of()).sorted(IntComparator.NATURAL_ORDER, 1).toList());
+    }
+
+    @Test
+    void budgetedSortKeepsItsBudgetUnderALimit() {
+        //a heap holding millions of elements would blow well past the budget, so the sort has to spill as usual
+        PullStream large = PullStream.fromRange(0, 20_000_000).map(x -> -x)
+                .sorted(IntComparator.NATURAL_ORDER, 8 << 20).limit(20_000_000);
+        assertEquals("fromRange[20000000] -> map -> sorted -> limit(20000000)", large.plan());
+        PullStream small = PullStream.fromRange(0, 20_000_000).map(x -> -x)
+                .sorted(IntComparator.NATURAL_ORDER, 8 << 20).limit(10);
+        assertEquals("fromRange[20000000] -> map -> topK", small.plan());
+
+        long expected = 0;
+        for (int i = 0; i < 150_000; i++) {
+            expected -= 199_999 - i;
+        }
+        assertEquals(expected, PullStream.fromRange(0, 200_000).map(x -> -x)
+                .sorted(IntComparator.NATURAL_ORDER, 64 * 1024).limit(150_000).sum());
+    }
+
+    @Test
+    void failedBudgetedSortDeletesItsRuns() throws IOException {
+        long before = sortRunFiles();
+        PullStream stream = PullStream.fromRange(0, 100_000).map(x -> {
+            if (x == 90_000)
+                throw new IllegalStateException("boom");
+            return -x;
+        }).sorted(IntComparator.NATURAL_ORDER, 1);
+        assertThrows(IllegalStateException.class, stream::toList);
+        assertEquals(before, sortRunFiles());
+    }
+
+    @Test
+    void topK() {
+        Random random = new Random(19);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            input.add(random.nextInt());
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        Collections.sort(expected);
+        int[] comparisons = {0};
+        IntComparator ascending = (a, b) -> {
+            comparisons[0]++;
+            return Integer.compare(a, b);
+        };
+
+        assertEquals(expected.subList(0, 100), PullStream.fromList(input).topK(100, ascending).toList());
+        comparisons[0] = 0;
+        assertEquals(expected.subList(0, 10), PullStream.fromList(input).sorted(ascending).limit(10).toList());
+        assertTrue(comparisons[0] < 2 * input.size(), String.valueOf(comparisons[0]));
+        assertEquals(expected.subList(0, 10),
+                PullStream.fromList(input).sorted(ascending, 16 * 1024).limit(10).toList());
+
+        //once the sort has started, a limit has to work from what it already sorted
+        PullStream started = PullStream.fromList(List.of(3, 1, 2, 0)).sorted();
+        assertTrue(started.hasNext());
+        assertEquals(0, started.getNext());
+        assertEquals(List.of(1, 2), started.limit(2).toList());
+        assertThrows(IllegalArgumentException.class, () -> PullStream.fromList(List.of(1)).topK(-1, ascending));
+    }
+
+    @Test
+    void distinct() {
+        assertEquals(List.of(3, 1, 0, 2), PullStream.fromList(List.of(3, 1, 3, 0, 1, 2, 0)).distinct().toList());
+        assertEquals(List.of(0, 1, 2), PullStream.fromRange(0, 100_000).map(x -> x % 3).distinct(true).toList());
+        //lazy, so it works on an infinite stream as long as enough distinct elements turn up
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6),
+                PullStream.generator(0, x -> (x + 1) % 7).distinct().limit(7).toList());
+
+        //straight after a sort, only the last element is kept
+        PullStream sorted = PullStream.fromRange(0, 100_000).map(x -> x % 1000).profiled().sorted().distinct();
+        assertEquals(1000, sorted.count());
+        StageProfile distinct = sorted.profile().stages().get(3);
+        assertEquals("distinct", distinct.name());
+        assertEquals(0, distinct.peakBuffered());
+        assertEquals(List.of(2, 1),
+                PullStream.fromList(List.of(1, 2, 1, 2)).sorted(IntComparator.REVERSE_ORDER).distinct().toList());
+
+        PullStream hashed = PullStream.fromRange(0, 100_000).map(x -> x % 1000).profiled().distinct();
+        assertEquals(1000, hashed.count());
+        assertEquals(1000, hashed.profile().stages().get(2).peakBuffered());
+    }
+
+    @Test
+    void groupBy() {
+        IntIntMap histogram = PullStream.fromRange(0, 100_000).countBy(x -> x % 1000);
+        assertEquals(1000, histogram.size());
+        assertEquals(100, histogram.get(999));
+        assertEquals(100, PullStream.fromRange(0, 100_000).countBy(x -> x % 1000, 0, 1000).get(0));
+        assertThrows(IllegalArgumentException.class,
+                () -> PullStream.fromList(List.of(1000)).countBy(x -> x, 0, 1000));
+
+        IntIntMap maxima = PullStream.fromRange(0, 100).groupingFold(x -> x % 2, Integer.MIN_VALUE, Math::max);
+        assertEquals(98, maxima.get(0));
+        assertEquals(99, maxima.get(1));
+        assertArrayEquals(new int[]{0, 1}, maxima.keys());
+    }
+
+    @Test
+    void window() {
+        Random random = new Random(37);
+        int[] input = new int[10_000];
+        List<Integer> boxed = new ArrayList<>();
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextInt();
+            boxed.add(input[i]);
+        }
+        for (int[] sizeAndSlide : new int[][]{{1, 1}, {5, 1}, {100, 100}, {100, 30}, {3, 10}, {5000, 2000}}) {
+            int size = sizeAndSlide[0];
+            int slide = sizeAndSlide[1];
+            List<Long> sums = new ArrayList<>();
+            List<Integer> minima = new ArrayList<>();
+            List<Integer> maxima = new ArrayList<>();
+            for (int start = 0; start + size <= input.length; start += slide) {
+                IntSummaryStatistics window = Arrays.stream(input, start, start + size).summaryStatistics();
+                sums.add(window.getSum());
+                minima.add(window.getMin());
+                maxima.add(window.getMax());
+            }
+            assertArrayEquals(sums.stream().mapToLong(x -> x).toArray(),
+                    PullStream.fromList(boxed).window(size, slide).sum().toArray());
+            assertEquals(minima, PullStream.fromList(boxed).window(size, slide).min().toList());
+            assertEquals(maxima, PullStream.fromList(boxed).window(size, slide).max().toList());
+        }
+
+        //works on an infinite stream, and reads no further than the end of the last window it needs
+        int[] read = {0};
+        PullStream naturals = PullStream.generator(0, x -> x + 1).map(x -> {
+            read[0]++;
+            return x;
+        });
+        assertArrayEquals(new long[]{3, 12, 21}, naturals.window(3).sum().limit(3).toArray());
+        assertEquals(9, read[0]);
+        assertArrayEquals(new double[]{1.5, 3.5},
+                PullStream.fromRange(0, 6).window(4, 2).average().toArray());
+        assertEquals(List.of(), PullStream.fromRange(0, 3).window(4).max().toList());
+        assertThrows(IllegalArgumentException.class, () -> PullStream.fromRange(0, 3).window(0, 1));
+    }
+
+    @Test
+    void toArrayAndPrimitiveIterator() {
+        assertArrayEquals(new int[]{1, 4, 9}, PullStream.fromRange(1, 4).map(x -> x * x).toArray());
+        PrimitiveIterator.OfInt evens = PullStream.generator(0, x -> x + 1).filter(x -> x % 2 == 0).iterator();
+        //nextInt without hasNext still works, even through a filter
+        assertEquals(0, evens.nextInt());
+        assertEquals(2, evens.nextInt());
+        assertTrue(evens.hasNext());
+        assertEquals(4, evens.nextInt());
+        PrimitiveIterator.OfInt empty = PullStream.fromList(List.of()).iterator();
+        assertThrows(NoSuchElementException.class, empty::nextInt);
+
+        //the array holds whatever the source actually produces, even if that's not what it said it had
+        List<Integer> shrinking = new ArrayList<>(List.of(1, 2, 3, 4));
+        assertArrayEquals(new int[]{1, 2}, PullStream.fromList(changingOnFirstRead(shrinking,
+                () -> shrinking.subList(2, 4).clear())).toArray());
+        List<Integer> growing = new ArrayList<>(List.of(1, 2));
+        assertArrayEquals(new int[]{1, 2, 3, 4}, PullStream.fromList(changingOnFirstRead(growing,
+                () -> growing.addAll(List.of(3, 4)))).toArray());
+    }
+
+    @Test
+    void countDoesNotWrap() {
+        assertThrows(ArithmeticException.class, () -> PullStream.fromRange(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+        assertEquals(Integer.MAX_VALUE, PullStream.fromRange(0, Integer.MAX_VALUE).count());
+    }
+
+    /**
+     * @return A view of {@code list} that isn't random access, and that runs {@code change} when it's first read
+     */
+    private static List<Integer> changingOnFirstRead(List<Integer> list, Runnable change) {
+        return new AbstractList<>() {
+            boolean changed = false;
+
+            @Override
+            public Integer get(int index) {
+                Integer value = list.get(index);
+                if (!changed) {
+                    changed = true;
+                    change.run();
+                }
+                return value;
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        };
+    }
+
     @Test
     void fold() {
         PullStream counter = PullStream.generator(1, x -> x + 1);
@@ -114,6 +373,29 @@ class PullStreamTest {
         assertEquals(List.of(1, 2, 2, 3, 3, 3), counter.toList());
     }
 
+    @Test
+    void mapMulti() {
+        PullStream stream = PullStream.generator(1, x -> x + 1).limit(3).mapMulti((x, emit) -> {
+            for (int i = 0; i < x; i++) {
+                emit.accept(x);
+            }
+        });
+        assertEquals(List.of(1, 2, 2, 3, 3, 3), stream.toList());
+        //elements that expand to nothing are skipped over, even on an infinite stream
+        PullStream multiplesOf5 = PullStream.generator(1, x -> x + 1).mapMulti((x, emit) -> {
+            if (x % 5 == 0) {
+                emit.accept(x);
+                emit.accept(-x);
+            }
+        });
+        assertEquals(List.of(5, -5, 10, -10, 15), multiplesOf5.limit(5).toList());
+        assertEquals(2000, PullStream.fromRange(0, 2).mapMulti((x, emit) -> {
+            for (int i = 0; i < 1000; i++) {
+                emit.accept(i);
+            }
+        }).count());
+    }
+
     @Test
     void reduce() {
         PullStream empty = PullStream.fromList(List.of());
@@ -142,7 +424,227 @@ class PullStreamTest {
         PullStream count = PullStream.fromList(List.of(1, 2, 3, 4, 5));
         assertEquals(5, count.count());
         PullStream empty = PullStream.fromList(List.of());
-        assertEquals(0, count.count());
+        assertEquals(0, empty.count());
+    }
+
+    @Test
+    void characteristics() {
+        assertEquals(SIZED | SORTED | DISTINCT, PullStream.fromRange(0, 10).characteristics());
+        int[] mapped = {0};
+        PullStream doubled = PullStream.fromRange(0, 1_000_000).map(x -> {
+            mapped[0]++;
+            return x * 2;
+        });
+        assertEquals(SIZED, doubled.characteristics());
+        assertEquals(1_000_000, doubled.count());
+        assertEquals(0, mapped[0]);
+
+        //the size counts down as elements are pulled
+        PullStream list = PullStream.fromList(List.of(1, 2, 3, 4, 5)).map(x -> x + 1);
+        assertTrue(list.hasNext());
+        assertEquals(2, list.getNext());
+        assertArrayEquals(new int[]{3, 4, 5, 6}, list.toArray());
+
+        PullStream evens = PullStream.fromRange(0, 100).filter(x -> x % 2 == 0);
+        assertEquals(SORTED | DISTINCT, evens.characteristics());
+        assertSame(evens, evens.sorted());
+        assertSame(evens, evens.distinct());
+        assertEquals(List.of(0, 2, 4), evens.topK(3, IntComparator.NATURAL_ORDER).toList());
+
+        //infinite streams fail fast instead of running forever, until something bounds them
+        PullStream naturals = PullStream.generator(0, x -> x + 1);
+        assertEquals(INFINITE, naturals.characteristics());
+        assertThrows(IllegalStateException.class, naturals::count);
+        assertThrows(IllegalStateException.class, () -> naturals.map(x -> x * 2).toList());
+        assertThrows(IllegalStateException.class, naturals::sorted);
+        assertThrows(IllegalStateException.class, () -> naturals.filter(x -> x > 5).sum());
+        assertEquals(SIZED, naturals.limit(5).characteristics());
+        assertEquals(3, PullStream.generator(0, x -> x + 1).skip(10).limit(3).count());
+        assertEquals(5, PullStream.generator(0, x -> x + 1).takeWhile(x -> x < 5).count());
+        assertArrayEquals(new int[]{7, 8, 9}, PullStream.generator(7, x -> x + 1).limit(3).toArray());
+    }
+
+    @Test
+    void plan() {
+        PullStream range = PullStream.fromRange(0, 1000).map(x -> x * 3).limit(500).skip(100).skip(100);
+        assertEquals("fromRange[300] -> map", range.plan());
+        assertArrayEquals(IntStream.range(200, 500).map(x -> x * 3).toArray(), range.toArray());
+
+        //a list that has to be walked is skipped through as usual, and once it's being walked, a limit needs a stage
+        PullStream linked = PullStream.fromList(new LinkedList<>(List.of(1, 2, 3, 4, 5))).skip(1);
+        assertEquals("fromList[4] -> skip(1)", linked.plan());
+        linked = linked.limit(2);
+        assertEquals("fromList[4] -> limit(2)", linked.plan());
+        assertEquals(List.of(2, 3), linked.toList());
+
+        //a slice pushed into the source is built on a copy of it, so a stream that's already been handed out keeps
+        //everything it had
+        PullStream whole = PullStream.fromRange(0, 10).map(x -> -x);
+        PullStream sliced = whole.skip(2).limit(3);
+        assertEquals("fromRange[3] -> map", sliced.plan());
+        assertEquals("fromRange[10] -> map", whole.plan());
+        assertEquals(List.of(-2, -3, -4), sliced.toList());
+        assertEquals(10, whole.toList().size());
+        PullStream list = PullStream.fromList(List.of(1, 2, 3, 4));
+        assertEquals(List.of(3), list.skip(2).limit(1).toList());
+        assertEquals(List.of(1, 2, 3, 4), list.toList());
+
+        PullStream limits = PullStream.generator(0, x -> x + 1).filter(x -> x % 2 == 0).limit(10).limit(3);
+        assertEquals("generator -> filter -> limit(3)", limits.plan());
+        assertEquals(List.of(0, 2, 4), limits.toList());
+
+        PullStream resorted = PullStream.fromList(List.of(5, 3, 4, 1)).sorted(IntComparator.REVERSE_ORDER).sorted();
+        assertEquals("fromList[4] -> sorted", resorted.plan());
+        assertEquals(List.of(1, 3, 4, 5), resorted.toList());
+
+        //profiled pipelines run as they were written
+        PullStream profiled = PullStream.fromRange(0, 10).profiled().skip(2).limit(3);
+        assertEquals("fromRange[8] -> skip(2) -> limit(3)", profiled.plan());
+        assertEquals(List.of(2, 3, 4), profiled.toList());
+    }
+
+    @Test
+    void batchAndSingleElementMixed() {
+        PullStream stream = PullStream.fromRange(0, 10).filter(x -> x % 3 != 0).map(x -> x * 2);
+        assertTrue(stream.hasNext());
+        assertEquals(2, stream.getNext());
+        int[] buffer = new int[4];
+        assertEquals(4, stream.getNextBatch(buffer, 0, 4));
+        assertArrayEquals(new int[]{4, 8, 10, 14}, buffer);
+        assertTrue(stream.hasNext());
+        assertEquals(16, stream.getNext());
+        assertEquals(List.of(), stream.toList());
+    }
+
+    @Test
+    void batchedTerminalsOverLargeInput() {
+        assertEquals(3_000_000, PullStream.fromRange(0, 3_000_000).count());
+        assertEquals(1_000_000, PullStream.fromRange(0, 3_000_000).filter(x -> x % 3 == 0).count());
+        assertEquals(5000, PullStream.generator(0, x -> x + 1).skip(2000).limit(5000).count());
+        assertEquals(List.of(1, 2, 2, 3, 3, 3), PullStream.fromRange(1, 4)
+                .flatMap(x -> PullStream.generator(x, a -> a).limit(x)).toList());
+        assertEquals(999, PullStream.generator(0, x -> x + 1).takeWhile(x -> x < 1000).reduce(Math::max).orElse(-1));
+    }
+
+    @Test
+    void async() {
+        Set<String> producerThreads = Collections.synchronizedSet(new HashSet<>());
+        PullStream counter = PullStream.generator(0, x -> {
+            producerThreads.add(Thread.currentThread().getName());
+            return x + 1;
+        }).map(x -> x * 2).async(8);
+        assertTrue(producerThreads.isEmpty()); //nothing runs until something is pulled
+        assertEquals(List.of(0, 2, 4, 6, 8), counter.limit(5).toList());
+        assertFalse(producerThreads.contains(Thread.currentThread().getName()));
+
+        assertEquals(PullStream.fromRange(0, 100_000).filter(x -> x % 7 == 3).toList(),
+                PullStream.fromRange(0, 100_000).async(64).filter(x -> x % 7 == 3).toList());
+        assertEquals(List.of(), PullStream.fromList(List.of()).async(4).toList());
+
+        PullStream failing = PullStream.fromList(List.of(1, 2, 0, 4)).map(x -> 10 / x).async(1);
+        assertTrue(failing.hasNext());
+        assertEquals(10, failing.getNext());
+        assertTrue(failing.hasNext());
+        assertEquals(5, failing.getNext());
+        assertThrows(ArithmeticException.class, failing::hasNext);
+    }
+
+    @Test
+    void profiled() {
+        PullStream stream = PullStream.fromRange(0, 10_000).profiled()
+                .map(x -> x * 2).map(x -> x + 1).filter(x -> x % 3 == 0).skip(4).sorted().limit(10);
+        assertEquals(List.of(27, 33, 39, 45, 51, 57, 63, 69, 75, 81), stream.toList());
+        List<StageProfile> stages = stream.profile().stages();
+        //the two maps were fused into one stage
+        assertEquals(List.of("fromRange", "map", "filter", "skip", "sorted", "limit"),
+                stages.stream().map(StageProfile::name).toList());
+        assertEquals(10_000, stages.get(0).elementsOut());
+        assertTrue(Double.isNaN(stages.get(0).selectivity()));
+        assertEquals(10_000, stages.get(1).elementsOut());
+        assertEquals(3333, stages.get(2).elementsOut());
+        assertEquals(3333, stages.get(3).elementsIn()); //including what skip read up front
+        assertEquals(3329, stages.get(4).elementsIn());
+        assertEquals(3329, stages.get(4).peakBuffered());
+        assertEquals(10, stages.get(4).elementsOut());
+        assertEquals(10, stages.get(5).elementsOut());
+        assertTrue(stages.get(4).totalNanos() > 0);
+        for (StageProfile stage : stages) {
+            assertTrue(stage.selfNanos() <= stage.totalNanos());
+        }
+        String explain = stream.profile().explain();
+        assertTrue(explain.startsWith("limit  (in=10 out=10 selectivity=1.000 "), explain);
+        assertTrue(explain.contains("  ->  sorted  (in=3329 out=10 "), explain);
+        assertTrue(explain.contains("peak buffered=3329)"), explain);
+
+        //profiling an existing pipeline, read element by element
+        PullStream existing = PullStream.fromList(List.of(1, 2, 3, 4)).filter(x -> x % 2 == 0);
+        existing.profiled();
+        PrimitiveIterator.OfInt iterator = existing.iterator();
+        assertEquals(2, iterator.nextInt());
+        assertEquals(4, iterator.nextInt());
+        assertFalse(iterator.hasNext());
+        stages = existing.profile().stages();
+        assertEquals(4, stages.get(0).elementsOut());
+        assertEquals(2, stages.get(1).elementsOut());
+    }
+
+    @Test
+    void fromMappedFile(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("ints.bin");
+        ByteBuffer bytes = ByteBuffer.allocate(5000 * Integer.BYTES).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < 5000; i++) {
+            bytes.putInt(i * i);
+        }
+        Files.write(path, bytes.array());
+
+        PullStream stream = PullStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN);
+        //element by element, then in batches
+        assertTrue(stream.hasNext());
+        assertEquals(0, stream.getNext());
+        assertEquals(1, stream.getNext());
+        assertEquals(PullStream.fromRange(2, 5000).map(x -> x * x).toList(), stream.toList());
+        assertFalse(stream.hasNext());
+
+        assertEquals(List.of(0, 1 << 24), PullStream.fromMappedFile(path, ByteOrder.LITTLE_ENDIAN).limit(2).toList());
+        assertEquals(0, PullStream.fromMappedFile(Files.createFile(dir.resolve("empty.bin")), ByteOrder.BIG_ENDIAN)
+                .count());
+
+        //the file is let go of by close(), or as soon as a pushed-down limit has been read, even mid-stream
+        assumeTrue(Files.isDirectory(Path.of("/proc/self/fd")));
+        PullStream dropped = PullStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN).map(x -> -x);
+        assertEquals(0, dropped.getNext());
+        assertEquals(1, openHandles(path));
+        dropped.close();
+        assertEquals(0, openHandles(path));
+        PullStream limited = PullStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN).limit(Stage.BATCH_SIZE);
+        assertTrue(limited.hasNext());
+        assertEquals(0, openHandles(path));
+        assertEquals(Stage.BATCH_SIZE, limited.count());
+    }
+
+    private static long openHandles(Path path) throws IOException {
+        Path file = path.toRealPath();
+        try (Stream<Path> fds = Files.list(Path.of("/proc/self/fd"))) {
+            return fds.filter(fd -> {
+                try {
+                    return Files.readSymbolicLink(fd).equals(file);
+                } catch (IOException e) {
+                    return false; //e.g. the listing's own handle, already closed
+                }
+            }).count();
+        }
+    }
+
+    @Test
+    void writeTo(@TempDir Path dir) {
+        Path path = dir.resolve("out.bin");
+        assertEquals(50_000, PullStream.generator(1, x -> x * 31 + 7).limit(50_000).writeTo(path, ByteOrder.BIG_ENDIAN));
+        assertEquals(PullStream.generator(1, x -> x * 31 + 7).limit(50_000).toList(),
+                PullStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN).toList());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(1, PullStream.fromList(List.of(258)).writeTo(Channels.newChannel(bytes), ByteOrder.LITTLE_ENDIAN));
+        assertArrayEquals(new byte[]{2, 1, 0, 0}, bytes.toByteArray());
     }
 
     @Test
@@ -162,4 +664,10 @@ class PullStreamTest {
 //        }).takeWhile(x -> x < Integer.MAX_VALUE / 2).
 //                forEach(System.out::println);
     }
-}
\ No newline at end of file
+
+    private static long sortRunFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("hstream-sort-")).count();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.forsythe.pushstream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublePushStreamTest {
+    @Test
+    void stages() {
+        DoublePushStream stream = DoublePushStream.of(0.5, -1.5, 2.5, Double.NaN, -0.0, 0.0)
+                .filter(x -> x != 2.5)
+                .map(x -> x * 2);
+        assertArrayEquals(new double[]{-3.0, -0.0, 0.0, 1.0, Double.NaN}, stream.sorted().toArray());
+        assertArrayEquals(new double[]{1.0, -3.0}, stream.limit(2).toArray());
+        assertArrayEquals(new double[]{-0.0, 0.0}, stream.skip(3).toArray());
+        assertEquals(5, stream.count());
+        assertEquals(-3.0, stream.filter(x -> !Double.isNaN(x)).min().orElse(0));
+        assertEquals(1.0, stream.findFirst().orElse(0));
+        assertTrue(stream.anyMatch(Double::isNaN));
+        assertFalse(stream.allMatch(x -> x > 0));
+        assertEquals(6.0, DoublePushStream.of(1, 2, 3).fold(0, Double::sum));
+        assertFalse(DoublePushStream.of().fold(Double::sum).isPresent());
+    }
+
+    @Test
+    void sumAndAverage() {
+        DoublePushStream tenths = PushStream.fromRange(0, 10_000).mapToDouble(x -> 0.1);
+        assertEquals(1000.0, tenths.sum());
+        assertEquals(0.1, tenths.average().orElse(0));
+        assertEquals(1.0, DoublePushStream.of(1e100, 1.0, -1e100).sum());
+        assertEquals(Double.POSITIVE_INFINITY, DoublePushStream.of(1.0, Double.POSITIVE_INFINITY).sum());
+        assertFalse(DoublePushStream.of().average().isPresent());
+        assertEquals(2.5, PushStream.of(1, 2, 3, 4).asDoubleStream().average().orElse(0));
+    }
+}
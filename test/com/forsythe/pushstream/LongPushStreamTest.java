@@ -0,0 +1,84 @@
+package com.forsythe.pushstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongPushStreamTest {
+    @Test
+    void stages() {
+        long big = 1L << 40;
+        LongPushStream stream = LongPushStream.fromRange(big, big + 10_000)
+                .map(x -> x * 3)
+                .filter(x -> x % 2 == 0)
+                .skip(10)
+                .limit(5);
+        assertArrayEquals(new long[]{3 * big + 60, 3 * big + 66, 3 * big + 72, 3 * big + 78, 3 * big + 84},
+                stream.toArray());
+        //every run starts from scratch
+        assertEquals(5, stream.count());
+        assertEquals(3 * big + 60, stream.findFirst().orElse(-1));
+
+        assertArrayEquals(new long[]{-5, 1, 3, Long.MAX_VALUE},
+                LongPushStream.of(3, Long.MAX_VALUE, -5, 1).sorted().toArray());
+        assertEquals(Long.MAX_VALUE, LongPushStream.of(3, Long.MAX_VALUE, -5, 1).max().orElse(0));
+        assertEquals(-5, LongPushStream.of(3, Long.MAX_VALUE, -5, 1).min().orElse(0));
+        assertEquals(6, LongPushStream.of(1, 2, 3).fold(0, Long::sum));
+        assertFalse(LongPushStream.of().fold(Long::sum).isPresent());
+        assertTrue(LongPushStream.fromRange(0, Long.MAX_VALUE).anyMatch(x -> x == 1000));
+        assertFalse(LongPushStream.fromRange(0, Long.MAX_VALUE).allMatch(x -> x < 1000));
+        assertTrue(LongPushStream.of(2, 4).noneMatch(x -> x % 2 != 0));
+        assertThrows(IllegalArgumentException.class, () -> LongPushStream.of(1).limit(-1));
+
+        List<Long> peeked = new ArrayList<>();
+        List<Long> seen = new ArrayList<>();
+        LongPushStream.of(1, 2, 3).peek(peeked::add).forEachLong(seen::add);
+        assertEquals(List.of(1L, 2L, 3L), peeked);
+        assertEquals(List.of(1L, 2L, 3L), seen);
+        long total = 0;
+        for (long x : LongPushStream.of(4, 5)) {
+            total += x;
+        }
+        assertEquals(9, total);
+        List<Long> boxed = new ArrayList<>();
+        LongPushStream.of(4, 5).forEach(x -> boxed.add(x));
+        assertEquals(List.of(4L, 5L), boxed);
+    }
+
+    @Test
+    void wideAndNegativeRanges() {
+        //wider than Long.MAX_VALUE
+        assertArrayEquals(new long[]{Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MIN_VALUE + 2},
+                LongPushStream.fromRange(Long.MIN_VALUE, Long.MAX_VALUE).limit(3).toArray());
+        assertArrayEquals(new long[]{-1, 0, 1}, LongPushStream.fromRange(-1, Long.MAX_VALUE).limit(3).toArray());
+        assertArrayEquals(new long[]{Long.MAX_VALUE - 2, Long.MAX_VALUE - 1},
+                LongPushStream.fromRange(Long.MAX_VALUE - 2, Long.MAX_VALUE).toArray());
+        assertArrayEquals(new long[]{-5, -4, -3}, LongPushStream.fromRange(-5, -2).toArray());
+        assertArrayEquals(new long[0], LongPushStream.fromRange(Long.MAX_VALUE, Long.MIN_VALUE).toArray());
+    }
+
+    @Test
+    void sumAndAverage() {
+        assertEquals(49_995_000L * 3, LongPushStream.fromRange(0, 10_000).map(x -> x * 3).sum());
+        assertThrows(ArithmeticException.class, () -> LongPushStream.of(Long.MAX_VALUE, 1).sum());
+        //the total only has to fit at the end
+        assertEquals(Long.MAX_VALUE - 1, LongPushStream.of(Long.MAX_VALUE, 1, -2).sum());
+        assertEquals(Long.MAX_VALUE, LongPushStream.of(Long.MAX_VALUE, Long.MAX_VALUE).average().orElse(0));
+        assertFalse(LongPushStream.of().average().isPresent());
+    }
+
+    @Test
+    void conversions() {
+        assertEquals(4L * Integer.MAX_VALUE,
+                PushStream.of(Integer.MAX_VALUE, Integer.MAX_VALUE).asLongStream().map(x -> x * 2).sum());
+        LongPushStream squares = PushStream.fromRange(0, 5000).mapToLong(x -> (long) x * x);
+        assertEquals(4999L * 4999, squares.max().orElse(0));
+        assertEquals(3, PushStream.fromRange(0, Integer.MAX_VALUE).asLongStream().limit(3).count());
+        assertArrayEquals(new double[]{0.5, 1.0, 1.5},
+                LongPushStream.of(1, 2, 3).mapToDouble(x -> x / 2.0).toArray());
+        assertEquals(3.0, LongPushStream.of(1, 2).asDoubleStream().sum());
+    }
+}
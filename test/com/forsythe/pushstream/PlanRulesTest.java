@@ -0,0 +1,82 @@
+package com.forsythe.pushstream;
+
+import com.forsythe.util.IntComparator;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlanRulesTest {
+
+    private static Plan plan(PushStream stream) {
+        return Plan.of((Stage) stream);
+    }
+
+    @Test
+    void mergeLimitsAndSkips() {
+        PushStream stream = PushStream.fromList(new LinkedList<>(List.of(1, 2, 3)));
+        Plan limits = plan(stream.filter(x -> x > 0).limit(10).limit(5));
+        assertEquals("fromList[3] -> filter -> limit(5)", PlanRules.MERGE_LIMITS_AND_SKIPS.apply(limits).toString());
+
+        Plan skips = plan(stream.skip(2).skip(3));
+        assertEquals("fromList[3] -> skip(5)", PlanRules.MERGE_LIMITS_AND_SKIPS.apply(skips).toString());
+
+        //a limit before a skip is swapped around, so the skip can be merged with the one before it next time
+        Plan limitThenSkip = plan(stream.skip(1).limit(10).skip(4));
+        Plan swapped = PlanRules.MERGE_LIMITS_AND_SKIPS.apply(limitThenSkip);
+        assertEquals("fromList[3] -> skip(1) -> skip(4) -> limit(6)", swapped.toString());
+        assertEquals("fromList[3] -> skip(5) -> limit(6)", PlanRules.MERGE_LIMITS_AND_SKIPS.apply(swapped).toString());
+
+        Plan unchanged = plan(stream.limit(1).map(x -> x).limit(1));
+        assertSame(unchanged, PlanRules.MERGE_LIMITS_AND_SKIPS.apply(unchanged));
+    }
+
+    @Test
+    void optimizedOnce() {
+        Stage stream = (Stage) PushStream.fromRange(0, 100).map(x -> x + 1).limit(50).limit(10);
+        Plan optimized = Stage.plan(stream);
+        assertSame(optimized, Stage.plan(stream));
+        assertEquals(List.of(1, 2, 3), stream.limit(3).toList());
+        assertEquals(10, stream.toList().size());
+        assertSame(optimized, Stage.plan(stream));
+        //profiled runs show the stages as written, so they aren't cached
+        assertEquals("fromRange[100] -> map -> limit(50) -> limit(10)", stream.profiled().plan());
+    }
+
+    @Test
+    void pushDownSlices() {
+        Plan skip = plan(PushStream.fromRange(0, 100).map(x -> x * 2).skip(90).sorted());
+        assertEquals("fromRange[10] -> map -> sorted", PlanRules.PUSH_DOWN_SLICES.apply(skip).toString());
+
+        Plan limit = plan(PushStream.fromList(List.of(1, 2, 3, 4)).limit(2).map(x -> x + 1));
+        assertEquals("fromList[2] -> map", PlanRules.PUSH_DOWN_SLICES.apply(limit).toString());
+
+        //a filter changes which elements are left, so the skip has to stay where it is
+        Plan filtered = plan(PushStream.fromRange(0, 100).filter(x -> x > 5).skip(10));
+        assertSame(filtered, PlanRules.PUSH_DOWN_SLICES.apply(filtered));
+        //and so does a source that can't be split up
+        Plan unsplittable = plan(PushStream.fromList(new LinkedList<>(List.of(1, 2, 3))).skip(1));
+        assertSame(unsplittable, PlanRules.PUSH_DOWN_SLICES.apply(unsplittable));
+    }
+
+    @Test
+    void removeRedundantSorts() {
+        PushStream source = PushStream.fromList(List.of(3, 1, 2));
+        Plan sorts = plan(source.sorted(IntComparator.REVERSE_ORDER).map(x -> x + 1).filter(x -> x > 1).sorted());
+        assertEquals("fromList[3] -> map -> filter -> sorted", PlanRules.REMOVE_REDUNDANT_SORTS.apply(sorts).toString());
+
+        //ties under a custom order come out in the order they went in, so the first sort still matters
+        Plan custom = plan(source.sorted().sorted((a, b) -> Integer.compare(a % 2, b % 2)));
+        assertSame(custom, PlanRules.REMOVE_REDUNDANT_SORTS.apply(custom));
+        Plan limited = plan(source.sorted(IntComparator.REVERSE_ORDER).limit(2).sorted());
+        assertSame(limited, PlanRules.REMOVE_REDUNDANT_SORTS.apply(limited));
+    }
+
+    @Test
+    void optimize() {
+        Plan plan = plan(PushStream.fromRange(0, 1000).map(x -> x * 3).limit(500).skip(100).skip(100));
+        assertEquals("fromRange[300] -> map", PlanRules.optimize(plan).toString());
+    }
+}
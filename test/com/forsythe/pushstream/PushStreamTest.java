@@ -1,13 +1,40 @@
 package com.forsythe.pushstream;
 
+import com.forsythe.util.IntComparator;
+import com.forsythe.util.IntIntMap;
+import com.forsythe.util.IntMapMultiConsumer;
+import com.forsythe.util.StageProfile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntBiFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import static com.forsythe.util.Characteristics.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 class PushStreamTest {
@@ -24,6 +51,41 @@ class PushStreamTest {
         assertEquals(List.of(1, 1, 2, 1, 2, 3, 1, 2, 3, 4), stream.flatMap(x -> PushStream.fromRange(1, x + 1)).toList());
     }
 
+    @Test
+    void mapMulti() {
+        PushStream stream = PushStream.fromList(List.of(1, 2, 3, 4));
+        assertEquals(List.of(1, 1, 2, 1, 2, 3, 1, 2, 3, 4), stream.mapMulti((x, emit) -> {
+            for (int i = 1; i <= x; i++) {
+                emit.accept(i);
+            }
+        }).toList());
+        //each element expands past a whole block
+        PushStream expanded = PushStream.fromRange(0, 3000).mapMulti((x, emit) -> {
+            for (int i = 0; i < 2000; i++) {
+                emit.accept(x);
+            }
+        });
+        assertEquals(6_000_000, expanded.count());
+        assertEquals(List.of(0, 0, 0), expanded.limit(3).toList());
+        //a huge expansion of one element stops reaching downstream once the limit is met, element by element or
+        //a block at a time
+        AtomicInteger passed = new AtomicInteger();
+        IntMapMultiConsumer huge = (x, emit) -> {
+            for (int i = 0; i < 1_000_000; i++) {
+                emit.accept(i);
+            }
+        };
+        PushStream perElement = PushStream.of(1, 2).flatMap(List::of).mapMulti(huge);
+        assertEquals(List.of(0, 1, 2, 3, 4), perElement.peek(x -> passed.incrementAndGet()).limit(5).toList());
+        assertEquals(5, passed.get());
+        passed.set(0);
+        PushStream blocks = PushStream.fromRange(0, 2).mapMulti(huge);
+        assertEquals(List.of(0, 1, 2, 3, 4), blocks.peek(x -> passed.incrementAndGet()).limit(5).toList());
+        assertTrue(passed.get() <= Stage.BATCH_SIZE, passed.get() + " passed the limit");
+        assertEquals(List.of(), PushStream.of(1, 2).mapMulti((x, emit) -> {
+        }).toList());
+    }
+
     @Test
     void filter() {
         PushStream stream = PushStream.fromRange(0, 6);
@@ -31,6 +93,78 @@ class PushStreamTest {
         assertEquals(List.of(), stream.filter(x -> x >= 6).toList());
     }
 
+    @Test
+    void fusedMapFilterChains() {
+        PushStream base = PushStream.fromRange(0, 5000).map(x -> x + 1).map(x -> x * 3);
+        PushStream chain = base.filter(x -> x % 2 == 0).filter(x -> x % 5 != 0).map(x -> x / 2).limit(1000).map(x -> -x);
+        List<Integer> expected = new ArrayList<>();
+        for (int x = 0; x < 5000 && expected.size() < 1000; x++) {
+            int y = (x + 1) * 3;
+            if (y % 2 == 0 && y % 5 != 0)
+                expected.add(-(y / 2));
+        }
+        assertEquals(expected, chain.toList());
+        //branching off a stage inside a fused run still sees the original pipeline
+        assertEquals(List.of(3, 6, 9), base.limit(3).toList());
+        assertEquals(3 * 5000 * 5001 / 2, base.sum());
+        assertEquals(List.of(-1, -4), PushStream.of(1, 2).map(x -> x * x).map(x -> -x).toList());
+    }
+
+    @Test
+    void profiled() {
+        PushStream stream = PushStream.fromRange(0, 10_000).profiled()
+                .map(x -> x * 2).filter(x -> x % 3 == 0).sorted(IntComparator.REVERSE_ORDER).limit(10);
+        assertEquals(10, stream.count());
+        List<StageProfile> stages = stream.profile().stages();
+        assertEquals(List.of("fromRange", "map", "filter", "sorted", "limit"),
+                stages.stream().map(StageProfile::name).toList());
+        assertEquals(10_000, stages.get(0).elementsOut());
+        assertTrue(Double.isNaN(stages.get(0).selectivity()));
+        assertEquals(10_000, stages.get(2).elementsIn());
+        assertEquals(3334, stages.get(2).elementsOut());
+        assertEquals(3334, stages.get(3).peakBuffered());
+        assertEquals(0, stages.get(2).peakBuffered());
+        //sorted hands its output over a block at a time, and the limit stops it after the first one
+        assertEquals(Stage.BATCH_SIZE, stages.get(3).elementsOut());
+        assertEquals(10, stages.get(4).elementsOut());
+        assertEquals(10.0 / Stage.BATCH_SIZE, stages.get(4).selectivity());
+        assertTrue(stages.get(3).totalNanos() > 0);
+        for (StageProfile stage : stages) {
+            assertTrue(stage.selfNanos() <= stage.totalNanos());
+        }
+        String explain = stream.profile().explain();
+        assertTrue(explain.startsWith("limit  (in=1024 out=10 "), explain);
+        assertTrue(explain.contains("        ->  filter  (in=10000 out=3334 selectivity=0.333"), explain);
+
+        //metrics add up over every run, and profiling again starts a copy from nothing
+        PushStream reused = PushStream.of(1, 2, 3).profiled().map(x -> x + 1);
+        assertEquals(9, reused.sum());
+        assertEquals(3, reused.count());
+        assertEquals(6, reused.profile().stages().get(1).elementsOut());
+        PushStream reset = reused.profiled();
+        assertEquals(0, reset.profile().stages().get(1).elementsOut());
+        assertEquals(6, reused.profile().stages().get(1).elementsOut());
+
+        //profiling a branch leaves the stream it came from alone
+        PushStream base = PushStream.fromRange(0, 100).map(x -> x + 1);
+        PushStream branch = base.filter(x -> x % 2 == 0).profiled();
+        assertEquals(50, branch.count());
+        assertEquals(100, base.count());
+        assertEquals(50, branch.profile().stages().get(2).elementsOut());
+        assertEquals(0, base.profile().stages().get(1).elementsOut());
+        assertEquals("fromRange[100] -> map", base.plan());
+
+        PushStream parallel = PushStream.fromRange(0, 100_000).parallel().profiled()
+                .filter(x -> x % 2 == 0).map(x -> x + 1).sorted().skip(5);
+        assertEquals(49_995, parallel.count());
+        stages = parallel.profile().stages();
+        assertEquals(100_000, stages.get(1).elementsIn());
+        assertEquals(50_000, stages.get(2).elementsOut());
+        assertEquals(50_000, stages.get(3).elementsIn());
+        assertEquals(50_000, stages.get(3).peakBuffered());
+        assertEquals(49_995, stages.get(4).elementsOut());
+    }
+
     @Test
     void sorted() {
         PushStream stream = PushStream.fromRange(1, 10);
@@ -38,11 +172,495 @@ class PushStreamTest {
         assertEquals(List.of(-810, -490, -250, -90, -10, 40, 160, 360, 640), output);
     }
 
+    @Test
+    void sortedWithComparators() {
+        Random random = new Random(42);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 300_000; i++) {
+            input.add(random.nextInt());
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(Comparator.naturalOrder());
+        assertEquals(expected, PushStream.fromList(input).sorted().toList());
+
+        expected.sort(Comparator.reverseOrder());
+        assertEquals(expected, PushStream.fromList(input).sorted(IntComparator.REVERSE_ORDER).toList());
+
+        Comparator<Integer> byLastDigit = Comparator.comparingInt(x -> Math.abs(x % 10));
+        expected = new ArrayList<>(input);
+        expected.sort(byLastDigit); //stable, so ties keep their input order
+        assertEquals(expected, PushStream.fromList(input).sorted(byLastDigit).toList());
+        assertEquals(expected, PushStream.fromList(input).sorted((a, b) -> Math.abs(a % 10) - Math.abs(b % 10)).toList());
+    }
+
     @Test
     void limitAndSkip() {
         PushStream firstHalf = PushStream.fromRange(1, 10).limit(5);
-        PushStream secondHalf = PushStream.fromRange(1, 10).skip(5); //TODO: fix, since limit/skip are use-once, make streams use-once as well
-        assertEquals(PushStream.fromRange(1, 10).toList(), PushStream.concat(firstHalf, secondHalf).toList());
+        PushStream secondHalf = PushStream.fromRange(1, 10).skip(5);
+        PushStream whole = PushStream.concat(firstHalf, secondHalf);
+        assertEquals(PushStream.fromRange(1, 10).toList(), whole.toList());
+        //every run starts from scratch, so the limit and skip don't carry over
+        assertEquals(PushStream.fromRange(1, 10).toList(), whole.toList());
+        assertEquals(List.of(1, 2, 3, 4, 5), firstHalf.toList());
+        assertEquals(4, secondHalf.count());
+    }
+
+    @Test
+    void compiled() throws Exception {
+        PushStream plan = PushStream.fromRange(0, 50_000)
+                .map(x -> x * 3)
+                .filter(x -> x % 2 == 0)
+                .skip(10)
+                .mapMulti((x, sink) -> {
+                    sink.accept(x);
+                    sink.accept(-x);
+                })
+                .limit(20_000)
+                .compile();
+        List<Integer> expected = plan.toList();
+        assertEquals(20_000, expected.size());
+        assertEquals(60, expected.get(0));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Integer>>> runs = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                runs.add(pool.submit(() -> plan.toList()));
+            }
+            for (Future<List<Integer>> run : runs) {
+                assertEquals(expected, run.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        //building on a snapshot leaves it as it was
+        PushStream sorted = plan.sorted().limit(3);
+        assertEquals(List.of(-60_054, -60_048, -60_042), sorted.toList());
+        PushStream parallel = plan.parallel();
+        assertNotSame(plan, parallel);
+        assertEquals(expected, parallel.toList());
+        assertEquals(expected, plan.toList());
+        assertSame(plan, plan.compile());
+
+        PushStream profiled = plan.profiled();
+        profiled.count();
+        assertEquals(20_000, profiled.profile().stages().get(5).elementsOut());
+        assertEquals(0, plan.profile().stages().get(5).elementsOut());
+
+        assertEquals(List.of(1, -1, 2, -2), PushStream.of(1, 2)
+                .flatMap(x -> PushStream.of(x, -x).compile())
+                .toList());
+        assertThrows(UnsupportedOperationException.class, () -> plan.accept(1));
+    }
+
+    @Test
+    void limitStopsSource() {
+        int[] pulled = new int[]{0};
+        PushStream stream = PushStream.fromRange(0, Integer.MAX_VALUE).map(x -> {
+            pulled[0]++;
+            return x;
+        });
+        assertEquals(List.of(0, 1, 2, 3, 4), stream.limit(5).toList());
+        assertEquals(5, pulled[0]);
+        //likewise when the map is fused with the one after it
+        pulled[0] = 0;
+        assertEquals(List.of(0, 2, 4), stream.map(x -> 2 * x).limit(3).toList());
+        assertEquals(3, pulled[0]);
+    }
+
+    @Test
+    void shortCircuitTerminals() {
+        assertTrue(PushStream.fromRange(0, Integer.MAX_VALUE).anyMatch(x -> x == 1000));
+        assertFalse(PushStream.fromRange(0, Integer.MAX_VALUE).allMatch(x -> x < 1000));
+        assertTrue(PushStream.of(2, 4, 6).allMatch(x -> x % 2 == 0));
+        assertTrue(PushStream.of(2, 4, 6).noneMatch(x -> x % 2 != 0));
+        assertFalse(PushStream.of().anyMatch(x -> true));
+        assertEquals(7, PushStream.fromRange(0, Integer.MAX_VALUE).filter(x -> x > 6).findFirst().orElse(-1));
+        assertFalse(PushStream.of().findFirst().isPresent());
+        assertEquals(List.of(1, 1, 2), PushStream.fromRange(1, Integer.MAX_VALUE)
+                .flatMap(x -> PushStream.fromRange(1, x + 1)).limit(3).toList());
+    }
+
+    @Test
+    void batchedPipeline() {
+        int[] nums = PushStream.fromRange(0, 5000).toList().stream().mapToInt(x -> x).toArray();
+        PushStream stream = PushStream.of(nums).map(x -> x * 2).skip(10).filter(x -> x % 3 == 0).limit(1500);
+        assertEquals(1500, stream.count());
+        assertEquals(List.of(24, 30, 36), PushStream.of(nums).map(x -> x * 2).skip(10).filter(x -> x % 3 == 0).limit(3).toList());
+        assertEquals(3, nums[3]); //sources' arrays are never written to
+        assertEquals(4999L * 5000 / 2, PushStream.fromList(PushStream.fromRange(0, 5000).toList()).sum());
+    }
+
+    @Test
+    void parallel() {
+        int n = 2_000_000;
+        assertEquals(PushStream.fromRange(0, n).map(x -> x * 3).filter(x -> x % 7 != 0).sum(),
+                PushStream.fromRange(0, n).parallel().map(x -> x * 3).filter(x -> x % 7 != 0).sum());
+        assertEquals(n, PushStream.fromRange(0, n).parallel().mapMulti((x, emit) -> emit.accept(x)).count());
+        assertEquals(PushStream.fromRange(0, n).filter(x -> x % 3 == 0).toList(),
+                PushStream.fromRange(0, n).parallel().filter(x -> x % 3 == 0).toList());
+        assertEquals(n - 1, PushStream.fromRange(0, n).parallel().max().orElse(-1));
+        assertEquals(0, PushStream.fromRange(0, n).parallel().min().orElse(-1));
+        assertEquals(n - 1, PushStream.fromRange(0, n).parallel().fold(-1, Math::max));
+        //switching a branch to parallel leaves the stream it came from on the calling thread
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        PushStream base = PushStream.fromRange(0, n).peek(x -> threads.add(Thread.currentThread()));
+        PushStream branch = base.map(x -> x + 1).parallel();
+        assertEquals(PushStream.fromRange(1, n + 1).sum(), branch.sum());
+        threads.clear();
+        assertEquals(PushStream.fromRange(0, n).sum(), base.sum());
+        assertEquals(Set.of(Thread.currentThread()), threads);
+        //a fold that isn't associative, with an identity that isn't one, still sees every element in order
+        ToIntBiFunction<Integer, Integer> digits = (a, b) -> a * 10 + b % 10;
+        PushStream mapped = PushStream.fromRange(0, n).map(x -> x * 7);
+        assertEquals(mapped.fold(1, digits), mapped.parallel().fold(1, digits));
+        assertEquals((int) mapped.sum(), mapped.parallel().fold(0, (a, b) -> a + b, Integer::sum));
+        assertTrue(PushStream.fromRange(0, n).parallel().anyMatch(x -> x == n - 1));
+        assertEquals(n / 2 + 1, PushStream.fromRange(0, n).parallel().filter(x -> x > n / 2).findFirst().orElse(-1));
+
+        int[] nums = PushStream.fromRange(0, n).map(x -> (x * 7919) % 1000).toArray();
+        List<Integer> boxed = PushStream.of(nums).toList();
+        assertEquals(PushStream.of(nums).sorted().limit(100).toList(), PushStream.of(nums).parallel().sorted().limit(100).toList());
+        assertEquals(PushStream.fromList(boxed).map(x -> -x).skip(12345).limit(54321).toList(),
+                PushStream.fromList(boxed).parallel().map(x -> -x).skip(12345).limit(54321).toList());
+        assertEquals(List.of(100_000, 100_001), PushStream.fromRange(0, Integer.MAX_VALUE).parallel().filter(x -> x >= 100_000).limit(2).toList());
+    }
+
+    @Test
+    void parallelShortCircuits() {
+        int n = 20_000_000;
+        AtomicLong mapped = new AtomicLong();
+        PushStream stream = PushStream.fromRange(0, n).parallel().map(x -> {
+            mapped.incrementAndGet();
+            return x;
+        });
+        //once a slice has the answer, the slices still running stop and the rest never start
+        assertTrue(stream.anyMatch(x -> x == 1000));
+        assertTrue(mapped.get() < n / 4, String.valueOf(mapped.get()));
+        mapped.set(0);
+        assertFalse(stream.allMatch(x -> x < 1000));
+        assertTrue(mapped.get() < n / 4, String.valueOf(mapped.get()));
+        mapped.set(0);
+        assertEquals(0, stream.findFirst().orElse(-1));
+        assertTrue(mapped.get() < n / 4, String.valueOf(mapped.get()));
+        //the first element is still the first in order, even if a later slice finds one sooner
+        assertEquals(n - 10, stream.filter(x -> x >= n - 10).findFirst().orElse(-1));
+    }
+
+    @Test
+    void sortedWithinMemoryBudget() {
+        Random random = new Random(3);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            input.add(random.nextInt());
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        Collections.sort(expected, Collections.reverseOrder());
+        PushStream stream = PushStream.fromList(input).sorted(IntComparator.REVERSE_ORDER, 16 * 1024).profiled();
+        assertEquals(expected, stream.toList());
+        assertTrue(stream.profile().stages().get(1).peakBuffered() <= 2048);
+        //reusable, and stops merging once the limit has what it needs
+        assertEquals(expected.subList(0, 3), stream.limit(3).toList());
+        assertEquals(List.of(), PushStream.of().sorted(IntComparator.NATURAL_ORDER, 1).toList());
+    }
+
+    @Test
+    void budgetedSortKeepsItsBudgetUnderALimit() {
+        //a heap holding millions of elements would blow well past the budget, so the sort has to spill as usual
+        PushStream sorted = PushStream.fromRange(0, 20_000_000).map(x -> -x).sorted(IntComparator.NATURAL_ORDER, 8 << 20);
+        assertFalse(Stage.replaceableByTopK((Stage) sorted, (Stage) sorted.limit(20_000_000)));
+        assertTrue(Stage.replaceableByTopK((Stage) sorted, (Stage) sorted.limit(10)));
+
+        long expected = 0;
+        for (int i = 0; i < 150_000; i++) {
+            expected -= 199_999 - i;
+        }
+        assertEquals(expected, PushStream.fromRange(0, 200_000).map(x -> -x)
+                .sorted(IntComparator.NATURAL_ORDER, 64 * 1024).limit(150_000).sum());
+    }
+
+    @Test
+    void failedBudgetedSortDeletesItsRuns() throws IOException {
+        long before = sortRunFiles();
+        PushStream stream = PushStream.fromRange(0, 100_000).map(x -> {
+            if (x == 90_000)
+                throw new IllegalStateException("boom");
+            return -x;
+        }).sorted(IntComparator.NATURAL_ORDER, 1);
+        assertThrows(IllegalStateException.class, stream::toList);
+        assertEquals(before, sortRunFiles());
+    }
+
+    @Test
+    void topK() {
+        Random random = new Random(17);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            input.add(random.nextInt());
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(Collections.reverseOrder());
+        int[] comparisons = {0};
+        IntComparator descending = (a, b) -> {
+            comparisons[0]++;
+            return Integer.compare(b, a);
+        };
+
+        assertEquals(expected.subList(0, 100), PushStream.fromList(input).topK(100, descending).toList());
+        //sorted then limit only keeps the first few, instead of sorting everything
+        comparisons[0] = 0;
+        PushStream leaderboard = PushStream.fromList(input).sorted(descending).limit(10);
+        assertEquals(expected.subList(0, 10), leaderboard.toList());
+        assertTrue(comparisons[0] < 2 * input.size(), String.valueOf(comparisons[0]));
+        assertEquals(expected.subList(0, 10), leaderboard.toList()); //and can still be reused
+        assertEquals(expected.subList(0, 10), PushStream.fromList(input).parallel().sorted(descending).limit(10).toList());
+
+        assertEquals(List.of(1, 2), PushStream.of(3, 1, 2).sorted().limit(2).toList());
+        assertEquals(List.of(), PushStream.of(3, 1, 2).sorted().limit(0).toList());
+        assertEquals(List.of(1, 2, 3), PushStream.of(3, 1, 2).topK(10, IntComparator.NATURAL_ORDER).toList());
+        assertThrows(IllegalArgumentException.class, () -> PushStream.of(1).topK(-1, IntComparator.NATURAL_ORDER));
+    }
+
+    @Test
+    void distinct() {
+        assertEquals(List.of(3, 1, 0, 2), PushStream.of(3, 1, 3, 0, 1, 2, 0).distinct().toList());
+        assertEquals(List.of(0, 1, 2), PushStream.fromRange(0, 100_000).map(x -> x % 3).distinct(true).toList());
+        assertEquals(50_000, PushStream.fromRange(0, 100_000).map(x -> x / 2).parallel().distinct().count());
+
+        //straight after a sort, only the last element is kept
+        PushStream sorted = PushStream.fromRange(0, 100_000).map(x -> x % 1000).sorted().distinct().profiled();
+        assertEquals(1000, sorted.count());
+        StageProfile distinct = sorted.profile().stages().get(3);
+        assertEquals("distinct", distinct.name());
+        assertEquals(0, distinct.peakBuffered());
+        assertEquals(List.of(2, 1), PushStream.of(1, 2, 1, 2).sorted(IntComparator.REVERSE_ORDER).distinct().toList());
+
+        PushStream hashed = PushStream.fromRange(0, 100_000).map(x -> x % 1000).distinct().profiled();
+        assertEquals(1000, hashed.count());
+        assertEquals(1000, hashed.profile().stages().get(2).peakBuffered());
+    }
+
+    @Test
+    void groupBy() {
+        IntIntMap histogram = PushStream.fromRange(0, 100_000).countBy(x -> x % 1000);
+        assertEquals(1000, histogram.size());
+        assertEquals(100, histogram.get(999));
+        IntIntMap dense = PushStream.fromRange(0, 100_000).parallel().countBy(x -> x % 1000, 0, 1000);
+        assertEquals(1000, dense.size());
+        assertEquals(100, dense.get(0));
+        assertThrows(IllegalArgumentException.class, () -> PushStream.of(1000).countBy(x -> x, 0, 1000));
+
+        //each parallel slice folds into its own map, then they're merged
+        IntIntMap sums = PushStream.fromRange(0, 100_000).parallel().groupingFold(x -> x % 3, 0, Integer::sum);
+        assertArrayEquals(new int[]{0, 1, 2}, sums.keys());
+        long total = (long) sums.get(0) + sums.get(1) + sums.get(2);
+        assertEquals(PushStream.fromRange(0, 100_000).sum(), total);
+        IntIntMap firsts = PushStream.fromRange(0, 100_000).parallel()
+                .groupingFold(x -> x % 10, 0, 10, -1, (first, x) -> first == -1 ? x : first);
+        for (int key = 0; key < 10; key++) {
+            assertEquals(key, firsts.get(key));
+        }
+    }
+
+    @Test
+    void characteristics() {
+        PushStream range = PushStream.fromRange(0, 1_000_000);
+        assertEquals(SIZED | SORTED | DISTINCT, range.characteristics());
+        int[] mapped = {0};
+        PushStream doubled = range.map(x -> {
+            mapped[0]++;
+            return x * 2;
+        });
+        assertEquals(SIZED, doubled.characteristics());
+        //sized, so there's nothing to run
+        assertEquals(1_000_000, doubled.count());
+        assertEquals(400, doubled.skip(100).limit(400).count());
+        assertEquals(0, mapped[0]);
+        assertArrayEquals(new int[]{0, 2, 4}, doubled.limit(3).toArray());
+
+        //filtering keeps the order and distinctness, so sorting or de-duplicating again does nothing
+        PushStream evens = range.filter(x -> x % 2 == 0);
+        assertEquals(SORTED | DISTINCT, evens.characteristics());
+        assertSame(evens, evens.sorted());
+        assertSame(evens, evens.distinct());
+        assertEquals(List.of(0, 2, 4), evens.topK(3, IntComparator.NATURAL_ORDER).toList());
+        assertNotSame(evens, evens.sorted(IntComparator.REVERSE_ORDER));
+        assertEquals(SIZED | SORTED, PushStream.of(3, 1, 3).sorted().characteristics());
+        PushStream unknown = PushStream.of(3, 1, 3).mapMulti((x, emit) -> emit.accept(x));
+        assertEquals(DISTINCT, unknown.distinct().characteristics());
+
+        //taps always see every element
+        List<Integer> seen = new ArrayList<>();
+        assertEquals(5, PushStream.fromRange(0, 5).peek(seen::add).count());
+        assertEquals(5, seen.size());
+    }
+
+    @Test
+    void countDoesNotWrap() {
+        assertThrows(ArithmeticException.class, () -> PushStream.fromRange(Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+        assertEquals(Integer.MAX_VALUE, PushStream.fromRange(0, Integer.MAX_VALUE).count());
+    }
+
+    @Test
+    void sizeFollowsTheSourceBetweenRuns() {
+        List<Integer> list = new ArrayList<>(List.of(1, 2, 3));
+        PushStream stream = PushStream.fromList(list).map(x -> x * 10);
+        PushStream compiled = stream.compile();
+        list.add(4);
+        assertEquals(4, stream.count());
+        assertArrayEquals(new int[]{10, 20, 30, 40}, stream.toArray());
+        assertArrayEquals(new int[]{10, 20}, stream.limit(2).toArray());
+        assertEquals(4, compiled.count());
+        list.clear();
+        assertEquals(0, stream.count());
+        assertArrayEquals(new int[0], stream.toArray());
+
+        //a source that changes during a run still gets everything it produces into the array
+        List<Integer> growing = new ArrayList<>(List.of(1, 2));
+        PushStream source = PushStream.fromList(new AbstractList<>() {
+            @Override
+            public Integer get(int index) {
+                return growing.get(index);
+            }
+
+            @Override
+            public int size() {
+                return growing.size();
+            }
+
+            @Override
+            public Iterator<Integer> iterator() {
+                growing.add(3); //the run starts after the size was read
+                return growing.iterator();
+            }
+        });
+        assertArrayEquals(new int[]{1, 2, 3}, source.toArray());
+    }
+
+    @Test
+    void plan() {
+        PushStream stream = PushStream.fromRange(0, 1000).map(x -> x * 3).limit(500).skip(100).skip(100);
+        assertEquals("fromRange[300] -> map", stream.plan());
+        int[] expected = IntStream.range(200, 500).map(x -> x * 3).toArray();
+        assertArrayEquals(expected, stream.toArray());
+        assertArrayEquals(expected, stream.parallel().toArray());
+        assertArrayEquals(expected, stream.compile().toArray());
+        assertEquals(300, stream.count());
+
+        PushStream resorted = PushStream.fromList(List.of(5, 3, 4, 1)).sorted(IntComparator.REVERSE_ORDER)
+                .filter(x -> x != 4).sorted();
+        assertEquals("fromList[4] -> filter -> sorted", resorted.plan());
+        assertEquals(List.of(1, 3, 5), resorted.toList());
+
+        //profiled pipelines run as they were written
+        PushStream profiled = PushStream.fromRange(0, 10).skip(2).skip(3).profiled();
+        assertEquals("fromRange[10] -> skip(2) -> skip(3)", profiled.plan());
+        assertEquals(List.of(5, 6, 7, 8, 9), profiled.toList());
+        assertEquals(8, profiled.profile().stages().get(2).elementsIn());
+    }
+
+    @Test
+    void peekWithoutBuffering() {
+        List<Integer> seen = new ArrayList<>();
+        List<Integer> tappedWhenReached = new ArrayList<>();
+        PushStream.fromRange(0, 5000).peek(seen::add).forEach(x -> tappedWhenReached.add(seen.size()));
+        assertEquals(5000, seen.size());
+        //elements move on a block at a time, rather than waiting for the whole input
+        assertTrue(tappedWhenReached.get(0) <= Stage.BATCH_SIZE);
+
+        seen.clear();
+        assertEquals(List.of(0, 1, 2, 3, 4), PushStream.fromRange(0, Integer.MAX_VALUE).peek(seen::add).limit(5).toList());
+        assertTrue(seen.size() <= Stage.BATCH_SIZE);
+
+        List<Integer> sampled = new ArrayList<>();
+        assertEquals(5000, PushStream.fromRange(0, 5000).peekSampled(1000, sampled::add).count());
+        assertEquals(List.of(0, 1000, 2000, 3000, 4000), sampled);
+        sampled.clear();
+        PushStream.fromList(new LinkedList<>(List.of(0, 1, 2, 3, 4, 5, 6))).peekSampled(3, sampled::add).sum();
+        assertEquals(List.of(0, 3, 6), sampled);
+        //only what the limit asks for is tapped
+        sampled.clear();
+        assertEquals(List.of(0, 1, 2), PushStream.fromRange(0, 100_000).peekSampled(2, sampled::add).limit(3).toList());
+        assertEquals(List.of(0, 2), sampled);
+        assertThrows(IllegalArgumentException.class, () -> PushStream.of(1).peekSampled(0, x -> {}));
+
+        List<Integer> limited = new ArrayList<>();
+        AtomicLong now = new AtomicLong(0);
+        PushStream rateLimited = ((Stage) PushStream.fromRange(0, 100_000))
+                .peekRateLimited(new Stage.RateLimiter(10, now::get), limited::add);
+        assertEquals(100_000, rateLimited.count());
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), limited);
+        //the same window is still in effect, so there are no permits left for a second run
+        now.addAndGet(Stage.RateLimiter.WINDOW_NANOS - 1);
+        assertEquals(100_000, rateLimited.count());
+        assertEquals(10, limited.size());
+        //but the next window has a fresh set
+        now.incrementAndGet();
+        assertEquals(100_000, rateLimited.count());
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), limited.subList(10, limited.size()));
+        List<Integer> tappedNow = new ArrayList<>();
+        assertEquals(100_000, PushStream.fromRange(0, 100_000).peekRateLimited(10, tappedNow::add).count());
+        assertTrue(tappedNow.size() >= 10);
+        //a limit downstream keeps the stage from spending permits on elements it won't pass on
+        limited.clear();
+        Stage.RateLimiter plenty = new Stage.RateLimiter(100_000, now::get);
+        assertEquals(List.of(0, 1, 2), ((Stage) PushStream.fromRange(0, 100_000))
+                .peekRateLimited(plenty, limited::add).limit(3).toList());
+        assertEquals(List.of(0, 1, 2), limited);
+        assertEquals(100_000 - 3, plenty.tryAcquire(100_000));
+        assertThrows(IllegalArgumentException.class, () -> PushStream.of(1).peekRateLimited(0, x -> {}));
+
+        List<Integer> tapped = Collections.synchronizedList(new ArrayList<>());
+        assertEquals(100_000, PushStream.fromRange(0, 100_000).parallel().peek(tapped::add).count());
+        assertEquals(100_000, tapped.size());
+    }
+
+    @Test
+    void fromMappedFile(@TempDir Path dir) throws IOException {
+        Path little = dir.resolve("little.bin");
+        Path big = dir.resolve("big.bin");
+        ByteBuffer littleBytes = ByteBuffer.allocate(100_000 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer bigBytes = ByteBuffer.allocate(100_000 * Integer.BYTES).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < 100_000; i++) {
+            littleBytes.putInt(i - 50_000);
+            bigBytes.putInt(i - 50_000);
+        }
+        Files.write(little, littleBytes.array());
+        Files.write(big, bigBytes.array());
+
+        PushStream stream = PushStream.fromMappedFile(little, ByteOrder.LITTLE_ENDIAN);
+        assertEquals(PushStream.fromRange(-50_000, 50_000).toList(), stream.toList());
+        assertEquals(100_000, stream.count()); //reusable
+        assertEquals(PushStream.fromRange(-50_000, 50_000).filter(x -> x % 3 == 0).toList(),
+                PushStream.fromMappedFile(big, ByteOrder.BIG_ENDIAN).parallel().filter(x -> x % 3 == 0).toList());
+        assertEquals(List.of(-50_000, -49_999), PushStream.fromMappedFile(big, ByteOrder.BIG_ENDIAN).limit(2).toList());
+
+        Path empty = Files.createFile(dir.resolve("empty.bin"));
+        assertEquals(0, PushStream.fromMappedFile(empty, ByteOrder.LITTLE_ENDIAN).count());
+        assertThrows(UncheckedIOException.class,
+                () -> PushStream.fromMappedFile(dir.resolve("missing.bin"), ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test
+    void writeTo(@TempDir Path dir) {
+        Path path = dir.resolve("out.bin");
+        PushStream stream = PushStream.fromRange(0, 100_000).map(x -> x * 3 - 7);
+        assertEquals(100_000, stream.writeTo(path, ByteOrder.LITTLE_ENDIAN));
+        assertEquals(stream.toList(), PushStream.fromMappedFile(path, ByteOrder.LITTLE_ENDIAN).toList());
+        //overwrites what was there before
+        assertEquals(3, PushStream.of(1, -2, 3).writeTo(path, ByteOrder.BIG_ENDIAN, true));
+        assertEquals(List.of(1, -2, 3), PushStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN).toList());
+        //in order, even in parallel mode
+        assertEquals(100_000, PushStream.fromRange(0, 100_000).parallel().writeTo(path, ByteOrder.BIG_ENDIAN));
+        assertEquals(PushStream.fromRange(0, 100_000).toList(),
+                PushStream.fromMappedFile(path, ByteOrder.BIG_ENDIAN).toList());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(2, PushStream.of(1, 2, 3).limit(2).writeTo(Channels.newChannel(bytes), ByteOrder.BIG_ENDIAN));
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0, 0, 0, 2}, bytes.toByteArray());
+        assertThrows(UncheckedIOException.class,
+                () -> PushStream.of(1).writeTo(dir.resolve("missing").resolve("out.bin"), ByteOrder.BIG_ENDIAN));
     }
 
     @Test
@@ -63,12 +681,12 @@ class PushStreamTest {
                 .map(x -> x * 10)
                 .peek()
                 .toList();
-        String expected = "1 2 3 4 5 6 7 8 9\r\n" +
-                "1 4 9 16 25 36 49 64 81\r\n" +
-                "-1 4 -9 16 -25 36 -49 64 -81\r\n" +
-                "-81 -49 -25 -9 -1 4 16 36 64\r\n" +
-                "-49 -25 -9 -1 4 16 36 64\r\n" +
-                "-490 -250 -90 -10 40 160 360 640\r\n";
+        String expected = "1 2 3 4 5 6 7 8 9" + System.lineSeparator() +
+                "1 4 9 16 25 36 49 64 81" + System.lineSeparator() +
+                "-1 4 -9 16 -25 36 -49 64 -81" + System.lineSeparator() +
+                "-81 -49 -25 -9 -1 4 16 36 64" + System.lineSeparator() +
+                "-49 -25 -9 -1 4 16 36 64" + System.lineSeparator() +
+                "-490 -250 -90 -10 40 160 360 640" + System.lineSeparator();
         assertEquals(expected, outContent.toString());
         System.setOut(System.out);
         assertEquals(List.of(-490, -250, -90, -10, 40, 160, 360, 640), output);
@@ -95,8 +713,14 @@ class PushStreamTest {
     @Test
     void sum() {
         PushStream stream = PushStream.fromRange(1, 101);
-        int sum = stream.sum();
+        long sum = stream.sum();
         assertEquals((100 * 101) / 2, sum);
+        //wide enough that an int total would wrap around
+        assertEquals(4L * Integer.MAX_VALUE,
+                PushStream.of(Integer.MAX_VALUE, Integer.MAX_VALUE).flatMap(x -> List.of(x, x)).sum());
+        assertEquals(Integer.MAX_VALUE, PushStream.of(Integer.MAX_VALUE, Integer.MAX_VALUE).average().orElse(0));
+        assertEquals(50.5, PushStream.fromRange(1, 101).parallel().average().orElse(0));
+        assertFalse(PushStream.of().average().isPresent());
     }
 
     @Test
@@ -112,6 +736,17 @@ class PushStreamTest {
         assertEquals(List.of(1, 2, 3, 4), stream.toList());
     }
 
+    @Test
+    void toArray() {
+        assertArrayEquals(new int[]{1, 4, 9}, PushStream.of(1, 2, 3).map(x -> x * x).toArray());
+        assertArrayEquals(new int[0], PushStream.of().toArray());
+        PrimitiveIterator.OfInt iterator = PushStream.fromRange(0, 3).iterator();
+        assertEquals(0, iterator.nextInt());
+        assertEquals(1, iterator.nextInt());
+        assertEquals(2, iterator.nextInt());
+        assertFalse(iterator.hasNext());
+    }
+
     @Test
     void maxMin() {
         PushStream pushStream = PushStream.of(-10, Integer.MAX_VALUE);
@@ -148,6 +783,42 @@ class PushStreamTest {
         assertEquals(PushStream.fromRange(0, 10).toList(), combined.sorted().toList());
     }
 
+    @Test
+    void concatStreamsWithoutMaterializing() {
+        PushStream big = PushStream.concat(PushStream.fromRange(0, Integer.MAX_VALUE), PushStream.of(-1));
+        assertEquals(List.of(0, 1, 2), big.limit(3).toList());
+        PushStream mixed = PushStream.concat(PushStream.of(1, 2), PushStream.fromRange(0, 3_000_000).map(x -> 1));
+        assertEquals(3_000_002, mixed.count());
+        assertEquals(3_000_003, mixed.sum());
+    }
+
+    @Test
+    void streamingIterator() {
+        Iterator<Integer> iterator = PushStream.fromRange(0, 100_000).map(x -> x * 2).iterator(64);
+        long total = 0;
+        int seen = 0;
+        while (iterator.hasNext()) {
+            assertEquals(seen * 2, iterator.next());
+            total += seen * 2;
+            seen++;
+        }
+        assertEquals(100_000, seen);
+        assertEquals(99_999L * 100_000, total);
+        assertFalse(iterator.hasNext());
+
+        Iterator<Integer> infinite = PushStream.fromRange(0, Integer.MAX_VALUE).iterator(16);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, infinite.next());
+        }
+
+        Iterator<Integer> failing = PushStream.of(1, 2, 0).map(x -> 10 / x).iterator(4);
+        assertThrows(ArithmeticException.class, () -> {
+            while (failing.hasNext()) {
+                failing.next();
+            }
+        });
+    }
+
     @Test
     void fromRange() {
         PushStream stream = PushStream.fromRange(1, 10);
@@ -161,6 +832,123 @@ class PushStreamTest {
         assertEquals(List.of(1, 9, 25, 49, 81), ans);
     }
 
+    @Test
+    void toPublisherWaitsForDemand() throws InterruptedException {
+        AtomicInteger produced = new AtomicInteger();
+        AtomicReference<Thread> producer = new AtomicReference<>();
+        PushStream stream = PushStream.fromRange(0, 1_000_000).peek(x -> {
+            producer.set(Thread.currentThread());
+            produced.incrementAndGet();
+        });
+        Recorder<Integer> recorder = new Recorder<>();
+        stream.toPublisher().subscribe(recorder);
+        recorder.subscription.request(5);
+        assertEquals(List.of(0, 1, 2, 3, 4), List.of(recorder.next(), recorder.next(), recorder.next(),
+                recorder.next(), recorder.next()));
+        //the producer parks until there's more demand
+        while (producer.get().getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        //the source is held up after the block it was in the middle of
+        assertTrue(produced.get() <= 5 + Stage.BATCH_SIZE);
+        assertNull(recorder.items.poll());
+
+        recorder.subscription.cancel();
+        //once the producer has finished, nothing else can be produced
+        producer.get().join();
+        assertTrue(produced.get() <= 5 + Stage.BATCH_SIZE);
+        assertNull(recorder.items.poll());
+        assertFalse(recorder.completed);
+
+        Recorder<int[]> batches = new Recorder<>();
+        PushStream.fromRange(0, 10).toBatchPublisher(4).subscribe(batches);
+        batches.subscription.request(Long.MAX_VALUE);
+        assertArrayEquals(new int[]{0, 1, 2, 3}, batches.next());
+        assertArrayEquals(new int[]{4, 5, 6, 7}, batches.next());
+        assertArrayEquals(new int[]{8, 9}, batches.next());
+        batches.done.await();
+        assertTrue(batches.completed);
+
+        Recorder<Integer> invalid = new Recorder<>();
+        stream.toPublisher().subscribe(invalid);
+        invalid.subscription.request(0);
+        invalid.done.await();
+        assertInstanceOf(IllegalArgumentException.class, invalid.failure);
+    }
+
+    @Test
+    void fromPublisher() throws Exception {
+        PushStream source = PushStream.fromRange(0, 10_000);
+        assertEquals(source.toList(), PushStream.fromPublisher(source.toPublisher(), 16).toList());
+        assertEquals(source.sum(), PushStream.fromBatchPublisher(source.toBatchPublisher(100), 2).sum());
+        //a short-circuiting stage cancels the subscription
+        assertEquals(List.of(0, 1, 2), PushStream.fromPublisher(source.compile().toPublisher(), 4).limit(3).toList());
+
+        try (SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>()) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<?> submitted = executor.submit(() -> {
+                while (publisher.getNumberOfSubscribers() == 0) {
+                    Thread.onSpinWait();
+                }
+                for (int i = 0; i < 100; i++) {
+                    publisher.submit(i);
+                }
+                //pending items are dropped on failure, so wait for them to be handed over
+                while (publisher.estimateMaximumLag() > 0) {
+                    Thread.onSpinWait();
+                }
+                publisher.closeExceptionally(new IllegalStateException("publisher failed"));
+            });
+            List<Integer> seen = new ArrayList<>();
+            IllegalStateException e = assertThrows(IllegalStateException.class,
+                    () -> PushStream.fromPublisher(publisher, 8).forEach(seen::add));
+            assertEquals("publisher failed", e.getMessage());
+            assertEquals(100, seen.size());
+            submitted.get();
+            executor.shutdown();
+        }
+        assertThrows(IllegalArgumentException.class, () -> PushStream.fromPublisher(source.toPublisher(), 0));
+    }
+
+    /**
+     * Records what a publisher sends, leaving it to the test to request it
+     */
+    private static final class Recorder<T> implements Flow.Subscriber<T> {
+        final BlockingQueue<T> items = new LinkedBlockingQueue<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile boolean completed = false;
+        volatile Throwable failure;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            failure = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+
+        T next() throws InterruptedException {
+            T item = items.poll(5, TimeUnit.SECONDS);
+            assertNotNull(item);
+            return item;
+        }
+    }
+
     @Test
     void emptyList() {
         PushStream stream = PushStream.of();
@@ -185,4 +973,10 @@ class PushStreamTest {
         PushStream greater = qs(PushStream.fromList(rest).filter(x -> x > pivot));
         return PushStream.concat(less, PushStream.of(pivot), greater);
     }
-}
\ No newline at end of file
+
+    private static long sortRunFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("hstream-sort-")).count();
+        }
+    }
+}
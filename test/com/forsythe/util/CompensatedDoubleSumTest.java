@@ -0,0 +1,37 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompensatedDoubleSumTest {
+    @Test
+    void keepsTheLowOrderBits() {
+        CompensatedDoubleSum total = new CompensatedDoubleSum();
+        double plain = 0;
+        for (int i = 0; i < 10_000; i++) {
+            total.add(0.1);
+            plain += 0.1;
+        }
+        assertEquals(1000.0, total.sum());
+        assertNotEquals(1000.0, plain);
+
+        CompensatedDoubleSum mixed = new CompensatedDoubleSum();
+        mixed.addAll(new double[]{1e100, 1.0, -1e100}, 0, 3);
+        assertEquals(1.0, mixed.sum());
+        assertEquals(1.0 / 3, mixed.average());
+
+        CompensatedDoubleSum other = new CompensatedDoubleSum();
+        other.add(2.0);
+        assertEquals(3.0, mixed.merge(other).sum());
+        assertEquals(4, mixed.count());
+
+        CompensatedDoubleSum infinite = new CompensatedDoubleSum();
+        infinite.add(Double.POSITIVE_INFINITY);
+        infinite.add(1.0);
+        assertEquals(Double.POSITIVE_INFINITY, infinite.sum());
+        infinite.add(Double.NEGATIVE_INFINITY);
+        assertTrue(Double.isNaN(infinite.sum()));
+        assertTrue(Double.isNaN(new CompensatedDoubleSum().average()));
+    }
+}
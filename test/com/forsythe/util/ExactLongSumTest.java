@@ -0,0 +1,35 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExactLongSumTest {
+    @Test
+    void carriesPastTheRangeOfALong() {
+        ExactLongSum total = new ExactLongSum();
+        total.add(Long.MAX_VALUE);
+        total.add(Long.MAX_VALUE);
+        assertThrows(ArithmeticException.class, total::longValueExact);
+        assertEquals(Long.MAX_VALUE, total.average());
+        assertEquals(2.0 * Long.MAX_VALUE, total.doubleValue());
+
+        //coming back into range is fine
+        total.add(-Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, total.longValueExact());
+        total.addAll(new long[]{Long.MIN_VALUE, Long.MIN_VALUE, 5}, 0, 3);
+        assertEquals(Long.MIN_VALUE + 4, total.longValueExact());
+        assertEquals(6, total.count());
+
+        ExactLongSum other = new ExactLongSum();
+        other.add(Long.MAX_VALUE);
+        other.add(Long.MAX_VALUE);
+        total.merge(other);
+        assertThrows(ArithmeticException.class, total::longValueExact);
+        assertEquals(0x1p63, total.doubleValue());
+        assertEquals(8, total.count());
+
+        assertTrue(Double.isNaN(new ExactLongSum().average()));
+        assertEquals(0, new ExactLongSum().longValueExact());
+    }
+}
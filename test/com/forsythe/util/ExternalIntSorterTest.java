@@ -0,0 +1,125 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExternalIntSorterTest {
+    private static final long SMALLEST_BUDGET = 1;
+
+    @Test
+    void spillsAndMerges() throws IOException {
+        Random random = new Random(7);
+        int[] input = new int[100_000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextInt();
+        }
+        ExternalIntSorter sorter = new ExternalIntSorter(IntComparator.NATURAL_ORDER, SMALLEST_BUDGET);
+        long tempFilesBefore = tempFiles();
+        sorter.addAll(input, 0, 50_000);
+        for (int i = 50_000; i < input.length; i++) {
+            sorter.add(input[i]);
+        }
+        assertEquals(input.length / ExternalIntSorter.MIN_RUN_LENGTH, sorter.spilledRuns());
+        assertTrue(sorter.buffered() < ExternalIntSorter.MIN_RUN_LENGTH);
+
+        int[] output = new int[input.length + 10];
+        int n = 0;
+        try (ExternalIntSorter.Output sorted = sorter.finish()) {
+            //the temp files are already gone, even though they're still being read
+            assertEquals(tempFilesBefore, tempFiles());
+            int read;
+            while ((read = sorted.read(output, n, Math.min(777, output.length - n))) > 0) {
+                n += read;
+            }
+        }
+        int[] expected = input.clone();
+        Arrays.sort(expected);
+        assertArrayEquals(expected, Arrays.copyOf(output, n));
+
+        //the sorter can be reused
+        sorter.addAll(new int[]{3, 1, 2}, 0, 3);
+        assertEquals(3, sorter.finish().read(output, 0, 10));
+        assertArrayEquals(new int[]{1, 2, 3}, Arrays.copyOf(output, 3));
+    }
+
+    @Test
+    void mergeIsStable() {
+        Random random = new Random(11);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            input.add(random.nextInt(100) * 1000 + i % 1000);
+        }
+        //compare by thousands only, so there are lots of ties to keep in order
+        IntComparator byThousands = (a, b) -> Integer.compare(a / 1000, b / 1000);
+        ExternalIntSorter sorter = new ExternalIntSorter(byThousands, SMALLEST_BUDGET);
+        for (int i : input) {
+            sorter.add(i);
+        }
+        int[] output = new int[input.size()];
+        assertEquals(input.size(), sorter.finish().read(output, 0, output.length));
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(byThousands);
+        IntList actual = new IntList();
+        actual.addAll(output, 0, output.length);
+        assertEquals(expected, actual);
+        assertThrows(IllegalArgumentException.class, () -> new ExternalIntSorter(IntComparator.NATURAL_ORDER, 0));
+    }
+
+    @Test
+    void mergesInPassesAboveTheFanIn() throws IOException {
+        Random random = new Random(13);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 20 * ExternalIntSorter.MIN_RUN_LENGTH + 5; i++) {
+            input.add(random.nextInt(100) * 100_000 + i);
+        }
+        long tempFilesBefore = tempFiles();
+        //only two runs at a time, so the 20 spilled runs take several passes, which must stay stable
+        IntComparator byHundredThousands = (a, b) -> Integer.compare(a / 100_000, b / 100_000);
+        ExternalIntSorter sorter = new ExternalIntSorter(byHundredThousands, SMALLEST_BUDGET, 2);
+        for (int i : input) {
+            sorter.add(i);
+        }
+        assertEquals(20, sorter.spilledRuns());
+        int[] output = new int[input.size()];
+        try (ExternalIntSorter.Output sorted = sorter.finish()) {
+            assertEquals(tempFilesBefore, tempFiles());
+            assertEquals(input.size(), sorted.read(output, 0, output.length));
+        }
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(byHundredThousands);
+        IntList actual = new IntList();
+        actual.addAll(output, 0, output.length);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void closeDeletesSpilledRuns() throws IOException {
+        long tempFilesBefore = tempFiles();
+        ExternalIntSorter sorter = new ExternalIntSorter(IntComparator.NATURAL_ORDER, SMALLEST_BUDGET);
+        for (int i = 0; i < 10 * ExternalIntSorter.MIN_RUN_LENGTH; i++) {
+            sorter.add(-i);
+        }
+        assertEquals(tempFilesBefore + 10, tempFiles());
+        sorter.close();
+        assertEquals(tempFilesBefore, tempFiles());
+
+        //the sorter can still be reused
+        sorter.addAll(new int[]{3, 1, 2}, 0, 3);
+        int[] output = new int[10];
+        assertEquals(3, sorter.finish().read(output, 0, 10));
+        assertArrayEquals(new int[]{1, 2, 3}, Arrays.copyOf(output, 3));
+    }
+
+    private static long tempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("hstream-sort-")).count();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntHashSetTest {
+    @Test
+    void matchesAHashSet() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            IntHashSet set = new IntHashSet(0, offHeap);
+            Set<Integer> expected = new HashSet<>();
+            Random random = new Random(23);
+            for (int i = 0; i < 200_000; i++) {
+                //a mix of repeats, consecutive runs and the full int range, including 0
+                int value = i % 3 == 0 ? random.nextInt(1000) - 500 : i % 3 == 1 ? i : random.nextInt();
+                assertEquals(expected.add(value), set.add(value), String.valueOf(value));
+            }
+            assertEquals(expected.size(), set.size());
+            for (int value : expected) {
+                assertTrue(set.contains(value));
+            }
+            assertTrue(set.contains(0));
+            assertFalse(set.contains(-501));
+        }
+
+        IntHashSet presized = new IntHashSet(100, false);
+        assertTrue(presized.add(Integer.MIN_VALUE));
+        assertFalse(presized.add(Integer.MIN_VALUE));
+        assertFalse(presized.contains(0));
+        assertEquals(1, presized.size());
+        assertThrows(IllegalArgumentException.class, () -> new IntHashSet(-1, false));
+    }
+}
@@ -0,0 +1,83 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntIntMapTest {
+    @Test
+    void matchesAHashMap() {
+        IntIntMap counts = new IntIntMap();
+        IntIntMap maxima = new IntIntMap();
+        Map<Integer, Integer> expectedCounts = new HashMap<>();
+        Map<Integer, Integer> expectedMaxima = new HashMap<>();
+        Random random = new Random(29);
+        for (int i = 0; i < 200_000; i++) {
+            int key = i % 2 == 0 ? random.nextInt(1000) - 500 : random.nextInt();
+            counts.add(key, 1);
+            expectedCounts.merge(key, 1, Integer::sum);
+            maxima.fold(key, Integer.MIN_VALUE, i, Math::max);
+            expectedMaxima.merge(key, i, Math::max);
+        }
+        assertEquals(expectedCounts, toMap(counts));
+        assertEquals(expectedMaxima, toMap(maxima));
+        assertEquals(expectedCounts.get(0), counts.get(0));
+        assertEquals(0, counts.get(501));
+        assertEquals(-1, counts.getOrDefault(501, -1));
+
+        int[] keys = counts.keys();
+        assertEquals(expectedCounts.size(), keys.length);
+        for (int i = 1; i < keys.length; i++) {
+            assertTrue(keys[i - 1] < keys[i]);
+        }
+    }
+
+    @Test
+    void dense() {
+        IntIntMap histogram = IntIntMap.dense(-10, 100);
+        for (int i = -10; i < 1000; i++) {
+            histogram.add(i % 100, 1);
+        }
+        assertEquals(110, histogram.size());
+        assertEquals(10, histogram.get(5));
+        assertEquals(1, histogram.get(-5));
+        assertEquals(0, histogram.get(-11));
+        assertFalse(histogram.containsKey(Integer.MAX_VALUE));
+        assertEquals(-10, histogram.keys()[0]);
+        assertThrows(IllegalArgumentException.class, () -> histogram.add(100, 1));
+        assertThrows(IllegalArgumentException.class, () -> IntIntMap.dense(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> IntIntMap.dense(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void merge() {
+        IntIntMap a = IntIntMap.dense(0, 200);
+        IntIntMap b = IntIntMap.dense(0, 200);
+        IntIntMap hashed = new IntIntMap();
+        for (int i = 0; i < 100; i++) {
+            a.put(i, i);
+            b.put(i + 50, 1);
+            hashed.put(i * 3, 1);
+        }
+        a.merge(b, Integer::sum);
+        assertEquals(150, a.size());
+        assertEquals(10, a.get(10));
+        assertEquals(61, a.get(60));
+        assertEquals(1, a.get(120));
+
+        hashed.merge(a, Integer::sum);
+        assertEquals(61 + 1, hashed.get(60));
+        assertEquals(1, hashed.get(297));
+        assertEquals(150 + 50, hashed.size());
+    }
+
+    private static Map<Integer, Integer> toMap(IntIntMap map) {
+        Map<Integer, Integer> ans = new HashMap<>();
+        map.forEach(ans::put);
+        return ans;
+    }
+}
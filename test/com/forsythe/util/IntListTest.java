@@ -0,0 +1,57 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntListTest {
+    @Test
+    void behavesLikeAList() {
+        IntList list = new IntList(0);
+        for (int i = 0; i < 100; i++) {
+            list.addInt(i);
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, list);
+        assertEquals(list, expected);
+        assertEquals(expected.hashCode(), list.hashCode());
+
+        list.add(0, -1);
+        expected.add(0, -1);
+        list.remove(50);
+        expected.remove(50);
+        list.set(3, 42);
+        expected.set(3, 42);
+        list.removeIf(x -> x % 2 == 0);
+        expected.removeIf(x -> x % 2 == 0);
+        assertEquals(expected, list);
+        assertEquals(expected, list.subList(0, list.size()));
+    }
+
+    @Test
+    void primitiveAccess() {
+        IntList list = new IntList();
+        list.addAll(new int[]{9, 1, 2, 3, 9}, 1, 3);
+        assertEquals(3, list.size());
+        assertEquals(2, list.getInt(1));
+        assertArrayEquals(new int[]{1, 2, 3}, list.toIntArray());
+        assertThrows(IndexOutOfBoundsException.class, () -> list.getInt(3));
+
+        PrimitiveIterator.OfInt iterator = list.iterator();
+        int total = 0;
+        while (iterator.hasNext()) {
+            total += iterator.nextInt();
+        }
+        assertEquals(6, total);
+        assertThrows(NoSuchElementException.class, iterator::nextInt);
+
+        PrimitiveIterator.OfInt modified = list.iterator();
+        list.addInt(4);
+        assertThrows(ConcurrentModificationException.class, modified::nextInt);
+    }
+}
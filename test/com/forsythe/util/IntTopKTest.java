@@ -0,0 +1,40 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntTopKTest {
+    @Test
+    void matchesAStableSortCutOff() {
+        Random random = new Random(13);
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            input.add(random.nextInt(50) * 1000 + random.nextInt(1000));
+        }
+        //lots of ties, which have to come out in arrival order
+        IntComparator byThousands = (a, b) -> Integer.compare(a / 1000, b / 1000);
+        List<Integer> expected = new ArrayList<>(input);
+        expected.sort(byThousands);
+
+        for (int k : new int[]{0, 1, 7, 500, 20_000, 30_000}) {
+            IntTopK top = new IntTopK(k, byThousands);
+            for (int i : input) {
+                top.offer(i);
+            }
+            assertTrue(top.size() <= k);
+            int[] sorted = top.drainSorted();
+            IntList actual = new IntList();
+            actual.addAll(sorted, 0, sorted.length);
+            assertEquals(expected.subList(0, Math.min(k, input.size())), actual);
+            assertEquals(0, top.size());
+        }
+
+        IntTopK largest = new IntTopK(3, IntComparator.REVERSE_ORDER);
+        largest.offerAll(new int[]{5, 1, 9, 3, 9, 7}, 1, 5);
+        assertArrayEquals(new int[]{9, 9, 7}, largest.drainSorted());
+        assertThrows(IllegalArgumentException.class, () -> new IntTopK(-1, IntComparator.NATURAL_ORDER));
+    }
+}
@@ -0,0 +1,38 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntWindowMinTest {
+    @Test
+    void matchesABruteForceScan() {
+        Random random = new Random(31);
+        int[] values = new int[5000];
+        for (int i = 0; i < values.length; i++) {
+            //few distinct values, so there are plenty of ties
+            values[i] = random.nextInt(50);
+        }
+        for (int size : new int[]{1, 2, 7, 100, 5000}) {
+            IntWindowMin min = new IntWindowMin(size, IntComparator.NATURAL_ORDER);
+            IntWindowMin max = new IntWindowMin(size, IntComparator.REVERSE_ORDER);
+            for (int i = 0; i < values.length; i++) {
+                min.add(values[i]);
+                max.add(values[i]);
+                int expectedMin = Integer.MAX_VALUE;
+                int expectedMax = Integer.MIN_VALUE;
+                for (int j = Math.max(0, i - size + 1); j <= i; j++) {
+                    expectedMin = Math.min(expectedMin, values[j]);
+                    expectedMax = Math.max(expectedMax, values[j]);
+                }
+                assertEquals(expectedMin, min.get());
+                assertEquals(expectedMax, max.get());
+            }
+        }
+
+        assertThrows(IllegalStateException.class, () -> new IntWindowMin(3, IntComparator.NATURAL_ORDER).get());
+        assertThrows(IllegalArgumentException.class, () -> new IntWindowMin(0, IntComparator.NATURAL_ORDER));
+    }
+}
@@ -0,0 +1,52 @@
+package com.forsythe.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedIntFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsAcrossSegments() throws IOException {
+        Path path = dir.resolve("ints.bin");
+        ByteBuffer bytes = ByteBuffer.allocate(1000 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 1000; i++) {
+            bytes.putInt(i * 7 - 500);
+        }
+        Files.write(path, bytes.array());
+        assertEquals(1000, MappedIntFile.length(path));
+
+        //segments of 64 ints, read in chunks that don't line up with them
+        try (MappedIntFile file = MappedIntFile.open(path, ByteOrder.LITTLE_ENDIAN, 10, 990, 256)) {
+            int[] chunk = new int[100];
+            int next = 10;
+            int read;
+            while ((read = file.read(chunk, 0, chunk.length)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    assertEquals(next++ * 7 - 500, chunk[i]);
+                }
+                assertEquals(990 - next, file.remaining());
+            }
+            assertEquals(990, next);
+        }
+
+        try (MappedIntFile file = MappedIntFile.open(path, ByteOrder.BIG_ENDIAN, 0, 1)) {
+            int[] first = new int[2];
+            assertEquals(1, file.read(first, 0, 2));
+            assertEquals(Integer.reverseBytes(-500), first[0]);
+        }
+
+        Path ragged = dir.resolve("ragged.bin");
+        Files.write(ragged, new byte[6]);
+        assertThrows(IllegalArgumentException.class, () -> MappedIntFile.length(ragged));
+    }
+}